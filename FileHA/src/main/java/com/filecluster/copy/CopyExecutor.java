@@ -0,0 +1,409 @@
+package com.filecluster.copy;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+import com.filecluster.ha.HAInfoTriplet;
+
+/**
+ * Runs copy jobs on a fixed set of worker threads, so a failover only has to
+ * plan its copies and hand them over. Jobs wait in a bounded queue, which
+ * makes a submitter block once the workers fall that far behind.
+ * <p>
+ * Each host may be the source of at most sourceLimit and the destination of
+ * at most destinationLimit copies at a time. A copy whose source or
+ * destination is busy is set aside for that host and handed back to the
+ * workers once one of the host's copies finishes, so a worker never waits on
+ * a busy host while copies between idle hosts are queued behind it. A failed
+ * copy waits for its next attempt on a timer rather than on a worker, and
+ * holds no slot meanwhile.
+ * <p>
+ * Cancelling a copy's future stops it before its next attempt; an attempt
+ * already running is left to finish.
+ */
+public class CopyExecutor implements Closeable {
+	private static final Logger logger = Logger.getLogger(CopyExecutor.class.getName());
+
+	public static final int DEFAULT_QUEUE_CAPACITY = 1 << 16;
+	public static final int DEFAULT_HOST_LIMIT = 4;
+	public static final int DEFAULT_MAX_ATTEMPTS = 3;
+	public static final long DEFAULT_RETRY_DELAY_MILLIS = 100;
+
+	private static final CopyJob SHUTDOWN = new CopyJob(null);
+	private static final CopyJob WAKE = new CopyJob(null); // Sends an idle worker to the ready jobs
+
+	private final FileCopier copier;
+	private final BlockingQueue<CopyJob> queue;
+	private final Thread[] workers;
+	private final ScheduledExecutorService retryTimer;
+	private final int sourceLimit, destinationLimit;
+	private final HashMap<String, HostSlots> sourceSlots = new HashMap<String, HostSlots>(); // Guarded by slotLock
+	private final HashMap<String, HostSlots> destinationSlots = new HashMap<String, HostSlots>(); // Guarded by slotLock
+	private final Object slotLock = new Object();
+	private final ConcurrentLinkedQueue<CopyJob> readyJobs = new ConcurrentLinkedQueue<CopyJob>(); // Set-aside jobs to try again
+	private final Set<CopyJob> pendingJobs = ConcurrentHashMap.newKeySet();
+
+	private volatile int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+	private volatile long retryDelayMillis = DEFAULT_RETRY_DELAY_MILLIS;
+	private volatile boolean closed;
+
+	private final LongAdder completedCount = new LongAdder();
+	private final LongAdder failedCount = new LongAdder();
+	private final LongAdder retryCount = new LongAdder();
+	private final LongAdder cancelledCount = new LongAdder();
+	private long pendingCount; // Guarded by this
+
+	private static class CopyJob {
+		final HAInfoTriplet triplet;
+		final CompletableFuture<HAInfoTriplet> future = new CompletableFuture<HAInfoTriplet>();
+		int attempt;
+
+		CopyJob(HAInfoTriplet triplet) {
+			this.triplet = triplet;
+		}
+	}
+
+	/*
+	 * Copies running from or to a host and the jobs set aside until one of them
+	 * finishes. A job only waits here while the host has no free slot, or while
+	 * another job has been handed back to take the free one.
+	 */
+	private static class HostSlots {
+		final int limit;
+		int inUse;
+		final ArrayDeque<CopyJob> waiting = new ArrayDeque<CopyJob>();
+
+		HostSlots(int limit) {
+			this.limit = limit;
+		}
+
+		boolean isFull() {
+			return inUse >= limit;
+		}
+	}
+
+	public CopyExecutor(FileCopier copier, int workerCount) {
+		this(copier, workerCount, DEFAULT_QUEUE_CAPACITY, DEFAULT_HOST_LIMIT, DEFAULT_HOST_LIMIT);
+	}
+
+	public CopyExecutor(FileCopier copier, int workerCount, int queueCapacity, int sourceLimit, int destinationLimit) {
+		if (workerCount < 1 || queueCapacity < 1 || sourceLimit < 1 || destinationLimit < 1)
+			throw new IllegalArgumentException("Worker count, queue capacity and host limits must be at least 1");
+
+		this.copier = copier;
+		this.queue = new ArrayBlockingQueue<CopyJob>(queueCapacity);
+		this.sourceLimit = sourceLimit;
+		this.destinationLimit = destinationLimit;
+
+		retryTimer = Executors.newSingleThreadScheduledExecutor(task -> {
+			Thread timer = new Thread(task, "copy-retry-timer");
+			timer.setDaemon(true);
+			return timer;
+		});
+
+		workers = new Thread[workerCount];
+		for (int i = 0; i < workerCount; i++) {
+			workers[i] = new Thread(this::work, "copy-worker-" + i);
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+	}
+
+	/**
+	 * Number of times a copy is tried before its future fails. 1 disables
+	 * retries.
+	 */
+	public void setMaxAttempts(int maxAttempts) {
+		if (maxAttempts < 1)
+			throw new IllegalArgumentException("Max attempts must be at least 1");
+
+		this.maxAttempts = maxAttempts;
+	}
+
+	/**
+	 * Delay before the first retry, doubled for every further one.
+	 */
+	public void setRetryDelay(long retryDelayMillis) {
+		this.retryDelayMillis = Math.max(0, retryDelayMillis);
+	}
+
+	public CompletableFuture<HAInfoTriplet> submit(String file, String sourceHost, String destinationHost) {
+		HAInfoTriplet triplet = new HAInfoTriplet();
+		triplet.setFileToBeCopied(file);
+		triplet.setSourceHost(sourceHost);
+		triplet.setDestinationHost(destinationHost);
+		return submit(triplet);
+	}
+
+	/**
+	 * Queues a copy, blocking while the queue is full. The future completes with
+	 * the triplet once the copy is done, or with the last error once every
+	 * attempt failed.
+	 */
+	public CompletableFuture<HAInfoTriplet> submit(HAInfoTriplet triplet) {
+		if (closed)
+			throw new IllegalStateException("Copy executor is closed");
+
+		CopyJob job = new CopyJob(triplet);
+		synchronized (this) {
+			pendingCount++;
+		}
+		pendingJobs.add(job);
+
+		try {
+			queue.put(job);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			finish(job, e);
+		}
+
+		return job.future;
+	}
+
+	/**
+	 * Waits until every submitted copy has completed or failed.
+	 */
+	public synchronized void awaitCompletion() throws InterruptedException {
+		while (pendingCount > 0)
+			wait();
+	}
+
+	public synchronized long getPendingCount() {
+		return pendingCount;
+	}
+
+	public long getCompletedCount() {
+		return completedCount.sum();
+	}
+
+	public long getFailedCount() {
+		return failedCount.sum();
+	}
+
+	public long getRetryCount() {
+		return retryCount.sum();
+	}
+
+	public long getCancelledCount() {
+		return cancelledCount.sum();
+	}
+
+	/**
+	 * Cancels the pending copies to the host, e.g. because it failed since they
+	 * were planned. Returns the number of copies cancelled.
+	 */
+	public int cancelCopiesTo(String destinationHost) {
+		int cancelled = 0;
+		for (CopyJob job : pendingJobs) {
+			if (destinationHost.equals(job.triplet.getDestinationHost()) && job.future.cancel(false))
+				cancelled++;
+		}
+
+		return cancelled;
+	}
+
+	/**
+	 * Stops taking copies, runs the ones already submitted, retries included,
+	 * and waits for the workers to exit.
+	 */
+	@Override
+	public void close() {
+		if (closed)
+			return;
+		closed = true;
+
+		// A retry still waiting on the timer is not in the queue yet, let it come back first
+		boolean interrupted = false;
+		try {
+			awaitCompletion();
+		} catch (InterruptedException e) {
+			interrupted = true;
+		}
+		retryTimer.shutdown();
+
+		for (int i = 0; i < workers.length; i++) {
+			try {
+				queue.put(SHUTDOWN);
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+
+		for (Thread worker : workers) {
+			try {
+				worker.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	private void work() {
+		while (true) {
+			// Jobs handed back by a finished copy go before new ones. Whoever hands a
+			// job back comes here again before it can exit, so none is left behind
+			CopyJob job = readyJobs.poll();
+			if (job == null) {
+				try {
+					job = queue.take();
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+
+			if (job == SHUTDOWN)
+				return;
+
+			if (job != WAKE)
+				run(job);
+		}
+	}
+
+	private void run(CopyJob job) {
+		HAInfoTriplet triplet = job.triplet;
+		Exception failure = null;
+
+		if (job.future.isCancelled()) {
+			handBack(job);
+			cancelledCount.increment();
+			finish(job, null);
+			return;
+		}
+
+		// Set aside until the busy host finishes a copy
+		if (!tryAcquire(job))
+			return;
+
+		job.attempt++;
+		try {
+			copier.copy(triplet.getFileToBeCopied(), triplet.getSourceHost(), triplet.getDestinationHost());
+		} catch (Exception e) {
+			failure = e;
+		}
+		release(job);
+
+		if (failure == null) {
+			completedCount.increment();
+			finish(job, null);
+			return;
+		}
+
+		if (job.attempt >= maxAttempts) {
+			giveUp(job, failure);
+			return;
+		}
+
+		retryCount.increment();
+		scheduleRetry(job, failure);
+	}
+
+	/*
+	 * Hands the job back to the workers once its retry delay has passed, so no
+	 * worker sleeps through it
+	 */
+	private void scheduleRetry(CopyJob job, Exception failure) {
+		try {
+			retryTimer.schedule(() -> {
+				readyJobs.add(job);
+				queue.offer(WAKE);
+			}, retryDelayMillis << Math.min(job.attempt - 1, 16), TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// Closed without waiting for the last copies
+			giveUp(job, failure);
+		}
+	}
+
+	private void giveUp(CopyJob job, Exception failure) {
+		HAInfoTriplet triplet = job.triplet;
+		failedCount.increment();
+		logger.severe("Copy of " + triplet.getFileToBeCopied() + " from " + triplet.getSourceHost() + " to "
+				+ triplet.getDestinationHost() + " failed after " + job.attempt + " attempts: " + failure);
+		finish(job, failure);
+	}
+
+	/*
+	 * Takes a slot on both hosts, or sets the job aside on a full one
+	 */
+	private boolean tryAcquire(CopyJob job) {
+		synchronized (slotLock) {
+			HostSlots source = slots(sourceSlots, job.triplet.getSourceHost(), sourceLimit);
+			HostSlots destination = slots(destinationSlots, job.triplet.getDestinationHost(), destinationLimit);
+
+			HostSlots full = source.isFull() ? source : destination.isFull() ? destination : null;
+			if (full != null) {
+				full.waiting.add(job);
+				// The job may have been handed a free slot of the other host, pass it on
+				wakeIfFree(full == source ? destination : source);
+				return false;
+			}
+
+			source.inUse++;
+			destination.inUse++;
+			return true;
+		}
+	}
+
+	private void release(CopyJob job) {
+		synchronized (slotLock) {
+			HostSlots source = sourceSlots.get(job.triplet.getSourceHost());
+			HostSlots destination = destinationSlots.get(job.triplet.getDestinationHost());
+			source.inUse--;
+			destination.inUse--;
+			wakeIfFree(source);
+			wakeIfFree(destination);
+		}
+	}
+
+	/*
+	 * Passes on the slots a job leaving without a copy may have been handed
+	 */
+	private void handBack(CopyJob job) {
+		synchronized (slotLock) {
+			wakeIfFree(slots(sourceSlots, job.triplet.getSourceHost(), sourceLimit));
+			wakeIfFree(slots(destinationSlots, job.triplet.getDestinationHost(), destinationLimit));
+		}
+	}
+
+	private void wakeIfFree(HostSlots host) {
+		if (!host.isFull() && !host.waiting.isEmpty())
+			readyJobs.add(host.waiting.poll());
+	}
+
+	private void finish(CopyJob job, Exception failure) {
+		pendingJobs.remove(job);
+		if (failure == null)
+			job.future.complete(job.triplet);
+		else
+			job.future.completeExceptionally(failure);
+
+		synchronized (this) {
+			if (--pendingCount == 0)
+				notifyAll();
+		}
+	}
+
+	private static HostSlots slots(HashMap<String, HostSlots> slots, String host, int limit) {
+		HostSlots hostSlots = slots.get(host);
+		if (hostSlots == null) {
+			hostSlots = new HostSlots(limit);
+			slots.put(host, hostSlots);
+		}
+		return hostSlots;
+	}
+}
@@ -0,0 +1,12 @@
+package com.filecluster.copy;
+
+import java.io.IOException;
+
+/**
+ * Transfers one copy of a file between two hosts. Called from several
+ * {@link CopyExecutor} workers at once.
+ */
+public interface FileCopier {
+
+	void copy(String file, String sourceHost, String destinationHost) throws IOException;
+}
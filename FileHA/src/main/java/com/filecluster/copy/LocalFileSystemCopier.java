@@ -0,0 +1,44 @@
+package com.filecluster.copy;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Keeps every host as a directory under a common root, i.e. a file lives at
+ * root/host/file. A copy goes to a temporary file first and is renamed into
+ * place, so a destination file is either absent or complete.
+ */
+public class LocalFileSystemCopier implements FileCopier {
+	private final Path root;
+
+	public LocalFileSystemCopier(Path root) {
+		this.root = root.toAbsolutePath().normalize();
+	}
+
+	public Path getPath(String host, String file) throws IOException {
+		Path path = root.resolve(host).resolve(file).normalize();
+
+		// Names come from clients, keep them inside their host directory
+		if (!path.getParent().equals(root.resolve(host).normalize()) || !path.startsWith(root))
+			throw new IOException("Path of " + file + " on " + host + " is outside " + root);
+
+		return path;
+	}
+
+	@Override
+	public void copy(String file, String sourceHost, String destinationHost) throws IOException {
+		Path source = getPath(sourceHost, file);
+		Path destination = getPath(destinationHost, file);
+		Files.createDirectories(destination.getParent());
+
+		Path temporary = Files.createTempFile(destination.getParent(), file, ".copying");
+		try {
+			Files.copy(source, temporary, StandardCopyOption.REPLACE_EXISTING);
+			Files.move(temporary, destination, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			Files.deleteIfExists(temporary);
+		}
+	}
+}
@@ -0,0 +1,11 @@
+package com.filecluster.exception;
+
+public class HostDrainingException extends RuntimeException {
+
+	private static final long serialVersionUID = -2675340198127530642L;
+
+	public HostDrainingException(String message) {
+		super(message);
+	}
+
+}
@@ -0,0 +1,11 @@
+package com.filecluster.exception;
+
+public class MutationLogException extends RuntimeException {
+
+	private static final long serialVersionUID = -3532913560424383150L;
+
+	public MutationLogException(String message, Throwable cause) {
+		super(message, cause);
+	}
+
+}
@@ -0,0 +1,11 @@
+package com.filecluster.exception;
+
+public class ShardException extends RuntimeException {
+
+	private static final long serialVersionUID = 6187903526710473291L;
+
+	public ShardException(String message, Throwable cause) {
+		super(message, cause);
+	}
+
+}
@@ -0,0 +1,547 @@
+package com.filecluster.graph;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+
+/**
+ * Bipartite file/host graph of the cluster. Files and hosts are interned in
+ * separate dictionaries. The file side is a fixed-degree {@link ReplicaTable}
+ * (replicationFactor host ids per file, 2 by default) while each host keeps a
+ * growable list of file ids. Hosts may carry a failure domain label (e.g. a
+ * rack or zone), interned in a third dictionary.
+ */
+public class ClusterGraph {
+	public static final int NONE = ReplicaTable.NONE;
+	public static final int DEFAULT_REPLICATION_FACTOR = 2;
+
+	private static final int SNAPSHOT_KIND = 2;
+
+	NodeDictionary files, hosts, domains;
+	ReplicaTable replicas;
+	ReplicationQueue replicationQueue;
+	IntLists filesOnHost;
+	int[] hostDomains; // Failure domain id by host id, NONE if unlabelled
+	HostLoadIndex loadIndex; // Null until asked for
+
+	// Changes since the last published version, a full rebuild if rebuildVersion
+	DirtyChunks dirtyFiles = new DirtyChunks();
+	DirtyChunks dirtyHosts = new DirtyChunks();
+	boolean rebuildVersion;
+	volatile boolean unpublished;
+	volatile GraphVersion version;
+
+	public ClusterGraph() {
+		this(16, 16);
+	}
+
+	public ClusterGraph(int expectedFiles, int expectedHosts) {
+		this(expectedFiles, expectedHosts, DEFAULT_REPLICATION_FACTOR);
+	}
+
+	public ClusterGraph(int expectedFiles, int expectedHosts, int replicationFactor) {
+		files = new NodeDictionary(expectedFiles);
+		hosts = new NodeDictionary(expectedHosts);
+		replicas = new ReplicaTable(expectedFiles, replicationFactor);
+		replicationQueue = new ReplicationQueue(expectedFiles, replicationFactor);
+		filesOnHost = new IntLists(expectedHosts);
+		domains = new NodeDictionary();
+		hostDomains = new int[Math.max(expectedHosts, 16)];
+		Arrays.fill(hostDomains, NONE);
+		version = GraphVersion.build(this, 0);
+	}
+
+	public int getReplicationFactor() {
+		return replicas.getReplicationFactor();
+	}
+
+	/**
+	 * Changes the maximum number of copies per file. Files with more copies
+	 * than the new factor make this fail with an IllegalStateException.
+	 */
+	public void setReplicationFactor(int replicationFactor) {
+		replicas.setReplicationFactor(replicationFactor);
+		markRebuild();
+
+		// Levels follow the factor, files that were lost stay lost
+		int[] lostFiles = replicationQueue.toArray(0);
+		replicationQueue.reset(replicationFactor);
+		for (int i = 0; i < lostFiles.length; i++) {
+			if (replicas.count(lostFiles[i]) == 0)
+				replicationQueue.add(lostFiles[i], 0);
+		}
+		enqueueUnderReplicated(false);
+	}
+
+	/**
+	 * Pre-sizes the dictionaries and adjacency arrays for the given totals, so a
+	 * bulk load does not rehash or regrow them along the way.
+	 */
+	public void ensureCapacity(int expectedFiles, int expectedHosts) {
+		files.ensureCapacity(expectedFiles);
+		hosts.ensureCapacity(expectedHosts);
+		replicas.ensureCapacity(expectedFiles);
+		replicationQueue.ensureCapacity(expectedFiles);
+		filesOnHost.ensureOwners(expectedHosts);
+		ensureHostDomains(expectedHosts);
+	}
+
+	public int addHost(String host) {
+		int hostId = hosts.intern(host);
+		markHost(hostId);
+		filesOnHost.ensureOwners(hostId + 1);
+		ensureHostDomains(hostId + 1);
+		return hostId;
+	}
+
+	/**
+	 * Adds the host, or relabels it if it exists, in the given failure domain.
+	 * A null domain leaves the host unlabelled.
+	 */
+	public int addHost(String host, String failureDomain) {
+		int hostId = addHost(host);
+		hostDomains[hostId] = failureDomain == null ? NONE : domains.intern(failureDomain);
+		return hostId;
+	}
+
+	public int addFile(String file) {
+		int fileId = files.intern(file);
+		markFile(fileId);
+		replicas.ensureCapacity(fileId + 1);
+		return fileId;
+	}
+
+	public boolean addReplica(String file, String host) {
+		return addReplica(addFile(file), addHost(host));
+	}
+
+	/**
+	 * Places a copy of the file on the host. Returns false if the file already
+	 * has all of its copies or the host already holds one.
+	 */
+	public boolean addReplica(int fileId, int hostId) {
+		if (!replicas.add(fileId, hostId))
+			return false;
+
+		filesOnHost.add(hostId, fileId);
+		markFile(fileId);
+		markHost(hostId);
+
+		// A queued file moves up a level, or leaves once it has all its copies
+		if (replicationQueue.contains(fileId)) {
+			int count = replicas.count(fileId);
+			replicationQueue.remove(fileId, count - 1);
+			if (count < replicas.getReplicationFactor())
+				replicationQueue.add(fileId, count);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Moves the file's copy from one host to another, keeping its copy count.
+	 * Returns false if the first host holds no copy or the second one does.
+	 */
+	public boolean moveReplica(int fileId, int fromHostId, int toHostId) {
+		if (!replicas.contains(fileId, fromHostId) || replicas.contains(fileId, toHostId))
+			return false;
+
+		replicas.remove(fileId, fromHostId);
+		replicas.add(fileId, toHostId);
+		filesOnHost.remove(fromHostId, fileId);
+		filesOnHost.add(toHostId, fileId);
+		markFile(fileId);
+		markHost(fromHostId);
+		markHost(toHostId);
+		return true;
+	}
+
+	/**
+	 * Removes the host and its copies from the graph. Returns the ids of the
+	 * files it was holding, or null if there is no such host.
+	 */
+	public int[] removeHost(String host) {
+		int hostId = hosts.getId(host);
+		if (hostId < 0)
+			return null;
+
+		int count = filesOnHost.size(hostId);
+		int[] hostFiles = Arrays.copyOf(filesOnHost.array(hostId), count);
+
+		// Drop the host from the replica slots of every file it was holding, each
+		// of which is now under-replicated
+		for (int i = 0; i < count; i++) {
+			int fileId = hostFiles[i];
+			replicas.remove(fileId, hostId);
+			markFile(fileId);
+
+			int remaining = replicas.count(fileId);
+			if (replicationQueue.contains(fileId))
+				replicationQueue.remove(fileId, remaining + 1);
+			replicationQueue.add(fileId, remaining);
+		}
+
+		filesOnHost.clear(hostId);
+		markHost(hostId);
+		if (loadIndex != null)
+			loadIndex.remove(hostId);
+		hostDomains[hostId] = NONE;
+		hosts.remove(host);
+		return hostFiles;
+	}
+
+	public boolean hasFile(String file) {
+		return files.contains(file);
+	}
+
+	public boolean hasHost(String host) {
+		return hosts.contains(host);
+	}
+
+	public int getFileId(String file) {
+		return files.getId(file);
+	}
+
+	public int getHostId(String host) {
+		return hosts.getId(host);
+	}
+
+	public String getFileName(int fileId) {
+		return files.getName(fileId);
+	}
+
+	public String getHostName(int hostId) {
+		return hosts.getName(hostId);
+	}
+
+	/**
+	 * Failure domain id of the host, or {@link #NONE} if it is unlabelled.
+	 * Domain ids are dense and never recycled.
+	 */
+	public int getHostDomain(int hostId) {
+		return hostId >= 0 && hostId < hostDomains.length ? hostDomains[hostId] : NONE;
+	}
+
+	public String getDomainName(int domainId) {
+		return domains.getName(domainId);
+	}
+
+	public int getDomainId(String failureDomain) {
+		return domains.getId(failureDomain);
+	}
+
+	public int getDomainIdLimit() {
+		return domains.getIdLimit();
+	}
+
+	/**
+	 * Number of files that lost copies and still have at least one.
+	 */
+	public int getUnderReplicatedCount() {
+		int count = 0;
+		for (int level = 1; level < replicas.getReplicationFactor(); level++) {
+			count += replicationQueue.size(level);
+		}
+		return count;
+	}
+
+	/**
+	 * Ids of the files that lost copies and still have at least one, fewest
+	 * copies first. A file leaves the queue when it has all its copies again.
+	 */
+	public int[] getUnderReplicatedFiles() {
+		return replicationQueue.toArray(1);
+	}
+
+	/**
+	 * Number of files that lost every copy.
+	 */
+	public int getLostFileCount() {
+		return replicationQueue.size(0);
+	}
+
+	/**
+	 * The index-th file that lost every copy. Files are appended as they are
+	 * lost, so as long as no lost file gets a copy again the ones lost since
+	 * {@link #getLostFileCount()} returned n are at n and above.
+	 */
+	public int getLostFile(int index) {
+		return replicationQueue.get(0, index);
+	}
+
+	public int getReplicaCount(String file) {
+		int fileId = files.getId(file);
+		return fileId < 0 ? 0 : replicas.count(fileId);
+	}
+
+	public int getReplicaCount(int fileId) {
+		return replicas.count(fileId);
+	}
+
+	/**
+	 * The host holding the index-th copy of the file (0 up to the replication
+	 * factor), or {@link #NONE}. Occupied slots always come first.
+	 */
+	public int getReplica(int fileId, int index) {
+		return replicas.get(fileId, index);
+	}
+
+	public boolean hasReplica(int fileId, int hostId) {
+		return replicas.contains(fileId, hostId);
+	}
+
+	public int getFileCount(int hostId) {
+		return filesOnHost.size(hostId);
+	}
+
+	/**
+	 * Backing array of the host's file ids. Only the first
+	 * {@link #getFileCount(int)} entries are valid; callers must not modify it.
+	 */
+	public int[] getFilesOnHost(int hostId) {
+		return filesOnHost.array(hostId);
+	}
+
+	/**
+	 * Upper bound (exclusive) of the host ids in use; ids below it may be free.
+	 */
+	public int getHostIdLimit() {
+		return hosts.getIdLimit();
+	}
+
+	public int getFileIdLimit() {
+		return files.getIdLimit();
+	}
+
+	public int getFileCount() {
+		return files.size();
+	}
+
+	public int getHostCount() {
+		return hosts.size();
+	}
+
+	public HashSet<String> getHostsForFile(String file) {
+		int fileId = files.getId(file);
+		if (fileId < 0)
+			return null;
+
+		HashSet<String> hostNames = new HashSet<String>();
+		for (int i = 0; i < replicas.count(fileId); i++) {
+			hostNames.add(hosts.getName(replicas.get(fileId, i)));
+		}
+
+		return hostNames;
+	}
+
+	public HashSet<String> getFilesOnHost(String host) {
+		int hostId = hosts.getId(host);
+		if (hostId < 0)
+			return null;
+
+		int[] hostFiles = filesOnHost.array(hostId);
+		int count = filesOnHost.size(hostId);
+		HashSet<String> fileNames = new HashSet<String>(Math.max(16, count * 2));
+		for (int i = 0; i < count; i++) {
+			fileNames.add(files.getName(hostFiles[i]));
+		}
+
+		return fileNames;
+	}
+
+	/**
+	 * Saves the graph to a compact binary snapshot: the dictionaries with their
+	 * hash tables, the replica table, the host lists in CSR form and the host
+	 * failure domains.
+	 */
+	public void writeSnapshot(Path path) throws IOException {
+		try (SnapshotWriter writer = new SnapshotWriter(path, SNAPSHOT_KIND)) {
+			files.writeTo(writer);
+			hosts.writeTo(writer);
+			replicas.writeTo(writer, files.getIdLimit());
+			filesOnHost.writeTo(writer, hosts.getIdLimit());
+			domains.writeTo(writer);
+			ensureHostDomains(hosts.getIdLimit());
+			writer.writeInt(hosts.getIdLimit());
+			writer.writeInts(hostDomains, 0, hosts.getIdLimit());
+			writer.sync();
+		}
+	}
+
+	/**
+	 * Reopens a snapshot written by {@link #writeSnapshot(Path)}. The file is
+	 * memory-mapped and its arrays are copied out in bulk; names are not hashed
+	 * again.
+	 */
+	public static ClusterGraph readSnapshot(Path path) throws IOException {
+		try (SnapshotReader reader = new SnapshotReader(path, SNAPSHOT_KIND)) {
+			ClusterGraph graph = new ClusterGraph();
+			graph.files = NodeDictionary.readFrom(reader);
+			graph.hosts = NodeDictionary.readFrom(reader);
+			graph.replicas = ReplicaTable.readFrom(reader);
+			graph.replicationQueue = new ReplicationQueue(graph.files.getIdLimit(), graph.replicas.getReplicationFactor());
+			graph.enqueueUnderReplicated(true);
+			graph.filesOnHost = IntLists.readFrom(reader);
+			graph.domains = NodeDictionary.readFrom(reader);
+			int hostIdLimit = reader.readInt();
+			graph.ensureHostDomains(hostIdLimit);
+			reader.readInts(graph.hostDomains, 0, hostIdLimit);
+			graph.markRebuild();
+			return graph;
+		}
+	}
+
+	public void removeAll() {
+		files.clear();
+		hosts.clear();
+		replicas.clearAll();
+		replicationQueue.clear();
+		filesOnHost.clearAll();
+		domains.clear();
+		Arrays.fill(hostDomains, NONE);
+		if (loadIndex != null)
+			loadIndex.clear();
+		markRebuild();
+	}
+
+	/**
+	 * Index of the host loads. It is built on the first call and from then on
+	 * kept up to date by every change, at O(log hosts) per changed host.
+	 */
+	public HostLoadIndex getLoadIndex() {
+		if (loadIndex == null) {
+			loadIndex = new HostLoadIndex(hosts.getIdLimit());
+			for (int hostId = 0; hostId < hosts.getIdLimit(); hostId++) {
+				if (getHostName(hostId) != null)
+					loadIndex.update(hostId, filesOnHost.size(hostId));
+			}
+		}
+
+		return loadIndex;
+	}
+
+	public boolean hasLoadIndex() {
+		return loadIndex != null;
+	}
+
+	/**
+	 * Makes the changes since the last call visible to readers of
+	 * {@link #getVersion()} as a new immutable version, and returns it. Only the
+	 * chunks of ids that changed are copied. Must be called by the thread that
+	 * changes the graph.
+	 */
+	public GraphVersion publish() {
+		GraphVersion current = version;
+		if (rebuildVersion) {
+			current = GraphVersion.build(this, current.getNumber() + 1);
+		} else if (dirtyFiles.size() > 0 || dirtyHosts.size() > 0) {
+			current = current.update(this, current.getNumber() + 1, dirtyFiles, dirtyHosts);
+		} else {
+			return current;
+		}
+
+		rebuildVersion = false;
+		dirtyFiles.clear();
+		dirtyHosts.clear();
+		unpublished = false;
+		version = current;
+		return current;
+	}
+
+	/**
+	 * Whether the graph changed since the last {@link #publish()}. Safe to call
+	 * from any thread.
+	 */
+	public boolean hasUnpublishedChanges() {
+		return unpublished;
+	}
+
+	/**
+	 * The last published version. Safe to call from any thread without a lock;
+	 * the version does not change while it is read.
+	 */
+	public GraphVersion getVersion() {
+		return version;
+	}
+
+	/*
+	 * Queues every file short of copies, e.g. after the factor was raised. A
+	 * snapshot does not record the queue, so after loading one a file with no
+	 * copy counts as lost
+	 */
+	private void enqueueUnderReplicated(boolean includeLost) {
+		int factor = replicas.getReplicationFactor();
+		for (int fileId = 0; fileId < files.getIdLimit(); fileId++) {
+			int count = replicas.count(fileId);
+			if (files.contains(fileId) && !replicationQueue.contains(fileId) && count < factor && (count > 0 || includeLost))
+				replicationQueue.add(fileId, count);
+		}
+	}
+
+	private void markFile(int fileId) {
+		dirtyFiles.mark(fileId);
+		if (!unpublished)
+			unpublished = true;
+	}
+
+	private void markHost(int hostId) {
+		dirtyHosts.mark(hostId);
+		if (!unpublished)
+			unpublished = true;
+
+		// Every change to a host's file list marks it, which keeps the index current
+		if (loadIndex != null)
+			loadIndex.update(hostId, filesOnHost.size(hostId));
+	}
+
+	private void markRebuild() {
+		rebuildVersion = true;
+		unpublished = true;
+	}
+
+	private void ensureHostDomains(int hostLimit) {
+		if (hostLimit > hostDomains.length) {
+			int oldLength = hostDomains.length;
+			hostDomains = Arrays.copyOf(hostDomains, Math.max(hostLimit, oldLength * 2));
+			Arrays.fill(hostDomains, oldLength, hostDomains.length, NONE);
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringBuffer output = new StringBuffer();
+
+		for (int hostId = 0; hostId < hosts.getIdLimit(); hostId++) {
+			String host = hosts.getName(hostId);
+			if (host == null)
+				continue;
+
+			output.append(host + " => ");
+
+			int[] hostFiles = filesOnHost.array(hostId);
+			int count = filesOnHost.size(hostId);
+			for (int i = 0; i < count; i++) {
+				output.append(files.getName(hostFiles[i]) + " | ");
+			}
+
+			output.append("\r\n");
+		}
+
+		for (int fileId = 0; fileId < files.getIdLimit(); fileId++) {
+			String file = files.getName(fileId);
+			if (file == null)
+				continue;
+
+			output.append(file + " => ");
+
+			for (int i = 0; i < replicas.count(fileId); i++) {
+				output.append(hosts.getName(replicas.get(fileId, i)) + " | ");
+			}
+
+			output.append("\r\n");
+		}
+
+		return output.toString();
+	}
+}
@@ -0,0 +1,42 @@
+package com.filecluster.graph;
+
+import java.util.Arrays;
+
+/**
+ * Chunks of an id space changed since the last published
+ * {@link GraphVersion}. Marking an id costs one array read once its chunk is
+ * marked.
+ */
+class DirtyChunks {
+	private boolean[] marked = new boolean[16];
+	private int[] chunks = new int[16];
+	private int count;
+
+	void mark(int id) {
+		int chunk = id >>> GraphVersion.CHUNK_SHIFT;
+		if (chunk >= marked.length)
+			marked = Arrays.copyOf(marked, Math.max(chunk + 1, marked.length * 2));
+
+		if (!marked[chunk]) {
+			marked[chunk] = true;
+			if (count == chunks.length)
+				chunks = Arrays.copyOf(chunks, count * 2);
+			chunks[count++] = chunk;
+		}
+	}
+
+	int size() {
+		return count;
+	}
+
+	int get(int index) {
+		return chunks[index];
+	}
+
+	void clear() {
+		for (int i = 0; i < count; i++) {
+			marked[chunks[i]] = false;
+		}
+		count = 0;
+	}
+}
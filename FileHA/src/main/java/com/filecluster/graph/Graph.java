@@ -1,99 +1,163 @@
 package com.filecluster.graph;
 
-import java.util.HashMap;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
 
+/**
+ * Undirected graph keyed by node name. Names are interned to int ids by a
+ * {@link NodeDictionary} and edges are kept in compact int adjacency lists, so
+ * the per-edge cost is a couple of ints rather than two HashSet entries.
+ */
 public class Graph {
-	Map<String, HashSet<String>> graph;
+	private static final int SNAPSHOT_KIND = 1;
+
+	NodeDictionary nodes;
+	IntLists adjacency;
 
 	public Graph() {
-		graph = new HashMap<String, HashSet<String>>();
+		this(16);
+	}
+
+	public Graph(int expectedNodes) {
+		nodes = new NodeDictionary(expectedNodes);
+		adjacency = new IntLists(expectedNodes);
 	}
 
 	public void addNode(String node) {
-		if (!hasNode(node))
-			graph.put(node, new HashSet<String>());
+		int id = nodes.intern(node);
+		adjacency.ensureOwners(id + 1);
 	}
 
 	public void addEdge(String source, String destination) {
-		if (!hasNode(source))
-			addNode(source);
+		int sourceId = nodes.intern(source);
+		int destinationId = nodes.intern(destination);
 
-		if (!hasNode(destination))
-			addNode(destination);
+		// Scan the shorter list for an existing edge, e.g. the file side of a file-host edge
+		boolean exists = adjacency.size(sourceId) <= adjacency.size(destinationId)
+				? adjacency.contains(sourceId, destinationId)
+				: adjacency.contains(destinationId, sourceId);
 
 		// We are using an undirected graph hence edges need to be bidirectional
-		graph.get(source).add(destination);
-		graph.get(destination).add(source);
+		if (!exists) {
+			adjacency.add(sourceId, destinationId);
+			adjacency.add(destinationId, sourceId);
+		}
 	}
 
 	public boolean hasNode(String node) {
-		return graph.containsKey(node);
+		return nodes.contains(node);
 	}
 
 	public boolean hasEdge(String source, String destination) {
-		if (graph.get(source) != null) {
-			return graph.get(source).contains(destination) && graph.get(destination).contains(source);
-		} else {
+		int sourceId = nodes.getId(source);
+		int destinationId = nodes.getId(destination);
+
+		if (sourceId < 0 || destinationId < 0)
 			return false;
-		}
+
+		return adjacency.contains(sourceId, destinationId) && adjacency.contains(destinationId, sourceId);
 	}
-	
+
 	public int getNodeCount() {
-		return graph.size();
+		return nodes.size();
+	}
+
+	public int getDegree(String node) {
+		int id = nodes.getId(node);
+		return id < 0 ? 0 : adjacency.size(id);
 	}
 
 	public void removeNode(String node) {
-		HashSet<String> connectedNodes = graph.get(node);
+		int id = nodes.getId(node);
+		if (id < 0)
+			return;
 
 		// Remove the given node from the adj. list of it's connected nodes
-		for (String connectedNode : connectedNodes) {
-			graph.get(connectedNode).remove(node);
+		int[] connectedNodes = adjacency.array(id);
+		int count = adjacency.size(id);
+		for (int i = 0; i < count; i++) {
+			adjacency.remove(connectedNodes[i], id);
 		}
 
-		graph.remove(node);
+		adjacency.clear(id);
+		nodes.remove(node);
+	}
+
+	/**
+	 * Saves the graph to a compact binary snapshot: the node dictionary with its
+	 * hash table and the adjacency lists in CSR form.
+	 */
+	public void writeSnapshot(Path path) throws IOException {
+		try (SnapshotWriter writer = new SnapshotWriter(path, SNAPSHOT_KIND)) {
+			nodes.writeTo(writer);
+			adjacency.writeTo(writer, nodes.getIdLimit());
+			writer.sync();
+		}
+	}
+
+	/**
+	 * Reopens a snapshot written by {@link #writeSnapshot(Path)} through a
+	 * memory mapping, without hashing any name again.
+	 */
+	public static Graph readSnapshot(Path path) throws IOException {
+		try (SnapshotReader reader = new SnapshotReader(path, SNAPSHOT_KIND)) {
+			Graph graph = new Graph();
+			graph.nodes = NodeDictionary.readFrom(reader);
+			graph.adjacency = IntLists.readFrom(reader);
+			return graph;
+		}
 	}
 
 	public void removeAll() {
-		graph.keySet().removeAll(graph.keySet());
+		nodes.clear();
+		adjacency.clearAll();
 	}
 
 	public HashSet<String> getConnectedNodes(String source) {
-		if (hasNode(source))
-			return graph.get(source);
-		else
+		int id = nodes.getId(source);
+		if (id < 0)
 			return null;
+
+		return toNameSet(id, -1);
 	}
 
 	public HashSet<String> getConnectedNodes(String source, String filterNode) {
-		HashSet<String> filteredNodes = new HashSet<String>();
-		HashSet<String> allConnectedNodes = getConnectedNodes(source);
+		int id = nodes.getId(source);
+		if (id < 0)
+			return null;
 
-		if (allConnectedNodes != null) {
-			for (String node : allConnectedNodes) {
-				if (!node.equals(filterNode))
-					filteredNodes.add(node);
-			}
+		return toNameSet(id, nodes.getId(filterNode));
+	}
 
-			return filteredNodes;
-		} else {
-			return null;
+	private HashSet<String> toNameSet(int id, int filterId) {
+		int[] connectedNodes = adjacency.array(id);
+		int count = adjacency.size(id);
+		HashSet<String> names = new HashSet<String>(Math.max(16, count * 2));
+
+		for (int i = 0; i < count; i++) {
+			if (connectedNodes[i] != filterId)
+				names.add(nodes.getName(connectedNodes[i]));
 		}
 
+		return names;
 	}
 
 	@Override
 	public String toString() {
 		StringBuffer output = new StringBuffer();
 
-		for (String node : graph.keySet()) {
+		for (int id = 0; id < nodes.getIdLimit(); id++) {
+			String node = nodes.getName(id);
+			if (node == null)
+				continue;
+
 			output.append(node + " => ");
 
-			HashSet<String> connectedNodes = graph.get(node);
-			for (String connectedNode : connectedNodes) {
-				output.append(connectedNode + " | ");
+			int[] connectedNodes = adjacency.array(id);
+			int count = adjacency.size(id);
+			for (int i = 0; i < count; i++) {
+				output.append(nodes.getName(connectedNodes[i]) + " | ");
 			}
 
 			output.append("\r\n");
@@ -0,0 +1,275 @@
+package com.filecluster.graph;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Immutable view of a {@link ClusterGraph} as of one
+ * {@link ClusterGraph#publish()}. Any number of threads may read a version
+ * without locks while the graph keeps changing.
+ * <p>
+ * Every array is split into chunks of {@link #CHUNK_SIZE} ids. Publishing
+ * copies only the chunks touched since the previous version and shares the
+ * others with it, so its cost follows the size of the change rather than the
+ * size of the cluster.
+ */
+public final class GraphVersion {
+	static final int CHUNK_SHIFT = 8;
+	static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+	static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+	private final long number;
+	private final int replicationFactor;
+	private final VersionedNames files, hosts;
+	private final int[][] replicaCounts; // By file chunk
+	private final int[][] replicaHosts; // By file chunk, replicationFactor slots per file
+	private final int[][] hostLoads; // By host chunk
+
+	private GraphVersion(long number, int replicationFactor, VersionedNames files, VersionedNames hosts,
+			int[][] replicaCounts, int[][] replicaHosts, int[][] hostLoads) {
+		this.number = number;
+		this.replicationFactor = replicationFactor;
+		this.files = files;
+		this.hosts = hosts;
+		this.replicaCounts = replicaCounts;
+		this.replicaHosts = replicaHosts;
+		this.hostLoads = hostLoads;
+	}
+
+	static GraphVersion build(ClusterGraph graph, long number) {
+		VersionedNames files = VersionedNames.build(graph.files);
+		VersionedNames hosts = VersionedNames.build(graph.hosts);
+		int[][] replicaCounts = new int[VersionedNames.chunkCount(graph.files.getIdLimit())][];
+		int[][] replicaHosts = new int[replicaCounts.length][];
+		int[][] hostLoads = new int[VersionedNames.chunkCount(graph.hosts.getIdLimit())][];
+
+		for (int chunk = 0; chunk < replicaCounts.length; chunk++) {
+			copyFileChunk(graph, chunk, replicaCounts, replicaHosts);
+		}
+		for (int chunk = 0; chunk < hostLoads.length; chunk++) {
+			copyHostChunk(graph, chunk, hostLoads);
+		}
+
+		return new GraphVersion(number, graph.getReplicationFactor(), files, hosts, replicaCounts, replicaHosts,
+				hostLoads);
+	}
+
+	/**
+	 * The next version, with the dirty chunks read again from the graph.
+	 */
+	GraphVersion update(ClusterGraph graph, long number, DirtyChunks dirtyFiles, DirtyChunks dirtyHosts) {
+		VersionedNames files = dirtyFiles.size() == 0 ? this.files : this.files.update(graph.files, dirtyFiles);
+		VersionedNames hosts = dirtyHosts.size() == 0 ? this.hosts : this.hosts.update(graph.hosts, dirtyHosts);
+
+		int fileChunks = Math.max(replicaCounts.length, VersionedNames.chunkCount(graph.files.getIdLimit()));
+		int[][] replicaCounts = Arrays.copyOf(this.replicaCounts, fileChunks);
+		int[][] replicaHosts = Arrays.copyOf(this.replicaHosts, fileChunks);
+		for (int d = 0; d < dirtyFiles.size(); d++) {
+			copyFileChunk(graph, dirtyFiles.get(d), replicaCounts, replicaHosts);
+		}
+
+		int hostChunks = Math.max(hostLoads.length, VersionedNames.chunkCount(graph.hosts.getIdLimit()));
+		int[][] hostLoads = Arrays.copyOf(this.hostLoads, hostChunks);
+		for (int d = 0; d < dirtyHosts.size(); d++) {
+			copyHostChunk(graph, dirtyHosts.get(d), hostLoads);
+		}
+
+		return new GraphVersion(number, replicationFactor, files, hosts, replicaCounts, replicaHosts, hostLoads);
+	}
+
+	/**
+	 * Increases with every publish that changed something.
+	 */
+	public long getNumber() {
+		return number;
+	}
+
+	public int getReplicationFactor() {
+		return replicationFactor;
+	}
+
+	public int getFileCount() {
+		return files.size();
+	}
+
+	public int getHostCount() {
+		return hosts.size();
+	}
+
+	public boolean hasFile(String file) {
+		return files.getId(file) >= 0;
+	}
+
+	public boolean hasHost(String host) {
+		return hosts.getId(host) >= 0;
+	}
+
+	public int getReplicaCount(String file) {
+		int fileId = files.getId(file);
+		return fileId < 0 ? 0 : replicaCount(fileId);
+	}
+
+	/**
+	 * Names of the hosts holding a copy of the file, or null if there is no
+	 * such file.
+	 */
+	public HashSet<String> getHostsForFile(String file) {
+		int fileId = files.getId(file);
+		if (fileId < 0)
+			return null;
+
+		HashSet<String> hostNames = new HashSet<String>();
+		int[] chunk = replicaHosts[fileId >>> CHUNK_SHIFT];
+		int base = (fileId & CHUNK_MASK) * replicationFactor;
+		for (int i = 0; i < replicaCount(fileId); i++) {
+			hostNames.add(hosts.getName(chunk[base + i]));
+		}
+
+		return hostNames;
+	}
+
+	/**
+	 * Number of files on the host, 0 if there is no such host.
+	 */
+	public int getHostLoad(String host) {
+		int hostId = hosts.getId(host);
+		return hostId < 0 ? 0 : hostLoads[hostId >>> CHUNK_SHIFT][hostId & CHUNK_MASK];
+	}
+
+	/**
+	 * Read-only view of the host names.
+	 */
+	public Set<String> getHosts() {
+		return new AbstractSet<String>() {
+			@Override
+			public boolean contains(Object host) {
+				return host instanceof String && hasHost((String) host);
+			}
+
+			@Override
+			public int size() {
+				return hosts.size();
+			}
+
+			@Override
+			public Iterator<String> iterator() {
+				return new Iterator<String>() {
+					int next = advance(0);
+
+					@Override
+					public boolean hasNext() {
+						return next < hosts.getIdLimit();
+					}
+
+					@Override
+					public String next() {
+						if (!hasNext())
+							throw new NoSuchElementException();
+
+						String host = hosts.getName(next);
+						next = advance(next + 1);
+						return host;
+					}
+
+					private int advance(int hostId) {
+						while (hostId < hosts.getIdLimit() && hosts.getName(hostId) == null)
+							hostId++;
+						return hostId;
+					}
+				};
+			}
+		};
+	}
+
+	@Override
+	public String toString() {
+		StringBuffer output = new StringBuffer();
+
+		// Hosts list their files in file id order, found by inverting the replicas
+		int fileLimit = files.getIdLimit(), hostLimit = hosts.getIdLimit();
+		int[] offsets = new int[hostLimit + 1];
+		for (int fileId = 0; fileId < fileLimit; fileId++) {
+			for (int i = 0; i < replicaCount(fileId); i++) {
+				offsets[replica(fileId, i) + 1]++;
+			}
+		}
+		for (int hostId = 0; hostId < hostLimit; hostId++) {
+			offsets[hostId + 1] += offsets[hostId];
+		}
+
+		int[] hostFiles = new int[offsets[hostLimit]];
+		int[] next = Arrays.copyOf(offsets, hostLimit);
+		for (int fileId = 0; fileId < fileLimit; fileId++) {
+			for (int i = 0; i < replicaCount(fileId); i++) {
+				hostFiles[next[replica(fileId, i)]++] = fileId;
+			}
+		}
+
+		for (int hostId = 0; hostId < hostLimit; hostId++) {
+			String host = hosts.getName(hostId);
+			if (host == null)
+				continue;
+
+			output.append(host + " => ");
+			for (int i = offsets[hostId]; i < offsets[hostId + 1]; i++) {
+				output.append(files.getName(hostFiles[i]) + " | ");
+			}
+			output.append("\r\n");
+		}
+
+		for (int fileId = 0; fileId < fileLimit; fileId++) {
+			String file = files.getName(fileId);
+			if (file == null)
+				continue;
+
+			output.append(file + " => ");
+			for (int i = 0; i < replicaCount(fileId); i++) {
+				output.append(hosts.getName(replica(fileId, i)) + " | ");
+			}
+			output.append("\r\n");
+		}
+
+		return output.toString();
+	}
+
+	private int replicaCount(int fileId) {
+		int chunk = fileId >>> CHUNK_SHIFT;
+		return chunk < replicaCounts.length && replicaCounts[chunk] != null
+				? replicaCounts[chunk][fileId & CHUNK_MASK]
+				: 0;
+	}
+
+	private int replica(int fileId, int index) {
+		return replicaHosts[fileId >>> CHUNK_SHIFT][(fileId & CHUNK_MASK) * replicationFactor + index];
+	}
+
+	private static void copyFileChunk(ClusterGraph graph, int chunk, int[][] replicaCounts, int[][] replicaHosts) {
+		int factor = graph.getReplicationFactor();
+		int[] counts = new int[CHUNK_SIZE];
+		int[] hosts = new int[CHUNK_SIZE * factor];
+
+		for (int i = 0; i < CHUNK_SIZE; i++) {
+			int fileId = (chunk << CHUNK_SHIFT) | i;
+			counts[i] = graph.replicas.count(fileId);
+			for (int r = 0; r < counts[i]; r++) {
+				hosts[i * factor + r] = graph.replicas.get(fileId, r);
+			}
+		}
+
+		replicaCounts[chunk] = counts;
+		replicaHosts[chunk] = hosts;
+	}
+
+	private static void copyHostChunk(ClusterGraph graph, int chunk, int[][] hostLoads) {
+		int[] loads = new int[CHUNK_SIZE];
+		for (int i = 0; i < CHUNK_SIZE; i++) {
+			loads[i] = graph.filesOnHost.size((chunk << CHUNK_SHIFT) | i);
+		}
+
+		hostLoads[chunk] = loads;
+	}
+}
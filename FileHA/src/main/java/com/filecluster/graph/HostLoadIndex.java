@@ -0,0 +1,281 @@
+package com.filecluster.graph;
+
+import java.util.Arrays;
+
+/**
+ * Number of files on each host, kept in an indexed min-heap and an indexed
+ * max-heap so the least and the most loaded host are read in O(1) and a load
+ * change costs O(log hosts). Maintained by {@link ClusterGraph} once asked for
+ * through {@link ClusterGraph#getLoadIndex()}.
+ * <p>
+ * A host can be held out of both heaps, e.g. while it is being drained; its
+ * load is still tracked and it goes back in when let in again.
+ */
+public class HostLoadIndex {
+	private static final int ABSENT = -1;
+
+	private int[] loads;
+	private boolean[] tracked, heldOut;
+	private final Heap minHeap = new Heap(false);
+	private final Heap maxHeap = new Heap(true);
+
+	HostLoadIndex(int hostLimit) {
+		int capacity = Math.max(hostLimit, 16);
+		loads = new int[capacity];
+		tracked = new boolean[capacity];
+		heldOut = new boolean[capacity];
+		minHeap.ensureHostCapacity(capacity);
+		maxHeap.ensureHostCapacity(capacity);
+	}
+
+	/**
+	 * The least loaded host that is not held out, or -1 if there is none.
+	 */
+	public int getLeastLoadedHost() {
+		return minHeap.root();
+	}
+
+	/**
+	 * The most loaded host that is not held out, or -1 if there is none.
+	 */
+	public int getMostLoadedHost() {
+		return maxHeap.root();
+	}
+
+	/**
+	 * Writes up to hosts.length of the least loaded hosts that are not held out
+	 * to hosts, least loaded first. Returns the number written.
+	 */
+	public int getLeastLoadedHosts(int[] hosts) {
+		return minHeap.top(hosts);
+	}
+
+	/**
+	 * Writes up to hosts.length of the most loaded hosts that are not held out
+	 * to hosts, most loaded first. Returns the number written.
+	 */
+	public int getMostLoadedHosts(int[] hosts) {
+		return maxHeap.top(hosts);
+	}
+
+	public int getLoad(int host) {
+		return host >= 0 && host < loads.length && tracked[host] ? loads[host] : 0;
+	}
+
+	/**
+	 * Number of hosts in the heaps.
+	 */
+	public int size() {
+		return minHeap.size;
+	}
+
+	public void setHeldOut(int host, boolean held) {
+		ensureHostCapacity(host + 1);
+		if (heldOut[host] == held)
+			return;
+
+		heldOut[host] = held;
+		if (!tracked[host])
+			return;
+
+		if (held) {
+			minHeap.remove(host);
+			maxHeap.remove(host);
+		} else {
+			minHeap.insert(host);
+			maxHeap.insert(host);
+		}
+	}
+
+	public boolean isHeldOut(int host) {
+		return host >= 0 && host < heldOut.length && heldOut[host];
+	}
+
+	/*
+	 * Sets the load of a host, adding it if it is new
+	 */
+	void update(int host, int load) {
+		ensureHostCapacity(host + 1);
+		int previous = loads[host];
+		loads[host] = load;
+
+		if (!tracked[host]) {
+			tracked[host] = true;
+			if (!heldOut[host]) {
+				minHeap.insert(host);
+				maxHeap.insert(host);
+			}
+		} else if (!heldOut[host] && load != previous) {
+			minHeap.changed(host);
+			maxHeap.changed(host);
+		}
+	}
+
+	/*
+	 * Forgets a removed host, whose id may be given to a new host later
+	 */
+	void remove(int host) {
+		if (host < 0 || host >= loads.length || !tracked[host])
+			return;
+
+		if (!heldOut[host]) {
+			minHeap.remove(host);
+			maxHeap.remove(host);
+		}
+		tracked[host] = false;
+		heldOut[host] = false;
+		loads[host] = 0;
+	}
+
+	void clear() {
+		minHeap.clear();
+		maxHeap.clear();
+		Arrays.fill(loads, 0);
+		Arrays.fill(tracked, false);
+		Arrays.fill(heldOut, false);
+	}
+
+	private void ensureHostCapacity(int hostLimit) {
+		if (hostLimit > loads.length) {
+			int capacity = Math.max(hostLimit, loads.length * 2);
+			loads = Arrays.copyOf(loads, capacity);
+			tracked = Arrays.copyOf(tracked, capacity);
+			heldOut = Arrays.copyOf(heldOut, capacity);
+			minHeap.ensureHostCapacity(capacity);
+			maxHeap.ensureHostCapacity(capacity);
+		}
+	}
+
+	/*
+	 * Binary heap of host ids ordered by load, smallest first or largest first,
+	 * with each host's position so it can be moved or removed in place
+	 */
+	private class Heap {
+		final boolean largestFirst;
+		int[] heap = new int[16];
+		int[] heapIndex = new int[0];
+		int size;
+
+		Heap(boolean largestFirst) {
+			this.largestFirst = largestFirst;
+		}
+
+		int root() {
+			return size == 0 ? -1 : heap[0];
+		}
+
+		/*
+		 * The first hosts in heap order, found by walking down from the root and
+		 * taking the best of the children seen so far. Costs O(count^2) and
+		 * leaves the heap as it is
+		 */
+		int top(int[] hosts) {
+			int[] frontier = new int[hosts.length + 1];
+			int frontierSize = size == 0 ? 0 : 1;
+			int count = 0;
+
+			while (count < hosts.length && frontierSize > 0) {
+				int best = 0;
+				for (int i = 1; i < frontierSize; i++) {
+					if (before(heap[frontier[i]], heap[frontier[best]]))
+						best = i;
+				}
+
+				int index = frontier[best];
+				frontier[best] = frontier[--frontierSize];
+				hosts[count++] = heap[index];
+
+				int child = 2 * index + 1;
+				if (child < size)
+					frontier[frontierSize++] = child;
+				if (child + 1 < size)
+					frontier[frontierSize++] = child + 1;
+			}
+
+			return count;
+		}
+
+		void insert(int host) {
+			if (size == heap.length)
+				heap = Arrays.copyOf(heap, size * 2);
+
+			heap[size] = host;
+			heapIndex[host] = size;
+			size++;
+			siftUp(size - 1);
+		}
+
+		void remove(int host) {
+			int index = heapIndex[host];
+			int last = heap[--size];
+			heapIndex[host] = ABSENT;
+
+			if (index < size) {
+				heap[index] = last;
+				heapIndex[last] = index;
+				siftDown(index);
+				siftUp(heapIndex[last]);
+			}
+		}
+
+		void changed(int host) {
+			int index = heapIndex[host];
+			siftUp(index);
+			siftDown(heapIndex[host]);
+		}
+
+		void clear() {
+			for (int i = 0; i < size; i++) {
+				heapIndex[heap[i]] = ABSENT;
+			}
+			size = 0;
+		}
+
+		private boolean before(int host, int other) {
+			return largestFirst ? loads[host] > loads[other] : loads[host] < loads[other];
+		}
+
+		private void siftUp(int index) {
+			int host = heap[index];
+			while (index > 0) {
+				int parent = (index - 1) >>> 1;
+				if (!before(host, heap[parent]))
+					break;
+
+				move(heap[parent], index);
+				index = parent;
+			}
+			move(host, index);
+		}
+
+		private void siftDown(int index) {
+			int host = heap[index];
+			int half = size >>> 1;
+			while (index < half) {
+				int child = 2 * index + 1;
+				if (child + 1 < size && before(heap[child + 1], heap[child]))
+					child++;
+
+				if (!before(heap[child], host))
+					break;
+
+				move(heap[child], index);
+				index = child;
+			}
+			move(host, index);
+		}
+
+		private void move(int host, int index) {
+			heap[index] = host;
+			heapIndex[host] = index;
+		}
+
+		void ensureHostCapacity(int hostLimit) {
+			if (hostLimit > heapIndex.length) {
+				int oldLength = heapIndex.length;
+				heapIndex = Arrays.copyOf(heapIndex, hostLimit);
+				Arrays.fill(heapIndex, oldLength, hostLimit, ABSENT);
+			}
+		}
+	}
+}
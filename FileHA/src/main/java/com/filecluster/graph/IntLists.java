@@ -0,0 +1,160 @@
+package com.filecluster.graph;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A family of growable int lists addressed by a dense owner id. Each list is a
+ * plain int[] plus a length, so an adjacency entry costs four bytes instead of
+ * a boxed HashSet node. Order inside a list is not preserved on removal.
+ */
+class IntLists {
+	private static final int[] EMPTY_LIST = new int[0];
+	private static final int INITIAL_LIST_CAPACITY = 2;
+
+	private int[][] lists;
+	private int[] sizes;
+
+	IntLists(int expectedOwners) {
+		lists = new int[Math.max(expectedOwners, 16)][];
+		sizes = new int[lists.length];
+	}
+
+	void ensureOwners(int ownerLimit) {
+		if (ownerLimit > lists.length) {
+			int capacity = Math.max(ownerLimit, lists.length * 2);
+			lists = Arrays.copyOf(lists, capacity);
+			sizes = Arrays.copyOf(sizes, capacity);
+		}
+	}
+
+	void add(int owner, int value) {
+		ensureOwners(owner + 1);
+
+		int[] list = lists[owner];
+		int size = sizes[owner];
+
+		if (list == null) {
+			list = new int[INITIAL_LIST_CAPACITY];
+			lists[owner] = list;
+		} else if (size == list.length) {
+			list = Arrays.copyOf(list, size + (size >> 1) + 1);
+			lists[owner] = list;
+		}
+
+		list[size] = value;
+		sizes[owner] = size + 1;
+	}
+
+	boolean remove(int owner, int value) {
+		if (owner >= lists.length)
+			return false;
+
+		int[] list = lists[owner];
+		int size = sizes[owner];
+
+		// Scan from the end, where a host being drained loses its files
+		for (int i = size - 1; i >= 0; i--) {
+			if (list[i] == value) {
+				// Swap with the last entry, order is not significant
+				list[i] = list[size - 1];
+				sizes[owner] = size - 1;
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	boolean contains(int owner, int value) {
+		if (owner >= lists.length)
+			return false;
+
+		int[] list = lists[owner];
+		int size = sizes[owner];
+
+		for (int i = 0; i < size; i++) {
+			if (list[i] == value)
+				return true;
+		}
+
+		return false;
+	}
+
+	int size(int owner) {
+		return owner < sizes.length ? sizes[owner] : 0;
+	}
+
+	int get(int owner, int index) {
+		return lists[owner][index];
+	}
+
+	/**
+	 * Returns the backing array of the owner's list. Only the first
+	 * {@link #size(int)} entries are valid and the array must not be modified.
+	 */
+	int[] array(int owner) {
+		int[] list = owner < lists.length ? lists[owner] : null;
+		return list == null ? EMPTY_LIST : list;
+	}
+
+	void ensureListCapacity(int owner, int capacity) {
+		ensureOwners(owner + 1);
+
+		int[] list = lists[owner];
+		if (list == null)
+			lists[owner] = new int[capacity];
+		else if (list.length < capacity)
+			lists[owner] = Arrays.copyOf(list, capacity);
+	}
+
+	void clear(int owner) {
+		if (owner < lists.length) {
+			lists[owner] = null;
+			sizes[owner] = 0;
+		}
+	}
+
+	/**
+	 * Writes the lists of owners [0, ownerLimit) in CSR form: an offset array
+	 * followed by all list entries back to back.
+	 */
+	void writeTo(SnapshotWriter writer, int ownerLimit) throws IOException {
+		writer.writeInt(ownerLimit);
+
+		int offset = 0;
+		writer.writeInt(offset);
+		for (int owner = 0; owner < ownerLimit; owner++) {
+			offset += size(owner);
+			writer.writeInt(offset);
+		}
+
+		for (int owner = 0; owner < ownerLimit; owner++) {
+			writer.writeInts(array(owner), 0, size(owner));
+		}
+	}
+
+	static IntLists readFrom(SnapshotReader reader) throws IOException {
+		int ownerLimit = reader.readInt();
+		IntLists intLists = new IntLists(ownerLimit);
+
+		int[] offsets = new int[ownerLimit + 1];
+		reader.readInts(offsets, 0, offsets.length);
+
+		for (int owner = 0; owner < ownerLimit; owner++) {
+			int size = offsets[owner + 1] - offsets[owner];
+			if (size > 0) {
+				intLists.lists[owner] = new int[size];
+				intLists.sizes[owner] = size;
+				reader.readInts(intLists.lists[owner], 0, size);
+			}
+		}
+
+		return intLists;
+	}
+
+	void clearAll() {
+		Arrays.fill(lists, null);
+		Arrays.fill(sizes, 0);
+	}
+}
@@ -0,0 +1,108 @@
+package com.filecluster.graph;
+
+/**
+ * Packs names made of a UUID and one of a few known extensions, e.g.
+ * "C747800F-8337-4BAE-BC02-0F5EF1FC09F5.txt", into two longs and a kind byte,
+ * 17 bytes instead of the 80 to 120 a String of that length takes. The kind
+ * records the extension and whether the hex digits are lowercase or
+ * uppercase. Any other name, mixed case included, is kept as a String and has
+ * the kind {@link #PLAIN}. Packed names are turned back into Strings only when
+ * asked for.
+ */
+final class NameCodec {
+	static final byte FREE = 0; // No name
+	static final byte PLAIN = 1; // Kept as a String
+	// Kinds from 2 on are packed: (kind - 2) / 2 indexes EXTENSIONS, (kind - 2) % 2 is 1 for uppercase
+
+	private static final String[] EXTENSIONS = { "", ".txt", ".jpg", ".png", ".html", ".css", ".csv" };
+	private static final int UUID_LENGTH = 36;
+	private static final char[] LOWER_DIGITS = "0123456789abcdef".toCharArray();
+	private static final char[] UPPER_DIGITS = "0123456789ABCDEF".toCharArray();
+	private static final int LOWER = 0, UPPER = 1, NOT_UUID = -1;
+
+	private NameCodec() {
+	}
+
+	static byte kindOf(String name) {
+		int length = name.length();
+		if (length < UUID_LENGTH || length > UUID_LENGTH + 5)
+			return PLAIN;
+
+		int letterCase = letterCase(name);
+		if (letterCase == NOT_UUID)
+			return PLAIN;
+
+		for (int e = 0; e < EXTENSIONS.length; e++) {
+			if (length == UUID_LENGTH + EXTENSIONS[e].length() && name.startsWith(EXTENSIONS[e], UUID_LENGTH))
+				return (byte) (2 + 2 * e + letterCase);
+		}
+
+		return PLAIN;
+	}
+
+	/*
+	 * The high 64 bits of a packed name, from its first 16 hex digits
+	 */
+	static long mostSignificantBits(String name) {
+		return parseHex(name, 0, 18);
+	}
+
+	static long leastSignificantBits(String name) {
+		return parseHex(name, 19, UUID_LENGTH);
+	}
+
+	static String decode(byte kind, long mostSignificantBits, long leastSignificantBits) {
+		String extension = EXTENSIONS[(kind - 2) >> 1];
+		char[] digits = ((kind - 2) & 1) == UPPER ? UPPER_DIGITS : LOWER_DIGITS;
+		char[] chars = new char[UUID_LENGTH + extension.length()];
+
+		// 8-4-4-4-12 digits, the top nibble first
+		int position = 0;
+		for (int digit = 0; digit < 32; digit++) {
+			if (digit == 8 || digit == 12 || digit == 16 || digit == 20)
+				chars[position++] = '-';
+
+			long bits = digit < 16 ? mostSignificantBits : leastSignificantBits;
+			chars[position++] = digits[(int) (bits >>> (60 - 4 * (digit & 15))) & 0xf];
+		}
+		extension.getChars(0, extension.length(), chars, UUID_LENGTH);
+
+		return new String(chars);
+	}
+
+	/*
+	 * LOWER or UPPER for a UUID in one case, digits only counting as lowercase,
+	 * NOT_UUID otherwise
+	 */
+	private static int letterCase(String name) {
+		boolean lower = false, upper = false;
+		for (int i = 0; i < UUID_LENGTH; i++) {
+			char c = name.charAt(i);
+			if (i == 8 || i == 13 || i == 18 || i == 23) {
+				if (c != '-')
+					return NOT_UUID;
+			} else if (c >= 'a' && c <= 'f') {
+				lower = true;
+			} else if (c >= 'A' && c <= 'F') {
+				upper = true;
+			} else if (c < '0' || c > '9') {
+				return NOT_UUID;
+			}
+		}
+
+		if (lower && upper)
+			return NOT_UUID;
+		return upper ? UPPER : LOWER;
+	}
+
+	private static long parseHex(String name, int from, int to) {
+		long value = 0;
+		for (int i = from; i < to; i++) {
+			char c = name.charAt(i);
+			if (c != '-')
+				value = (value << 4) | (c <= '9' ? c - '0' : c >= 'a' ? c - 'a' + 10 : c - 'A' + 10);
+		}
+
+		return value;
+	}
+}
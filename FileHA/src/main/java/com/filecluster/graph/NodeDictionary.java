@@ -0,0 +1,369 @@
+package com.filecluster.graph;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Interns node names to dense integer ids. Names are kept in an open
+ * addressing table (linear probing) so a lookup costs one string hash and no
+ * boxing. Ids of removed names are recycled, which keeps the id space (and
+ * every array indexed by it) compact.
+ * <p>
+ * UUID-style names are stored packed, see {@link NameCodec}, and
+ * {@link #getName(int)} builds a new String for them on every call. The
+ * arrays for packed and for plain names are only made once a name of that
+ * kind shows up.
+ */
+public class NodeDictionary {
+	private static final int EMPTY = 0;
+	private static final int DELETED = -1;
+	private static final int INITIAL_CAPACITY = 16;
+	private static final int NAME_CHUNK = 1 << 16; // Names per snapshot chunk
+
+	// Slot value is (id + 1), 0 marks an empty slot and -1 a deleted one
+	private int[] slots;
+	private byte[] kinds; // NameCodec kind by id, FREE for an unused id
+	private String[] names; // Plain names by id
+	private long[] mostSignificantBits, leastSignificantBits; // Packed names by id
+	private int[] hashes;
+
+	private int[] freeIds;
+	private int freeCount;
+
+	private int size;
+	private int nextId;
+	private int usedSlots;
+
+	public NodeDictionary() {
+		this(INITIAL_CAPACITY);
+	}
+
+	public NodeDictionary(int expectedSize) {
+		int capacity = tableSizeFor(expectedSize);
+		slots = new int[capacity];
+		kinds = new byte[Math.max(expectedSize, INITIAL_CAPACITY)];
+		hashes = new int[kinds.length];
+		freeIds = new int[INITIAL_CAPACITY];
+	}
+
+	public int intern(String name) {
+		int hash = hash(name);
+		byte kind = NameCodec.kindOf(name);
+		long high = kind == NameCodec.PLAIN ? 0 : NameCodec.mostSignificantBits(name);
+		long low = kind == NameCodec.PLAIN ? 0 : NameCodec.leastSignificantBits(name);
+		int mask = slots.length - 1;
+		int index = hash & mask;
+		int firstDeleted = -1;
+
+		while (slots[index] != EMPTY) {
+			int slot = slots[index];
+			if (slot == DELETED) {
+				if (firstDeleted < 0)
+					firstDeleted = index;
+			} else if (hashes[slot - 1] == hash && matches(slot - 1, name, kind, high, low)) {
+				return slot - 1;
+			}
+			index = (index + 1) & mask;
+		}
+
+		int id = allocateId();
+		store(id, name, kind, high, low);
+		hashes[id] = hash;
+		size++;
+
+		if (firstDeleted >= 0) {
+			slots[firstDeleted] = id + 1;
+		} else {
+			slots[index] = id + 1;
+			usedSlots++;
+			if (usedSlots * 4 >= slots.length * 3)
+				rehash(slots.length * 2);
+		}
+
+		return id;
+	}
+
+	public int getId(String name) {
+		int slot = findSlot(name);
+		return slot < 0 ? -1 : slots[slot] - 1;
+	}
+
+	public boolean contains(String name) {
+		return findSlot(name) >= 0;
+	}
+
+	public boolean contains(int id) {
+		return id >= 0 && id < nextId && kinds[id] != NameCodec.FREE;
+	}
+
+	public String getName(int id) {
+		byte kind = kind(id);
+		if (kind == NameCodec.FREE)
+			return null;
+
+		return kind == NameCodec.PLAIN ? names[id]
+				: NameCodec.decode(kind, mostSignificantBits[id], leastSignificantBits[id]);
+	}
+
+	/**
+	 * Whether the name of the id is kept packed rather than as a String.
+	 */
+	public boolean isPacked(int id) {
+		return kind(id) > NameCodec.PLAIN;
+	}
+
+	public int remove(String name) {
+		int slot = findSlot(name);
+		if (slot < 0)
+			return -1;
+
+		int id = slots[slot] - 1;
+		slots[slot] = DELETED;
+		if (kinds[id] == NameCodec.PLAIN)
+			names[id] = null;
+		kinds[id] = NameCodec.FREE;
+		size--;
+
+		if (freeCount == freeIds.length)
+			freeIds = Arrays.copyOf(freeIds, freeCount * 2);
+		freeIds[freeCount++] = id;
+
+		return id;
+	}
+
+	public void ensureCapacity(int expectedSize) {
+		if (expectedSize > kinds.length)
+			grow(expectedSize);
+
+		int capacity = tableSizeFor(expectedSize);
+		if (capacity > slots.length)
+			rehash(capacity);
+	}
+
+	/**
+	 * Upper bound (exclusive) of the ids handed out so far. Arrays indexed by id
+	 * must be at least this long.
+	 */
+	public int getIdLimit() {
+		return nextId;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public void clear() {
+		Arrays.fill(slots, EMPTY);
+		Arrays.fill(kinds, 0, nextId, NameCodec.FREE);
+		if (names != null)
+			Arrays.fill(names, 0, nextId, null);
+		size = 0;
+		nextId = 0;
+		usedSlots = 0;
+		freeCount = 0;
+	}
+
+	void writeTo(SnapshotWriter writer) throws IOException {
+		writer.writeInt(nextId);
+		writer.writeInt(size);
+		writer.writeInt(usedSlots);
+		writer.writeInt(slots.length);
+		writer.writeInts(slots, 0, slots.length);
+		writer.writeInts(hashes, 0, nextId);
+		writer.writeInt(freeCount);
+		writer.writeInts(freeIds, 0, freeCount);
+
+		// Name lengths (-1 for a free id) followed by the UTF-8 bytes of every name
+		byte[][] encoded = new byte[Math.min(nextId, NAME_CHUNK)][];
+		for (int from = 0; from < nextId; from += NAME_CHUNK) {
+			int to = Math.min(nextId, from + NAME_CHUNK);
+			for (int id = from; id < to; id++) {
+				String name = getName(id);
+				encoded[id - from] = name == null ? null : name.getBytes(StandardCharsets.UTF_8);
+				writer.writeInt(encoded[id - from] == null ? -1 : encoded[id - from].length);
+			}
+			for (int id = from; id < to; id++) {
+				if (encoded[id - from] != null)
+					writer.writeBytes(encoded[id - from], 0, encoded[id - from].length);
+			}
+		}
+	}
+
+	/**
+	 * Restores a dictionary written by {@link #writeTo(SnapshotWriter)}. The
+	 * hash table is copied as is, no name is hashed again.
+	 */
+	static NodeDictionary readFrom(SnapshotReader reader) throws IOException {
+		NodeDictionary dictionary = new NodeDictionary();
+		int nextId = reader.readInt();
+
+		dictionary.nextId = nextId;
+		dictionary.size = reader.readInt();
+		dictionary.usedSlots = reader.readInt();
+		dictionary.slots = new int[reader.readInt()];
+		reader.readInts(dictionary.slots, 0, dictionary.slots.length);
+		dictionary.kinds = new byte[Math.max(nextId, INITIAL_CAPACITY)];
+		dictionary.hashes = new int[dictionary.kinds.length];
+		reader.readInts(dictionary.hashes, 0, nextId);
+		dictionary.freeCount = reader.readInt();
+		dictionary.freeIds = new int[Math.max(dictionary.freeCount, INITIAL_CAPACITY)];
+		reader.readInts(dictionary.freeIds, 0, dictionary.freeCount);
+
+		int[] lengths = new int[Math.min(nextId, NAME_CHUNK)];
+		byte[] bytes = new byte[0];
+		for (int from = 0; from < nextId; from += NAME_CHUNK) {
+			int to = Math.min(nextId, from + NAME_CHUNK);
+			int total = 0;
+			reader.readInts(lengths, 0, to - from);
+			for (int i = 0; i < to - from; i++) {
+				total += Math.max(lengths[i], 0);
+			}
+
+			if (bytes.length < total)
+				bytes = new byte[total];
+			reader.readBytes(bytes, 0, total);
+
+			int offset = 0;
+			for (int id = from; id < to; id++) {
+				int length = lengths[id - from];
+				if (length >= 0) {
+					dictionary.store(id, new String(bytes, offset, length, StandardCharsets.UTF_8));
+					offset += length;
+				}
+			}
+		}
+
+		return dictionary;
+	}
+
+	/*
+	 * Kind, packed bits and plain name of an id, for VersionedNames to copy
+	 */
+	byte kind(int id) {
+		return id >= 0 && id < nextId ? kinds[id] : NameCodec.FREE;
+	}
+
+	long getMostSignificantBits(int id) {
+		return mostSignificantBits[id];
+	}
+
+	long getLeastSignificantBits(int id) {
+		return leastSignificantBits[id];
+	}
+
+	String getPlainName(int id) {
+		return names[id];
+	}
+
+	int getHash(int id) {
+		return hashes[id];
+	}
+
+	private int findSlot(String name) {
+		int hash = hash(name);
+		int mask = slots.length - 1;
+		int index = hash & mask;
+
+		while (slots[index] != EMPTY) {
+			int slot = slots[index];
+			// Compare the hash first, so a packed name is only parsed on a likely hit
+			if (slot != DELETED && hashes[slot - 1] == hash && matches(slot - 1, name))
+				return index;
+			index = (index + 1) & mask;
+		}
+
+		return -1;
+	}
+
+	private boolean matches(int id, String name) {
+		if (kinds[id] == NameCodec.PLAIN)
+			return names[id].equals(name);
+
+		return kinds[id] == NameCodec.kindOf(name) && mostSignificantBits[id] == NameCodec.mostSignificantBits(name)
+				&& leastSignificantBits[id] == NameCodec.leastSignificantBits(name);
+	}
+
+	private boolean matches(int id, String name, byte kind, long high, long low) {
+		if (kinds[id] != kind)
+			return false;
+
+		return kind == NameCodec.PLAIN ? names[id].equals(name)
+				: mostSignificantBits[id] == high && leastSignificantBits[id] == low;
+	}
+
+	private void store(int id, String name) {
+		byte kind = NameCodec.kindOf(name);
+		long high = kind == NameCodec.PLAIN ? 0 : NameCodec.mostSignificantBits(name);
+		long low = kind == NameCodec.PLAIN ? 0 : NameCodec.leastSignificantBits(name);
+		store(id, name, kind, high, low);
+	}
+
+	private void store(int id, String name, byte kind, long high, long low) {
+		kinds[id] = kind;
+		if (kind == NameCodec.PLAIN) {
+			if (names == null)
+				names = new String[kinds.length];
+			names[id] = name;
+		} else {
+			if (mostSignificantBits == null) {
+				mostSignificantBits = new long[kinds.length];
+				leastSignificantBits = new long[kinds.length];
+			}
+			mostSignificantBits[id] = high;
+			leastSignificantBits[id] = low;
+		}
+	}
+
+	private int allocateId() {
+		if (freeCount > 0)
+			return freeIds[--freeCount];
+
+		if (nextId == kinds.length)
+			grow(kinds.length * 2);
+
+		return nextId++;
+	}
+
+	private void grow(int capacity) {
+		kinds = Arrays.copyOf(kinds, capacity);
+		hashes = Arrays.copyOf(hashes, capacity);
+		if (names != null)
+			names = Arrays.copyOf(names, capacity);
+		if (mostSignificantBits != null) {
+			mostSignificantBits = Arrays.copyOf(mostSignificantBits, capacity);
+			leastSignificantBits = Arrays.copyOf(leastSignificantBits, capacity);
+		}
+	}
+
+	private void rehash(int capacity) {
+		int[] newSlots = new int[capacity];
+		int mask = capacity - 1;
+
+		// Re-insert from the cached hashes, no string is hashed again
+		for (int id = 0; id < nextId; id++) {
+			if (kinds[id] == NameCodec.FREE)
+				continue;
+
+			int index = hashes[id] & mask;
+			while (newSlots[index] != EMPTY)
+				index = (index + 1) & mask;
+			newSlots[index] = id + 1;
+		}
+
+		slots = newSlots;
+		usedSlots = size;
+	}
+
+	static int hash(String name) {
+		int h = name.hashCode();
+		return h ^ (h >>> 16);
+	}
+
+	private static int tableSizeFor(int expectedSize) {
+		int capacity = INITIAL_CAPACITY;
+		while (capacity * 3 <= expectedSize * 4)
+			capacity <<= 1;
+		return capacity;
+	}
+}
@@ -0,0 +1,154 @@
+package com.filecluster.graph;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Fixed-degree replica store for the file side of the cluster graph. A file
+ * has at most replicationFactor copies, so its hosts live in one int array
+ * with a stride of replicationFactor slots per file id, occupied slots first.
+ * {@link #NONE} marks an empty slot.
+ */
+class ReplicaTable {
+	static final int NONE = -1;
+
+	private int replicationFactor;
+	private int[] replicaHosts;
+	private int[] counts;
+
+	ReplicaTable(int expectedFiles, int replicationFactor) {
+		if (replicationFactor < 1)
+			throw new IllegalArgumentException("Replication factor must be at least 1");
+
+		this.replicationFactor = replicationFactor;
+		counts = new int[Math.max(expectedFiles, 16)];
+		replicaHosts = new int[counts.length * replicationFactor];
+		Arrays.fill(replicaHosts, NONE);
+	}
+
+	int getReplicationFactor() {
+		return replicationFactor;
+	}
+
+	/**
+	 * Changes the number of slots per file. Fails if a file already has more
+	 * copies than the new factor allows.
+	 */
+	void setReplicationFactor(int replicationFactor) {
+		if (replicationFactor < 1)
+			throw new IllegalArgumentException("Replication factor must be at least 1");
+
+		for (int file = 0; file < counts.length; file++) {
+			if (counts[file] > replicationFactor)
+				throw new IllegalStateException("File id " + file + " has " + counts[file] + " copies, more than "
+						+ replicationFactor);
+		}
+
+		int[] resized = new int[counts.length * replicationFactor];
+		Arrays.fill(resized, NONE);
+		for (int file = 0; file < counts.length; file++) {
+			System.arraycopy(replicaHosts, file * this.replicationFactor, resized, file * replicationFactor, counts[file]);
+		}
+
+		replicaHosts = resized;
+		this.replicationFactor = replicationFactor;
+	}
+
+	void ensureCapacity(int fileLimit) {
+		if (fileLimit > counts.length) {
+			int oldLength = counts.length;
+			int capacity = Math.max(fileLimit, oldLength * 2);
+
+			counts = Arrays.copyOf(counts, capacity);
+			replicaHosts = Arrays.copyOf(replicaHosts, capacity * replicationFactor);
+			Arrays.fill(replicaHosts, oldLength * replicationFactor, replicaHosts.length, NONE);
+		}
+	}
+
+	/**
+	 * Records a copy of the file on the host. Returns false if every slot is
+	 * already taken or the host already holds a copy.
+	 */
+	boolean add(int file, int host) {
+		ensureCapacity(file + 1);
+
+		int count = counts[file];
+		if (count == replicationFactor || contains(file, host))
+			return false;
+
+		replicaHosts[file * replicationFactor + count] = host;
+		counts[file] = count + 1;
+		return true;
+	}
+
+	boolean remove(int file, int host) {
+		if (file >= counts.length)
+			return false;
+
+		int base = file * replicationFactor;
+		int last = base + counts[file] - 1;
+		for (int slot = base; slot <= last; slot++) {
+			if (replicaHosts[slot] == host) {
+				// Move the last copy into the freed slot to keep the occupied slots first
+				replicaHosts[slot] = replicaHosts[last];
+				replicaHosts[last] = NONE;
+				counts[file]--;
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	boolean contains(int file, int host) {
+		if (file >= counts.length || host == NONE)
+			return false;
+
+		int base = file * replicationFactor;
+		for (int slot = base; slot < base + counts[file]; slot++) {
+			if (replicaHosts[slot] == host)
+				return true;
+		}
+
+		return false;
+	}
+
+	int count(int file) {
+		return file < counts.length ? counts[file] : 0;
+	}
+
+	/**
+	 * The host holding the index-th copy of the file, or NONE.
+	 */
+	int get(int file, int index) {
+		return file < counts.length && index < counts[file] ? replicaHosts[file * replicationFactor + index] : NONE;
+	}
+
+	void clear(int file) {
+		if (file < counts.length) {
+			Arrays.fill(replicaHosts, file * replicationFactor, (file + 1) * replicationFactor, NONE);
+			counts[file] = 0;
+		}
+	}
+
+	void writeTo(SnapshotWriter writer, int fileLimit) throws IOException {
+		ensureCapacity(fileLimit);
+		writer.writeInt(fileLimit);
+		writer.writeInt(replicationFactor);
+		writer.writeInts(counts, 0, fileLimit);
+		writer.writeInts(replicaHosts, 0, fileLimit * replicationFactor);
+	}
+
+	static ReplicaTable readFrom(SnapshotReader reader) throws IOException {
+		int fileLimit = reader.readInt();
+		ReplicaTable table = new ReplicaTable(fileLimit, reader.readInt());
+		reader.readInts(table.counts, 0, fileLimit);
+		reader.readInts(table.replicaHosts, 0, fileLimit * table.replicationFactor);
+		return table;
+	}
+
+	void clearAll() {
+		Arrays.fill(counts, 0);
+		Arrays.fill(replicaHosts, NONE);
+	}
+}
@@ -0,0 +1,98 @@
+package com.filecluster.graph;
+
+import java.util.Arrays;
+
+/**
+ * Files that lost copies and have fewer than replicationFactor left, bucketed
+ * by their copy count. Level 0 holds the files that lost every copy. A file
+ * sits in at most one level, found through a position index, so adding,
+ * removing and moving a file are O(1). Files that were never fully replicated
+ * are not tracked.
+ */
+class ReplicationQueue {
+	private static final int NONE = -1;
+
+	private int[][] levels;
+	private int[] sizes;
+	private int[] positions; // Position of the file inside its level, NONE if not queued
+
+	ReplicationQueue(int expectedFiles, int replicationFactor) {
+		positions = new int[Math.max(expectedFiles, 16)];
+		Arrays.fill(positions, NONE);
+		reset(replicationFactor);
+	}
+
+	/**
+	 * Drops every queued file and makes room for the levels of the given factor.
+	 */
+	void reset(int replicationFactor) {
+		levels = new int[replicationFactor][];
+		sizes = new int[replicationFactor];
+		for (int level = 0; level < replicationFactor; level++) {
+			levels[level] = new int[16];
+		}
+		Arrays.fill(positions, NONE);
+	}
+
+	void ensureCapacity(int fileLimit) {
+		if (fileLimit > positions.length) {
+			int oldLength = positions.length;
+			positions = Arrays.copyOf(positions, Math.max(fileLimit, oldLength * 2));
+			Arrays.fill(positions, oldLength, positions.length, NONE);
+		}
+	}
+
+	boolean contains(int file) {
+		return file < positions.length && positions[file] != NONE;
+	}
+
+	void add(int file, int level) {
+		ensureCapacity(file + 1);
+
+		if (sizes[level] == levels[level].length)
+			levels[level] = Arrays.copyOf(levels[level], sizes[level] * 2);
+
+		levels[level][sizes[level]] = file;
+		positions[file] = sizes[level]++;
+	}
+
+	void remove(int file, int level) {
+		// Move the last file of the level into the freed position
+		int position = positions[file];
+		int last = levels[level][--sizes[level]];
+		levels[level][position] = last;
+		positions[last] = position;
+		positions[file] = NONE;
+	}
+
+	int size(int level) {
+		return sizes[level];
+	}
+
+	int get(int level, int index) {
+		return levels[level][index];
+	}
+
+	/**
+	 * Copies the files of levels [fromLevel, levels) out, fewest copies first.
+	 */
+	int[] toArray(int fromLevel) {
+		int count = 0;
+		for (int level = fromLevel; level < sizes.length; level++) {
+			count += sizes[level];
+		}
+
+		int[] files = new int[count];
+		int offset = 0;
+		for (int level = fromLevel; level < sizes.length; level++) {
+			System.arraycopy(levels[level], 0, files, offset, sizes[level]);
+			offset += sizes[level];
+		}
+
+		return files;
+	}
+
+	void clear() {
+		reset(sizes.length);
+	}
+}
@@ -0,0 +1,88 @@
+package com.filecluster.graph;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a snapshot written by {@link SnapshotWriter} through memory-mapped
+ * regions. Arrays are bulk copied out of the mapping, so nothing is parsed
+ * value by value. Regions are mapped in windows below the 2 GB mapping limit.
+ */
+class SnapshotReader implements Closeable {
+	private static final long MAX_WINDOW = 1L << 30;
+
+	private final FileChannel channel;
+	private final ByteBuffer header = ByteBuffer.allocate(Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+	private long position;
+
+	SnapshotReader(Path path, int expectedKind) throws IOException {
+		channel = FileChannel.open(path, StandardOpenOption.READ);
+
+		if (readInt() != SnapshotWriter.MAGIC)
+			throw new IOException(path + " is not a cluster graph snapshot");
+		if (readInt() != SnapshotWriter.VERSION)
+			throw new IOException("Unsupported snapshot version in " + path);
+		if (readInt() != expectedKind)
+			throw new IOException("Snapshot " + path + " holds a different kind of graph");
+	}
+
+	int readInt() throws IOException {
+		return readHeader(Integer.BYTES).getInt();
+	}
+
+	long readLong() throws IOException {
+		return readHeader(Long.BYTES).getLong();
+	}
+
+	void readInts(int[] values, int offset, int length) throws IOException {
+		while (length > 0) {
+			int count = (int) Math.min(length, MAX_WINDOW / Integer.BYTES);
+			map((long) count * Integer.BYTES).asIntBuffer().get(values, offset, count);
+			position += (long) count * Integer.BYTES;
+			offset += count;
+			length -= count;
+		}
+	}
+
+	void readBytes(byte[] values, int offset, int length) throws IOException {
+		while (length > 0) {
+			int count = (int) Math.min(length, MAX_WINDOW);
+			map(count).get(values, offset, count);
+			position += count;
+			offset += count;
+			length -= count;
+		}
+	}
+
+	// Scalars are read through the channel, mapping is only worth it for arrays
+	private ByteBuffer readHeader(int size) throws IOException {
+		header.clear().limit(size);
+		while (header.hasRemaining()) {
+			if (channel.read(header, position + header.position()) < 0)
+				throw new IOException("Snapshot is truncated");
+		}
+		position += size;
+		header.flip();
+		return header;
+	}
+
+	private MappedByteBuffer map(long size) throws IOException {
+		if (position + size > channel.size())
+			throw new IOException("Snapshot is truncated");
+
+		MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+		region.order(ByteOrder.LITTLE_ENDIAN);
+		return region;
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
@@ -0,0 +1,94 @@
+package com.filecluster.graph;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes the sections of a binary graph snapshot through a direct buffer.
+ * Values are little-endian so int arrays can be bulk copied back on common
+ * hardware.
+ */
+class SnapshotWriter implements Closeable {
+	static final int MAGIC = 0x46484153; // "FHAS"
+	static final int VERSION = 3;
+
+	private static final int BUFFER_SIZE = 1 << 20;
+
+	private final FileChannel channel;
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+	SnapshotWriter(Path path, int kind) throws IOException {
+		channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		writeInt(MAGIC);
+		writeInt(VERSION);
+		writeInt(kind);
+	}
+
+	void writeInt(int value) throws IOException {
+		if (buffer.remaining() < Integer.BYTES)
+			flush();
+		buffer.putInt(value);
+	}
+
+	void writeLong(long value) throws IOException {
+		if (buffer.remaining() < Long.BYTES)
+			flush();
+		buffer.putLong(value);
+	}
+
+	void writeInts(int[] values, int offset, int length) throws IOException {
+		while (length > 0) {
+			if (buffer.remaining() < Integer.BYTES)
+				flush();
+
+			int count = Math.min(length, buffer.remaining() / Integer.BYTES);
+			buffer.asIntBuffer().put(values, offset, count);
+			buffer.position(buffer.position() + count * Integer.BYTES);
+			offset += count;
+			length -= count;
+		}
+	}
+
+	void writeBytes(byte[] values, int offset, int length) throws IOException {
+		while (length > 0) {
+			if (!buffer.hasRemaining())
+				flush();
+
+			int count = Math.min(length, buffer.remaining());
+			buffer.put(values, offset, count);
+			offset += count;
+			length -= count;
+		}
+	}
+
+	/**
+	 * Makes the snapshot durable.
+	 */
+	void sync() throws IOException {
+		flush();
+		channel.force(true);
+	}
+
+	private void flush() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			channel.close();
+		}
+	}
+}
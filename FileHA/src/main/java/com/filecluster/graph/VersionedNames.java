@@ -0,0 +1,236 @@
+package com.filecluster.graph;
+
+import static com.filecluster.graph.GraphVersion.CHUNK_MASK;
+import static com.filecluster.graph.GraphVersion.CHUNK_SHIFT;
+import static com.filecluster.graph.GraphVersion.CHUNK_SIZE;
+
+import java.util.Arrays;
+
+/**
+ * Read-only copy of a {@link NodeDictionary} for a {@link GraphVersion}. Names
+ * and the hash table are split into chunks; a new version copies only the
+ * chunks that changed and shares the rest with the previous one, so it is
+ * never modified once published. Names stay packed as in the dictionary.
+ */
+final class VersionedNames {
+	private static final int EMPTY = 0;
+	private static final int DELETED = -1;
+
+	// Slot value is (id + 1), as in NodeDictionary
+	private NameChunk[] names;
+	private int[][] slots;
+	private boolean[] ownedSlots; // Table chunks copied for this version, only used while building it
+	private int mask;
+	private int size;
+	private int usedSlots;
+
+	private VersionedNames() {
+	}
+
+	static VersionedNames build(NodeDictionary dictionary) {
+		VersionedNames table = new VersionedNames();
+		int idLimit = dictionary.getIdLimit();
+
+		// Start half empty so later versions can insert without a rebuild
+		int capacity = CHUNK_SIZE;
+		while (capacity < dictionary.size() * 2)
+			capacity <<= 1;
+
+		table.mask = capacity - 1;
+		table.slots = new int[capacity >>> CHUNK_SHIFT][CHUNK_SIZE];
+		table.ownedSlots = null;
+		table.names = new NameChunk[chunkCount(idLimit)];
+
+		for (int chunk = 0; chunk < table.names.length; chunk++) {
+			table.names[chunk] = NameChunk.copyOf(dictionary, chunk);
+			for (int i = 0; i < CHUNK_SIZE; i++) {
+				int id = (chunk << CHUNK_SHIFT) | i;
+				if (dictionary.contains(id))
+					table.insert(dictionary.getHash(id), id);
+			}
+		}
+
+		return table;
+	}
+
+	/**
+	 * The next version of the table, with the given chunks of ids read again
+	 * from the dictionary. Falls back to a full build once the hash table runs
+	 * out of room.
+	 */
+	VersionedNames update(NodeDictionary dictionary, DirtyChunks dirty) {
+		VersionedNames table = new VersionedNames();
+		table.names = Arrays.copyOf(names, Math.max(names.length, chunkCount(dictionary.getIdLimit())));
+		table.slots = slots.clone();
+		table.ownedSlots = new boolean[slots.length];
+		table.mask = mask;
+		table.size = size;
+		table.usedSlots = usedSlots;
+
+		for (int d = 0; d < dirty.size(); d++) {
+			int chunk = dirty.get(d);
+			NameChunk oldNames = chunk < names.length ? names[chunk] : null;
+			NameChunk newNames = NameChunk.copyOf(dictionary, chunk);
+
+			for (int i = 0; i < CHUNK_SIZE; i++) {
+				int id = (chunk << CHUNK_SHIFT) | i;
+				boolean hadName = oldNames != null && oldNames.kinds[i] != NameCodec.FREE;
+				boolean hasName = newNames.kinds[i] != NameCodec.FREE;
+
+				if (hadName && hasName && oldNames.sameName(i, newNames))
+					continue;
+
+				if (hadName)
+					table.delete(NodeDictionary.hash(oldNames.getName(i)), id);
+				if (hasName) {
+					if ((table.usedSlots + 1) * 4 > (table.mask + 1) * 3)
+						return build(dictionary);
+					table.insert(dictionary.getHash(id), id);
+				}
+			}
+
+			table.names[chunk] = newNames;
+		}
+
+		table.ownedSlots = null;
+		return table;
+	}
+
+	int getId(String name) {
+		int index = NodeDictionary.hash(name) & mask;
+		byte kind = NameCodec.kindOf(name);
+		long high = kind == NameCodec.PLAIN ? 0 : NameCodec.mostSignificantBits(name);
+		long low = kind == NameCodec.PLAIN ? 0 : NameCodec.leastSignificantBits(name);
+
+		while (true) {
+			int slot = slots[index >>> CHUNK_SHIFT][index & CHUNK_MASK];
+			if (slot == EMPTY)
+				return -1;
+			if (slot != DELETED) {
+				int id = slot - 1;
+				NameChunk chunk = names[id >>> CHUNK_SHIFT];
+				if (chunk != null && chunk.matches(id & CHUNK_MASK, name, kind, high, low))
+					return id;
+			}
+			index = (index + 1) & mask;
+		}
+	}
+
+	String getName(int id) {
+		int chunk = id >>> CHUNK_SHIFT;
+		return id >= 0 && chunk < names.length && names[chunk] != null ? names[chunk].getName(id & CHUNK_MASK) : null;
+	}
+
+	int getIdLimit() {
+		return names.length << CHUNK_SHIFT;
+	}
+
+	int size() {
+		return size;
+	}
+
+	private void insert(int hash, int id) {
+		int index = hash & mask;
+		while (true) {
+			int slot = slots[index >>> CHUNK_SHIFT][index & CHUNK_MASK];
+			if (slot == EMPTY || slot == DELETED) {
+				if (slot == EMPTY)
+					usedSlots++;
+				writeSlot(index, id + 1);
+				size++;
+				return;
+			}
+			index = (index + 1) & mask;
+		}
+	}
+
+	private void delete(int hash, int id) {
+		int index = hash & mask;
+		while (true) {
+			int slot = slots[index >>> CHUNK_SHIFT][index & CHUNK_MASK];
+			if (slot == EMPTY)
+				return;
+			if (slot == id + 1) {
+				writeSlot(index, DELETED);
+				size--;
+				return;
+			}
+			index = (index + 1) & mask;
+		}
+	}
+
+	private void writeSlot(int index, int value) {
+		int chunk = index >>> CHUNK_SHIFT;
+
+		// Copy a shared chunk before its first write
+		if (ownedSlots != null && !ownedSlots[chunk]) {
+			slots[chunk] = slots[chunk].clone();
+			ownedSlots[chunk] = true;
+		}
+
+		slots[chunk][index & CHUNK_MASK] = value;
+	}
+
+	static int chunkCount(int idLimit) {
+		return (idLimit + CHUNK_SIZE - 1) >>> CHUNK_SHIFT;
+	}
+
+	/*
+	 * One chunk of names, kept packed the way the dictionary keeps them. The
+	 * plain and packed arrays are left null when the chunk has no such name.
+	 */
+	private static final class NameChunk {
+		final byte[] kinds = new byte[CHUNK_SIZE];
+		String[] plainNames;
+		long[] mostSignificantBits, leastSignificantBits;
+
+		static NameChunk copyOf(NodeDictionary dictionary, int chunk) {
+			NameChunk names = new NameChunk();
+			for (int i = 0; i < CHUNK_SIZE; i++) {
+				int id = (chunk << CHUNK_SHIFT) | i;
+				byte kind = dictionary.kind(id);
+				names.kinds[i] = kind;
+
+				if (kind == NameCodec.PLAIN) {
+					if (names.plainNames == null)
+						names.plainNames = new String[CHUNK_SIZE];
+					names.plainNames[i] = dictionary.getPlainName(id);
+				} else if (kind != NameCodec.FREE) {
+					if (names.mostSignificantBits == null) {
+						names.mostSignificantBits = new long[CHUNK_SIZE];
+						names.leastSignificantBits = new long[CHUNK_SIZE];
+					}
+					names.mostSignificantBits[i] = dictionary.getMostSignificantBits(id);
+					names.leastSignificantBits[i] = dictionary.getLeastSignificantBits(id);
+				}
+			}
+			return names;
+		}
+
+		String getName(int i) {
+			byte kind = kinds[i];
+			if (kind == NameCodec.FREE)
+				return null;
+
+			return kind == NameCodec.PLAIN ? plainNames[i]
+					: NameCodec.decode(kind, mostSignificantBits[i], leastSignificantBits[i]);
+		}
+
+		boolean sameName(int i, NameChunk other) {
+			if (kinds[i] != other.kinds[i])
+				return false;
+
+			return kinds[i] == NameCodec.PLAIN ? plainNames[i].equals(other.plainNames[i])
+					: mostSignificantBits[i] == other.mostSignificantBits[i]
+							&& leastSignificantBits[i] == other.leastSignificantBits[i];
+		}
+
+		boolean matches(int i, String name, byte kind, long high, long low) {
+			if (kinds[i] != kind)
+				return false;
+
+			return kind == NameCodec.PLAIN ? plainNames[i].equals(name)
+					: mostSignificantBits[i] == high && leastSignificantBits[i] == low;
+		}
+	}
+}
@@ -0,0 +1,433 @@
+package com.filecluster.ha;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import com.filecluster.copy.CopyExecutor;
+import com.filecluster.graph.ClusterGraph;
+import com.filecluster.graph.GraphVersion;
+import com.filecluster.metrics.ClusterMetrics;
+
+/**
+ * Thread-safe cluster built from lock-striped {@link HAFileCluster} partitions.
+ * Files are spread over the stripes by name hash and every stripe knows all
+ * hosts. Adding a file only locks its own stripe, so writers on different
+ * stripes never contend, and a failover locks one stripe at a time so ingestion
+ * into the other stripes keeps going while it runs.
+ * <p>
+ * Host and setting changes wait for a running failover, so all stripes of a
+ * failover see the same hosts.
+ * <p>
+ * Host changes and failovers publish a new {@link GraphVersion} of every
+ * stripe before its lock is released; file additions are published in
+ * batches. Lookups read the last published version and never wait for a
+ * writer or a failover.
+ */
+public class ConcurrentFileCluster implements FileCluster {
+	private final HAFileCluster[] stripes;
+	private final ReentrantLock[] locks;
+	private final ReentrantLock failoverLock = new ReentrantLock();
+	private final int stripeMask;
+	private final int[] pendingWrites; // File additions since the last publish, by stripe
+	private int rebalanceStripe; // Guarded by failoverLock
+
+	private static final int PUBLISH_INTERVAL = 256;
+
+	public ConcurrentFileCluster(int stripeCount) {
+		this(stripeCount, RandomPlacementStrategy::new);
+	}
+
+	public ConcurrentFileCluster(int stripeCount, Supplier<PlacementStrategy> placementStrategyFactory) {
+		if (stripeCount < 1)
+			throw new IllegalArgumentException("Stripe count must be at least 1");
+
+		// Round up to a power of two so a stripe is picked with a mask
+		int count = 1;
+		while (count < stripeCount)
+			count <<= 1;
+
+		stripes = new HAFileCluster[count];
+		locks = new ReentrantLock[count];
+		stripeMask = count - 1;
+		pendingWrites = new int[count];
+
+		for (int i = 0; i < count; i++) {
+			stripes[i] = new HAFileCluster();
+			stripes[i].setPlacementStrategy(placementStrategyFactory.get());
+			locks[i] = new ReentrantLock();
+		}
+	}
+
+	public int getStripeCount() {
+		return stripes.length;
+	}
+
+	@Override
+	public void addHost(String host) {
+		lockAll();
+		try {
+			for (HAFileCluster stripe : stripes) {
+				stripe.addHost(host);
+				stripe.getVersion();
+			}
+		} finally {
+			unlockAll();
+		}
+	}
+
+	@Override
+	public void addHost(String host, String failureDomain) {
+		lockAll();
+		try {
+			for (HAFileCluster stripe : stripes) {
+				stripe.addHost(host, failureDomain);
+				stripe.getVersion();
+			}
+		} finally {
+			unlockAll();
+		}
+	}
+
+	@Override
+	public void removeHost(String host) {
+		lockAll();
+		try {
+			for (HAFileCluster stripe : stripes) {
+				stripe.removeHost(host);
+				stripe.getVersion();
+			}
+		} finally {
+			unlockAll();
+		}
+	}
+
+	@Override
+	public void addFile(String file, String host) {
+		int stripe = stripeOf(file);
+		locks[stripe].lock();
+		try {
+			stripes[stripe].addFile(file, host);
+			writeCompleted(stripe);
+		} finally {
+			locks[stripe].unlock();
+		}
+	}
+
+	@Override
+	public String addFile(String file) {
+		int stripe = stripeOf(file);
+		locks[stripe].lock();
+		try {
+			String host = stripes[stripe].addFile(file);
+			writeCompleted(stripe);
+			return host;
+		} finally {
+			locks[stripe].unlock();
+		}
+	}
+
+	/**
+	 * Fails over the hosts stripe by stripe. Only the stripe being worked on is
+	 * locked; triplets are merged in stripe order.
+	 */
+	@Override
+	public List<HAInfoTriplet> performHA(String[] failedHosts) {
+		List<HAInfoTriplet> haTriplets = new ArrayList<HAInfoTriplet>();
+		performHA(failedHosts, haTriplets::add);
+		return haTriplets;
+	}
+
+	/**
+	 * Streams the triplets stripe by stripe. The consumer runs while the stripe
+	 * is locked, so it should hand the triplet on rather than block.
+	 */
+	@Override
+	public int performHA(String[] failedHosts, Consumer<HAInfoTriplet> tripletConsumer) {
+		int tripletCount = 0;
+
+		// Concurrent failovers would interleave their stripes, run them one after another
+		failoverLock.lock();
+		try {
+			for (int i = 0; i < stripes.length; i++) {
+				locks[i].lock();
+				try {
+					tripletCount += stripes[i].performHA(failedHosts, tripletConsumer);
+				} finally {
+					stripes[i].getVersion();
+					locks[i].unlock();
+				}
+			}
+		} finally {
+			failoverLock.unlock();
+		}
+
+		return tripletCount;
+	}
+
+	/**
+	 * Rebalances the stripes one after another, see
+	 * {@link HAFileCluster#rebalance(int, int, Consumer)}. Each stripe is
+	 * balanced on its own files, so hosts may differ by up to maxSkew files per
+	 * stripe. Successive calls start at successive stripes, so a small maxMoves
+	 * still reaches all of them.
+	 */
+	public int rebalance(int maxSkew, int maxMoves, Consumer<HAInfoTriplet> tripletConsumer) {
+		int movedCount = 0;
+
+		// Moves change host loads like a failover does, keep them apart
+		failoverLock.lock();
+		try {
+			int first = rebalanceStripe;
+			rebalanceStripe = (first + 1) & stripeMask;
+
+			for (int i = 0; i < stripes.length && movedCount < maxMoves; i++) {
+				int stripe = (first + i) & stripeMask;
+				locks[stripe].lock();
+				try {
+					movedCount += stripes[stripe].rebalance(maxSkew, maxMoves - movedCount, tripletConsumer);
+				} finally {
+					stripes[stripe].getVersion();
+					locks[stripe].unlock();
+				}
+			}
+		} finally {
+			failoverLock.unlock();
+		}
+
+		return movedCount;
+	}
+
+	/**
+	 * Whether every stripe is balanced on its own files, see
+	 * {@link HAFileCluster#isBalanced(int)}.
+	 */
+	public boolean isBalanced(int maxSkew) {
+		for (int i = 0; i < stripes.length; i++) {
+			locks[i].lock();
+			try {
+				if (!stripes[i].isBalanced(maxSkew))
+					return false;
+			} finally {
+				locks[i].unlock();
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Snapshot of the live host names, read without waiting for a lock
+	 */
+	@Override
+	public Set<String> getHosts() {
+		// Stripes are updated under all locks or in failover order, the last stripe
+		// is the one to see host changes last
+		return new HashSet<String>(version(stripes.length - 1).getHosts());
+	}
+
+	/**
+	 * Reads the last version published by the file's stripe, see
+	 * {@link #getVersion(String)}.
+	 */
+	@Override
+	public Set<String> getHostsForFile(String fileName) {
+		return version(stripeOf(fileName)).getHostsForFile(fileName);
+	}
+
+	@Override
+	public void deleteCluster() {
+		lockAll();
+		try {
+			for (HAFileCluster stripe : stripes) {
+				stripe.deleteCluster();
+				stripe.getVersion();
+			}
+		} finally {
+			unlockAll();
+		}
+	}
+
+	public void setParallelism(int parallelism) {
+		lockAll();
+		try {
+			for (HAFileCluster stripe : stripes) {
+				stripe.setParallelism(parallelism);
+			}
+		} finally {
+			unlockAll();
+		}
+	}
+
+	public void setReplicationFactor(int replicationFactor) {
+		lockAll();
+		try {
+			for (HAFileCluster stripe : stripes) {
+				stripe.setReplicationFactor(replicationFactor);
+				stripe.getVersion();
+			}
+		} finally {
+			unlockAll();
+		}
+	}
+
+	public void setMaxFailedHosts(int maxFailedHosts) {
+		lockAll();
+		try {
+			for (HAFileCluster stripe : stripes) {
+				stripe.setMaxFailedHosts(maxFailedHosts);
+			}
+		} finally {
+			unlockAll();
+		}
+	}
+
+	/**
+	 * Sets the read budget of a host in every stripe, see
+	 * {@link HAFileCluster#setSourceBandwidth(String, int)}.
+	 */
+	public void setSourceBandwidth(String host, int bandwidth) {
+		lockAll();
+		try {
+			for (HAFileCluster stripe : stripes) {
+				stripe.setSourceBandwidth(host, bandwidth);
+			}
+		} finally {
+			unlockAll();
+		}
+	}
+
+	/**
+	 * Shares one copy executor between all stripes, see
+	 * {@link HAFileCluster#setCopyExecutor(CopyExecutor)}.
+	 */
+	public void setCopyExecutor(CopyExecutor copyExecutor) {
+		lockAll();
+		try {
+			for (HAFileCluster stripe : stripes) {
+				stripe.setCopyExecutor(copyExecutor);
+			}
+		} finally {
+			unlockAll();
+		}
+	}
+
+	/**
+	 * Shares one set of metrics between all stripes. Host loads are summed over
+	 * the stripes, each read under its lock.
+	 */
+	public void setMetrics(ClusterMetrics metrics) {
+		lockAll();
+		try {
+			for (HAFileCluster stripe : stripes) {
+				stripe.setMetrics(metrics);
+			}
+			if (metrics != null)
+				metrics.setHostLoads(this::getHostLoads);
+		} finally {
+			unlockAll();
+		}
+	}
+
+	private long[] getHostLoads() {
+		Map<String, Long> loads = new HashMap<String, Long>();
+		for (int i = 0; i < stripes.length; i++) {
+			locks[i].lock();
+			try {
+				HAFileCluster stripe = stripes[i];
+				for (int h = 0; h < stripe.hosts.size(); h++) {
+					int hostId = stripe.hosts.get(h);
+					loads.merge(stripe.clusterGraph.getHostName(hostId), (long) stripe.clusterGraph.getFileCount(hostId),
+							Long::sum);
+				}
+			} finally {
+				locks[i].unlock();
+			}
+		}
+
+		long[] result = new long[loads.size()];
+		int index = 0;
+		for (long load : loads.values()) {
+			result[index++] = load;
+		}
+		return result;
+	}
+
+	/**
+	 * Lists every stripe as of its last published version, without waiting for
+	 * a lock.
+	 */
+	@Override
+	public String toString() {
+		StringBuffer output = new StringBuffer();
+
+		for (int i = 0; i < stripes.length; i++) {
+			output.append(version(i).toString());
+		}
+
+		return output.toString();
+	}
+
+	/**
+	 * The last published version of the stripe holding the file. It reflects
+	 * every write that returned before the call unless a writer holds the
+	 * stripe right now, in which case it may lag by up to PUBLISH_INTERVAL file
+	 * additions. The call never waits for a lock.
+	 */
+	public GraphVersion getVersion(String file) {
+		return version(stripeOf(file));
+	}
+
+	/*
+	 * A stale stripe is published by the reader if its lock is free, otherwise
+	 * the reader makes do with the previous version
+	 */
+	private GraphVersion version(int stripe) {
+		ClusterGraph graph = stripes[stripe].clusterGraph;
+		if (graph.hasUnpublishedChanges() && locks[stripe].tryLock()) {
+			try {
+				return graph.publish();
+			} finally {
+				locks[stripe].unlock();
+			}
+		}
+
+		return graph.getVersion();
+	}
+
+	// Called with the stripe locked. Single files are published in batches
+	private void writeCompleted(int stripe) {
+		if (++pendingWrites[stripe] >= PUBLISH_INTERVAL) {
+			stripes[stripe].getVersion();
+			pendingWrites[stripe] = 0;
+		}
+	}
+
+	private int stripeOf(String file) {
+		int h = file.hashCode();
+		return (h ^ (h >>> 16)) & stripeMask;
+	}
+
+	// Locks are always taken in index order so host changes cannot deadlock. The
+	// failover lock comes first, so a host or setting change waits for a running
+	// failover instead of landing between two of its stripes
+	private void lockAll() {
+		failoverLock.lock();
+		for (ReentrantLock lock : locks) {
+			lock.lock();
+		}
+	}
+
+	private void unlockAll() {
+		for (int i = locks.length - 1; i >= 0; i--) {
+			locks[i].unlock();
+		}
+		failoverLock.unlock();
+	}
+}
@@ -0,0 +1,64 @@
+package com.filecluster.ha;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Streams the lines of a "file,host" or "file" CSV as rows, skipping blank
+ * lines. Values are trimmed; quoting is not supported as names cannot contain
+ * commas.
+ */
+class CsvRows implements Iterator<String[]> {
+	private static final int READ_BUFFER_SIZE = 1 << 16;
+
+	private final BufferedReader reader;
+	private String[] nextRow;
+
+	CsvRows(Reader reader) {
+		this.reader = reader instanceof BufferedReader ? (BufferedReader) reader
+				: new BufferedReader(reader, READ_BUFFER_SIZE);
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (nextRow == null)
+			nextRow = readRow();
+
+		return nextRow != null;
+	}
+
+	@Override
+	public String[] next() {
+		if (!hasNext())
+			throw new NoSuchElementException();
+
+		String[] row = nextRow;
+		nextRow = null;
+		return row;
+	}
+
+	private String[] readRow() {
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.isEmpty())
+					continue;
+
+				int comma = line.indexOf(',');
+				if (comma < 0)
+					return new String[] { line };
+
+				return new String[] { line.substring(0, comma).trim(), line.substring(comma + 1).trim() };
+			}
+
+			return null;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+}
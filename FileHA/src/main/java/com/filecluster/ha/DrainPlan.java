@@ -0,0 +1,89 @@
+package com.filecluster.ha;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import com.filecluster.copy.CopyExecutor;
+
+/**
+ * Moves the files off a host being decommissioned, one batch at a time, so a
+ * maintenance does not start all of its copies at once. The caller paces the
+ * batches, e.g. asks for the next one once the copies of the previous one are
+ * done. Every copy is read from the draining host, so the source limit of a
+ * {@link CopyExecutor} also caps how many of them run together.
+ * <p>
+ * Made by {@link HAFileCluster#decommissionHost(String, int)} and used from
+ * the cluster's thread, like the cluster. A plan whose host was removed,
+ * failed or stopped draining hands out no more moves.
+ */
+public class DrainPlan {
+	private final HAFileCluster cluster;
+	private final String host;
+	private final int batchSize;
+	private int movedCount;
+
+	DrainPlan(HAFileCluster cluster, String host, int batchSize) {
+		this.cluster = cluster;
+		this.host = host;
+		this.batchSize = batchSize;
+	}
+
+	public String getHost() {
+		return host;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * Number of files moved off the host by this plan so far.
+	 */
+	public int getMovedCount() {
+		return movedCount;
+	}
+
+	/**
+	 * Number of files still on the host.
+	 */
+	public int getRemainingCount() {
+		int hostId = cluster.clusterGraph.getHostId(host);
+		return hostId < 0 ? 0 : cluster.clusterGraph.getFileCount(hostId);
+	}
+
+	public boolean isDrained() {
+		return getRemainingCount() == 0;
+	}
+
+	/**
+	 * Moves the next batch of files and returns their copies, empty once the
+	 * host is drained.
+	 */
+	public List<HAInfoTriplet> nextBatch() {
+		List<HAInfoTriplet> haTriplets = new ArrayList<HAInfoTriplet>();
+		nextBatch(haTriplets::add);
+		return haTriplets;
+	}
+
+	/**
+	 * Moves the next batch of files, handing every copy to the consumer. Returns
+	 * the number of files moved.
+	 */
+	public int nextBatch(Consumer<HAInfoTriplet> tripletConsumer) {
+		int moved = cluster.drain(host, batchSize, tripletConsumer);
+		movedCount += moved;
+		return moved;
+	}
+
+	/**
+	 * Removes the drained host from the cluster.
+	 */
+	public void complete() {
+		int remaining = getRemainingCount();
+		if (remaining > 0)
+			throw new IllegalStateException(remaining + " files are still on " + host);
+
+		cluster.removeHost(host);
+	}
+}
@@ -0,0 +1,285 @@
+package com.filecluster.ha;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.filecluster.copy.CopyExecutor;
+
+/**
+ * Turns host-down and host-up events into failovers. Events arriving within
+ * a window of the first one are merged into a single batch: only the last
+ * event of a host counts, so a host that goes down and comes back inside the
+ * window is left alone, and hosts failing a few seconds apart are failed over
+ * in one {@link FileCluster#performHA(String[], Consumer)} call. Once that
+ * call succeeds the copies still pending to the failed hosts are cancelled;
+ * their files were failed over from their other copies with the rest.
+ * <p>
+ * A failover that throws, e.g. because more hosts failed at once than the
+ * cluster allows, changes nothing and cancels nothing. It is reported to the
+ * failure handler, and its failed hosts are carried into the next batch, so
+ * they are failed over once the cause is gone, e.g. the limit was raised or
+ * one of the hosts came back. Without new events the carried ones are tried
+ * again after the retry delay.
+ * <p>
+ * Batches run on the scheduler's own thread, so the cluster must be safe to
+ * use from it, e.g. a {@link ConcurrentFileCluster}, or not be used by anyone
+ * else.
+ */
+public class FailoverScheduler implements Closeable {
+	private static final Logger logger = Logger.getLogger(FailoverScheduler.class.getName());
+
+	public static final long DEFAULT_WINDOW_MILLIS = 2000;
+	public static final long DEFAULT_RETRY_DELAY_MILLIS = 5000;
+
+	private static final HostEvent SHUTDOWN = new HostEvent(null, null, false);
+
+	private final FileCluster cluster;
+	private final long windowMillis;
+	private final CopyExecutor copyExecutor;
+	private final BlockingQueue<HostEvent> events = new LinkedBlockingQueue<HostEvent>();
+	private final Thread thread;
+
+	private volatile Consumer<HAInfoTriplet> tripletConsumer;
+	private volatile BiConsumer<List<String>, RuntimeException> failureHandler;
+	private volatile long retryDelayMillis = DEFAULT_RETRY_DELAY_MILLIS;
+	private volatile boolean closed;
+
+	private final List<HostEvent> carriedEvents = new ArrayList<HostEvent>(); // Scheduler thread only
+
+	private long submittedCount, processedCount, batchCount; // Guarded by this
+
+	private static class HostEvent {
+		final String host, failureDomain;
+		final boolean up;
+
+		HostEvent(String host, String failureDomain, boolean up) {
+			this.host = host;
+			this.failureDomain = failureDomain;
+			this.up = up;
+		}
+	}
+
+	public FailoverScheduler(FileCluster cluster, long windowMillis) {
+		this(cluster, windowMillis, null);
+	}
+
+	/**
+	 * Creates a scheduler that also cancels the copies the given executor still
+	 * has pending to a failed host. Pass the executor the cluster copies with.
+	 */
+	public FailoverScheduler(FileCluster cluster, long windowMillis, CopyExecutor copyExecutor) {
+		if (windowMillis < 0)
+			throw new IllegalArgumentException("Window must not be negative");
+
+		this.cluster = cluster;
+		this.windowMillis = windowMillis;
+		this.copyExecutor = copyExecutor;
+
+		thread = new Thread(this::run, "failover-scheduler");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Receives the triplets of every failover the scheduler runs.
+	 */
+	public void setTripletConsumer(Consumer<HAInfoTriplet> tripletConsumer) {
+		this.tripletConsumer = tripletConsumer;
+	}
+
+	/**
+	 * Receives the failed hosts and the error of every failover that threw.
+	 * Without a handler the failure is only logged.
+	 */
+	public void setFailureHandler(BiConsumer<List<String>, RuntimeException> failureHandler) {
+		this.failureHandler = failureHandler;
+	}
+
+	/**
+	 * Time after a failover threw before its hosts are tried again, unless a
+	 * new event starts a batch sooner.
+	 */
+	public void setRetryDelay(long retryDelayMillis) {
+		if (retryDelayMillis < 0)
+			throw new IllegalArgumentException("Retry delay must not be negative");
+
+		this.retryDelayMillis = retryDelayMillis;
+	}
+
+	public void hostDown(String host) {
+		submit(new HostEvent(host, null, false));
+	}
+
+	/**
+	 * Reports a host as up. A host new to the cluster is added when the batch
+	 * runs, ahead of the failover, so it can take copies.
+	 */
+	public void hostUp(String host) {
+		submit(new HostEvent(host, null, true));
+	}
+
+	public void hostUp(String host, String failureDomain) {
+		submit(new HostEvent(host, failureDomain, true));
+	}
+
+	/**
+	 * Waits until every event reported so far has been handled.
+	 */
+	public synchronized void awaitIdle() throws InterruptedException {
+		while (processedCount < submittedCount)
+			wait();
+	}
+
+	/**
+	 * Number of batches handled, each with at most one failover.
+	 */
+	public synchronized long getBatchCount() {
+		return batchCount;
+	}
+
+	/**
+	 * Handles the events already reported and stops the scheduler thread.
+	 */
+	@Override
+	public void close() {
+		if (closed)
+			return;
+		closed = true;
+
+		events.add(SHUTDOWN);
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void submit(HostEvent event) {
+		if (closed)
+			throw new IllegalStateException("Failover scheduler is closed");
+
+		synchronized (this) {
+			submittedCount++;
+		}
+		events.add(event);
+	}
+
+	private void run() {
+		List<HostEvent> batch = new ArrayList<HostEvent>();
+
+		while (true) {
+			boolean shutdown = false;
+			try {
+				// Carried failures are retried on their own once no event came in time
+				HostEvent first = carriedEvents.isEmpty() ? events.take()
+						: events.poll(retryDelayMillis, TimeUnit.MILLISECONDS);
+				if (first == SHUTDOWN)
+					return;
+
+				// Gather the events of the window opened by the first one
+				if (first != null) {
+					batch.add(first);
+					long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(windowMillis);
+					while (true) {
+						HostEvent event = events.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+						if (event == null)
+							break;
+						if (event == SHUTDOWN) {
+							shutdown = true;
+							break;
+						}
+						batch.add(event);
+					}
+				}
+			} catch (InterruptedException e) {
+				return;
+			}
+
+			int eventCount = batch.size();
+			batch.addAll(0, carriedEvents);
+			carriedEvents.clear();
+			try {
+				runBatch(batch);
+			} catch (RuntimeException e) {
+				logger.severe("Failover of " + batch.size() + " host events failed: " + e);
+			}
+
+			synchronized (this) {
+				processedCount += eventCount;
+				batchCount++;
+				notifyAll();
+			}
+			batch.clear();
+
+			if (shutdown)
+				return;
+		}
+	}
+
+	private void runBatch(List<HostEvent> batch) {
+		// The last event of a host decides what happens to it
+		Map<String, HostEvent> lastEvents = new LinkedHashMap<String, HostEvent>();
+		for (HostEvent event : batch) {
+			lastEvents.remove(event.host);
+			lastEvents.put(event.host, event);
+		}
+
+		Set<String> liveHosts = cluster.getHosts();
+		List<String> failedHosts = new ArrayList<String>();
+
+		for (HostEvent event : lastEvents.values()) {
+			boolean live = liveHosts.contains(event.host);
+			if (event.up && !live) {
+				if (event.failureDomain == null)
+					cluster.addHost(event.host);
+				else
+					cluster.addHost(event.host, event.failureDomain);
+			} else if (!event.up && live) {
+				failedHosts.add(event.host);
+			}
+		}
+
+		if (failedHosts.isEmpty())
+			return;
+
+		Consumer<HAInfoTriplet> consumer = tripletConsumer != null ? tripletConsumer : triplet -> {};
+		int tripletCount;
+		try {
+			tripletCount = cluster.performHA(failedHosts.toArray(new String[0]), consumer);
+		} catch (RuntimeException e) {
+			// Keep the failures for the next batch, the hosts are still live
+			for (String failedHost : failedHosts) {
+				carriedEvents.add(lastEvents.get(failedHost));
+			}
+
+			BiConsumer<List<String>, RuntimeException> handler = failureHandler;
+			if (handler == null)
+				throw e;
+
+			handler.accept(failedHosts, e);
+			return;
+		}
+
+		// The copies' files were failed over from their other copies
+		if (copyExecutor != null) {
+			for (String failedHost : failedHosts) {
+				copyExecutor.cancelCopiesTo(failedHost);
+			}
+		}
+
+		if (logger.isLoggable(Level.FINE))
+			logger.fine("Failed over " + failedHosts.size() + " host(s) from " + batch.size() + " event(s), "
+					+ tripletCount + " copies planned");
+	}
+}
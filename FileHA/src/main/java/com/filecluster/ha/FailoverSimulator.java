@@ -0,0 +1,356 @@
+package com.filecluster.ha;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.IntToLongFunction;
+import java.util.function.ToLongFunction;
+
+import com.filecluster.graph.ClusterGraph;
+
+/**
+ * Works out what failing a set of hosts would cost without touching the
+ * cluster. A failure set is an overlay of failed host ids over the live graph:
+ * a file's surviving copies are its replicas outside the overlay, so a
+ * simulation only reads the files of the failed hosts.
+ * <p>
+ * The cluster must not change while a simulation runs. Copies still owed to
+ * the under-replicated files count too, as the failover makes them as well.
+ * Load figures assume the new copies spread evenly over the surviving hosts,
+ * which is what the random placement strategy does on average.
+ */
+public class FailoverSimulator {
+	private static final int SCENARIO_CHUNK_SIZE = 64;
+
+	private final HAFileCluster cluster;
+	private ToLongFunction<String> fileSizes;
+
+	public FailoverSimulator(HAFileCluster cluster) {
+		this.cluster = cluster;
+	}
+
+	/**
+	 * Sets the size in bytes of a file by name, used for the bytes to move. By
+	 * default sizes are unknown and count as 0.
+	 */
+	public void setFileSizes(ToLongFunction<String> fileSizes) {
+		this.fileSizes = fileSizes;
+	}
+
+	/**
+	 * Simulates a failover of the given hosts. Names that are not part of the
+	 * cluster are ignored, except that they count towards the max failed hosts
+	 * as they do for a failover.
+	 */
+	public SimulationResult simulate(String... failedHosts) {
+		ClusterGraph graph = cluster.clusterGraph;
+		boolean[] failed = new boolean[graph.getHostIdLimit()];
+		int[] failedIds = new int[failedHosts.length];
+		int failedCount = 0;
+
+		for (String failedHost : failedHosts) {
+			int hostId = graph.getHostId(failedHost);
+			if (hostId >= 0 && cluster.hosts.contains(hostId) && !failed[hostId]) {
+				failed[hostId] = true;
+				failedIds[failedCount++] = hostId;
+			}
+		}
+
+		IntToLongFunction fileSize = fileSizes == null ? fileId -> 0
+				: fileId -> fileSizes.applyAsLong(graph.getFileName(fileId));
+
+		SimulationResult result = new SimulationResult();
+		result.rejected = isRejected(new HashSet<String>(Arrays.asList(failedHosts)).size(), failedCount);
+		evaluate(failedIds, failedCount, failed, graph.getUnderReplicatedFiles(), fileSize, result, true);
+		return result;
+	}
+
+	/**
+	 * Simulates scenarioCount failures of hostsPerScenario random hosts each and
+	 * ranks the hosts by how many files were lost in the scenarios they were part
+	 * of, riskiest first. Scenarios a failover would refuse are still costed and
+	 * counted as rejected. Scenarios run on the cluster's planning threads when
+	 * its parallelism is above 1; a given seed gives the same ranking either way.
+	 */
+	public List<HostRisk> rankHosts(int scenarioCount, int hostsPerScenario, long seed) {
+		ClusterGraph graph = cluster.clusterGraph;
+		if (hostsPerScenario < 1 || hostsPerScenario > cluster.hosts.size())
+			throw new IllegalArgumentException("Hosts per scenario must be between 1 and the number of hosts");
+
+		// Sizes are looked up once for the whole run rather than once per scenario
+		long[] sizes = null;
+		if (fileSizes != null) {
+			sizes = new long[graph.getFileIdLimit()];
+			for (int fileId = 0; fileId < sizes.length; fileId++) {
+				String file = graph.getFileName(fileId);
+				if (file != null)
+					sizes[fileId] = fileSizes.applyAsLong(file);
+			}
+		}
+
+		ScenarioTask task = new ScenarioTask(graph.getUnderReplicatedFiles(), sizes, hostsPerScenario, seed, 0,
+				scenarioCount);
+		RiskTotals totals = cluster.parallelism > 1 ? cluster.getPlanningPool().invoke(task) : task.compute();
+
+		List<HostRisk> risks = new ArrayList<HostRisk>();
+		for (int hostId = 0; hostId < totals.scenarios.length; hostId++) {
+			if (totals.scenarios[hostId] > 0) {
+				risks.add(new HostRisk(graph.getHostName(hostId), totals.scenarios[hostId], totals.rejected[hostId],
+						totals.lostFiles[hostId], totals.copies[hostId], totals.bytes[hostId]));
+			}
+		}
+
+		Collections.sort(risks);
+		return risks;
+	}
+
+	/*
+	 * Whether performHA would throw rather than fail over, see its checks
+	 */
+	private boolean isRejected(int requestedCount, int failedCount) {
+		return requestedCount > cluster.maxFailedHosts || (requestedCount == failedCount
+				&& cluster.hosts.size() - failedCount < cluster.getMinHostsCount());
+	}
+
+	/*
+	 * Charges every file that loses a copy to the first of its failed hosts, so
+	 * a file held by several failed hosts is counted once
+	 */
+	private void evaluate(int[] failedIds, int failedCount, boolean[] failed, int[] underReplicated,
+			IntToLongFunction fileSize, SimulationResult result, boolean collectLostFiles) {
+		ClusterGraph graph = cluster.clusterGraph;
+		int replicationFactor = graph.getReplicationFactor();
+		result.failedHostCount = failedCount;
+
+		for (int h = 0; h < failedCount; h++) {
+			int hostId = failedIds[h];
+			int[] files = graph.getFilesOnHost(hostId);
+			int fileCount = graph.getFileCount(hostId);
+
+			for (int i = 0; i < fileCount; i++) {
+				int fileId = files[i];
+				int replicaCount = graph.getReplicaCount(fileId);
+				int surviving = 0;
+				int firstFailed = -1;
+
+				for (int r = 0; r < replicaCount; r++) {
+					int replica = graph.getReplica(fileId, r);
+					if (!failed[replica])
+						surviving++;
+					else if (firstFailed < 0)
+						firstFailed = replica;
+				}
+
+				if (firstFailed != hostId)
+					continue;
+
+				result.affectedFileCount++;
+				if (surviving == 0) {
+					result.lostFileCount++;
+					if (collectLostFiles)
+						result.lostFiles.add(graph.getFileName(fileId));
+				} else {
+					int copies = replicationFactor - surviving;
+					result.copyCount += copies;
+					result.bytesToMove += copies * fileSize.applyAsLong(fileId);
+				}
+			}
+		}
+
+		// Queued files without a copy on a failed host were not seen above. Those
+		// with one were, and their copies count every missing one
+		for (int fileId : underReplicated) {
+			int replicaCount = graph.getReplicaCount(fileId);
+			boolean touched = false;
+			for (int r = 0; r < replicaCount && !touched; r++) {
+				touched = failed[graph.getReplica(fileId, r)];
+			}
+
+			if (!touched && replicaCount < replicationFactor) {
+				int copies = replicationFactor - replicaCount;
+				result.copyCount += copies;
+				result.bytesToMove += copies * fileSize.applyAsLong(fileId);
+			}
+		}
+
+		// Survivors keep their files and share the new copies
+		HostPool hosts = cluster.hosts;
+		long survivingLoad = 0, maxLoad = 0;
+		for (int i = 0; i < hosts.size(); i++) {
+			int hostId = hosts.get(i);
+			if (failed[hostId])
+				continue;
+
+			int load = graph.getFileCount(hostId);
+			survivingLoad += load;
+			maxLoad = Math.max(maxLoad, load);
+			result.survivingHostCount++;
+		}
+
+		if (result.survivingHostCount > 0) {
+			result.meanHostLoad = (double) (survivingLoad + result.copyCount) / result.survivingHostCount;
+			result.maxHostLoad = maxLoad + (result.copyCount + result.survivingHostCount - 1) / result.survivingHostCount;
+		}
+	}
+
+	private static class RiskTotals {
+		final long[] scenarios, rejected, lostFiles, copies, bytes;
+
+		RiskTotals(int hostLimit) {
+			scenarios = new long[hostLimit];
+			rejected = new long[hostLimit];
+			lostFiles = new long[hostLimit];
+			copies = new long[hostLimit];
+			bytes = new long[hostLimit];
+		}
+
+		void add(RiskTotals other) {
+			for (int hostId = 0; hostId < scenarios.length; hostId++) {
+				scenarios[hostId] += other.scenarios[hostId];
+				rejected[hostId] += other.rejected[hostId];
+				lostFiles[hostId] += other.lostFiles[hostId];
+				copies[hostId] += other.copies[hostId];
+				bytes[hostId] += other.bytes[hostId];
+			}
+		}
+	}
+
+	private class ScenarioTask extends RecursiveTask<RiskTotals> {
+		private static final long serialVersionUID = -5113720461587093428L;
+
+		final int[] underReplicated;
+		final long[] sizes;
+		final int hostsPerScenario;
+		final long seed;
+		final int from, to;
+
+		ScenarioTask(int[] underReplicated, long[] sizes, int hostsPerScenario, long seed, int from, int to) {
+			this.underReplicated = underReplicated;
+			this.sizes = sizes;
+			this.hostsPerScenario = hostsPerScenario;
+			this.seed = seed;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected RiskTotals compute() {
+			if (to - from > SCENARIO_CHUNK_SIZE) {
+				int middle = (from + to) >>> 1;
+				ScenarioTask right = new ScenarioTask(underReplicated, sizes, hostsPerScenario, seed, middle, to);
+				right.fork();
+				RiskTotals totals = new ScenarioTask(underReplicated, sizes, hostsPerScenario, seed, from, middle)
+						.compute();
+				totals.add(right.join());
+				return totals;
+			}
+
+			ClusterGraph graph = cluster.clusterGraph;
+			HostPool hosts = cluster.hosts;
+			RiskTotals totals = new RiskTotals(graph.getHostIdLimit());
+			boolean[] failed = new boolean[graph.getHostIdLimit()];
+			IntToLongFunction fileSize = sizes == null ? fileId -> 0 : fileId -> sizes[fileId];
+
+			int[] candidates = new int[hosts.size()];
+			int[] failedIds = new int[hostsPerScenario];
+
+			for (int scenario = from; scenario < to; scenario++) {
+				// Every scenario has its own seed, so the split does not change the draw
+				SplittableRandom random = new SplittableRandom(seed + scenario * 0x9E3779B97F4A7C15L);
+				for (int i = 0; i < candidates.length; i++) {
+					candidates[i] = hosts.get(i);
+				}
+
+				// Partial Fisher-Yates shuffle for the failed hosts
+				for (int h = 0; h < hostsPerScenario; h++) {
+					int pick = h + random.nextInt(candidates.length - h);
+					int hostId = candidates[pick];
+					candidates[pick] = candidates[h];
+					candidates[h] = hostId;
+
+					failedIds[h] = hostId;
+					failed[hostId] = true;
+				}
+
+				SimulationResult result = new SimulationResult();
+				result.rejected = isRejected(hostsPerScenario, hostsPerScenario);
+				evaluate(failedIds, hostsPerScenario, failed, underReplicated, fileSize, result, false);
+
+				for (int h = 0; h < hostsPerScenario; h++) {
+					int hostId = failedIds[h];
+					failed[hostId] = false;
+
+					totals.scenarios[hostId]++;
+					if (result.rejected)
+						totals.rejected[hostId]++;
+					totals.lostFiles[hostId] += result.lostFileCount;
+					totals.copies[hostId] += result.copyCount;
+					totals.bytes[hostId] += result.bytesToMove;
+				}
+			}
+
+			return totals;
+		}
+	}
+
+	/**
+	 * How a host fared across the simulated scenarios it was part of. Hosts
+	 * order by mean lost files, then by mean bytes to move, riskiest first.
+	 */
+	public static class HostRisk implements Comparable<HostRisk> {
+		final String host;
+		final long scenarioCount, rejectedCount, lostFiles, copies, bytes;
+
+		HostRisk(String host, long scenarioCount, long rejectedCount, long lostFiles, long copies, long bytes) {
+			this.host = host;
+			this.scenarioCount = scenarioCount;
+			this.rejectedCount = rejectedCount;
+			this.lostFiles = lostFiles;
+			this.copies = copies;
+			this.bytes = bytes;
+		}
+
+		public String getHost() {
+			return host;
+		}
+
+		public long getScenarioCount() {
+			return scenarioCount;
+		}
+
+		/**
+		 * Number of the host's scenarios a failover would have refused.
+		 */
+		public long getRejectedScenarioCount() {
+			return rejectedCount;
+		}
+
+		public double getMeanLostFiles() {
+			return (double) lostFiles / scenarioCount;
+		}
+
+		public double getMeanCopyCount() {
+			return (double) copies / scenarioCount;
+		}
+
+		public double getMeanBytesToMove() {
+			return (double) bytes / scenarioCount;
+		}
+
+		@Override
+		public int compareTo(HostRisk other) {
+			int order = Double.compare(other.getMeanLostFiles(), getMeanLostFiles());
+			return order != 0 ? order : Double.compare(other.getMeanBytesToMove(), getMeanBytesToMove());
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s: %.2f lost files, %.1f copies, %.0f bytes over %d scenarios", host,
+					getMeanLostFiles(), getMeanCopyCount(), getMeanBytesToMove(), scenarioCount);
+		}
+	}
+}
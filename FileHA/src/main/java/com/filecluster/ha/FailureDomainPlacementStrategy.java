@@ -0,0 +1,175 @@
+package com.filecluster.ha;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Random placement that never puts two copies of a file in the same failure
+ * domain (rack, zone). Every domain has its own {@link HostPool} and every
+ * unlabelled host counts as a domain of its own, so checking a candidate is a
+ * couple of array reads however many hosts there are.
+ * <p>
+ * A selection first draws over all hosts and keeps the first host outside the
+ * excluded domains, which is uniform over the eligible hosts. Only when the
+ * excluded domains hold most hosts does it fall back to drawing an eligible
+ * domain and then a host in it. Selection only reads the pools, so concurrent
+ * planning threads need no locking.
+ */
+public class FailureDomainPlacementStrategy implements PlacementStrategy {
+	private static final int NONE = -1;
+	private static final int REJECTION_ATTEMPTS = 8;
+
+	private final HostPool hosts = new HostPool();
+	private final HostPool activeSlots = new HostPool(); // Slots holding at least one host
+
+	// A slot is a dense index for a labelled domain or an unlabelled host
+	private HostPool[] slotHosts = new HostPool[16];
+	private int[] slotDomains = new int[16];
+	private int[] domainSlots = new int[16];
+	private int[] hostSlots = new int[16];
+	private int[] freeSlots = new int[16];
+	private int freeSlotCount;
+	private int nextSlot;
+
+	public FailureDomainPlacementStrategy() {
+		Arrays.fill(domainSlots, NONE);
+	}
+
+	@Override
+	public void hostAdded(int host, int load) {
+		hostAdded(host, load, NONE);
+	}
+
+	@Override
+	public void hostAdded(int host, int load, int failureDomain) {
+		if (hosts.contains(host))
+			hostRemoved(host);
+
+		int slot;
+		if (failureDomain == NONE) {
+			slot = allocateSlot(NONE);
+		} else {
+			ensureDomainCapacity(failureDomain + 1);
+			if (domainSlots[failureDomain] == NONE)
+				domainSlots[failureDomain] = allocateSlot(failureDomain);
+			slot = domainSlots[failureDomain];
+		}
+
+		if (host >= hostSlots.length)
+			hostSlots = Arrays.copyOf(hostSlots, Math.max(host + 1, hostSlots.length * 2));
+
+		hostSlots[host] = slot;
+		slotHosts[slot].add(host);
+		activeSlots.add(slot);
+		hosts.add(host);
+	}
+
+	@Override
+	public void hostRemoved(int host) {
+		if (!hosts.remove(host))
+			return;
+
+		int slot = hostSlots[host];
+		slotHosts[slot].remove(host);
+
+		// An empty domain gives its slot back
+		if (slotHosts[slot].size() == 0) {
+			activeSlots.remove(slot);
+			if (slotDomains[slot] != NONE)
+				domainSlots[slotDomains[slot]] = NONE;
+
+			if (freeSlotCount == freeSlots.length)
+				freeSlots = Arrays.copyOf(freeSlots, freeSlotCount * 2);
+			freeSlots[freeSlotCount++] = slot;
+		}
+	}
+
+	@Override
+	public void replicaAdded(int host) {
+		// Load does not matter for a random pick
+	}
+
+	@Override
+	public void replicaRemoved(int host) {
+		// Load does not matter for a random pick
+	}
+
+	@Override
+	public int selectHost(int[] excludedHosts, int excludedCount) {
+		Random random = ThreadLocalRandom.current();
+
+		// The domains of the existing copies are off limits
+		int[] excludedSlots = new int[excludedCount];
+		int excluded = 0;
+		for (int i = 0; i < excludedCount; i++) {
+			if (hosts.contains(excludedHosts[i]) && !contains(excludedSlots, excluded, hostSlots[excludedHosts[i]]))
+				excludedSlots[excluded++] = hostSlots[excludedHosts[i]];
+		}
+
+		for (int attempt = 0; attempt < REJECTION_ATTEMPTS; attempt++) {
+			int host = hosts.pick(random);
+			if (host < 0)
+				return -1;
+			if (!contains(excludedSlots, excluded, hostSlots[host]))
+				return host;
+		}
+
+		int slot = activeSlots.pick(random, excludedSlots, excluded);
+		return slot < 0 ? -1 : slotHosts[slot].pick(random);
+	}
+
+	/**
+	 * Number of domains holding at least one host, unlabelled hosts counting as
+	 * one domain each.
+	 */
+	public int getDomainCount() {
+		return activeSlots.size();
+	}
+
+	@Override
+	public void clear() {
+		for (int slot = 0; slot < nextSlot; slot++) {
+			slotHosts[slot].clear();
+		}
+		hosts.clear();
+		activeSlots.clear();
+		Arrays.fill(domainSlots, NONE);
+		freeSlotCount = 0;
+		nextSlot = 0;
+	}
+
+	private int allocateSlot(int failureDomain) {
+		int slot;
+		if (freeSlotCount > 0) {
+			slot = freeSlots[--freeSlotCount];
+		} else {
+			slot = nextSlot++;
+			if (slot == slotHosts.length) {
+				slotHosts = Arrays.copyOf(slotHosts, slot * 2);
+				slotDomains = Arrays.copyOf(slotDomains, slot * 2);
+			}
+			if (slotHosts[slot] == null)
+				slotHosts[slot] = new HostPool();
+		}
+
+		slotDomains[slot] = failureDomain;
+		return slot;
+	}
+
+	private void ensureDomainCapacity(int domainLimit) {
+		if (domainLimit > domainSlots.length) {
+			int oldLength = domainSlots.length;
+			domainSlots = Arrays.copyOf(domainSlots, Math.max(domainLimit, oldLength * 2));
+			Arrays.fill(domainSlots, oldLength, domainSlots.length, NONE);
+		}
+	}
+
+	private static boolean contains(int[] list, int count, int value) {
+		for (int i = 0; i < count; i++) {
+			if (list[i] == value)
+				return true;
+		}
+		return false;
+	}
+}
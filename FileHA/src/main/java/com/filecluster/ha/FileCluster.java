@@ -0,0 +1,44 @@
+package com.filecluster.ha;
+
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Operations of a highly available file cluster where every file is kept on
+ * two hosts and the copies of failed hosts are re-replicated.
+ */
+public interface FileCluster {
+
+	void addHost(String host);
+
+	/**
+	 * Adds a host labelled with its failure domain, e.g. a rack or zone.
+	 */
+	void addHost(String host, String failureDomain);
+
+	void removeHost(String host);
+
+	void addFile(String file, String host);
+
+	/**
+	 * Adds a copy of the file on a host chosen by the cluster and returns that
+	 * host.
+	 */
+	String addFile(String file);
+
+	List<HAInfoTriplet> performHA(String[] failedHosts);
+
+	/**
+	 * Fails over like {@link #performHA(String[])} but hands every triplet to the
+	 * consumer as soon as it is planned instead of collecting them. Returns the
+	 * number of triplets.
+	 */
+	int performHA(String[] failedHosts, Consumer<HAInfoTriplet> tripletConsumer);
+
+	Set<String> getHosts();
+
+	Set<String> getHostsForFile(String fileName);
+
+	void deleteCluster();
+}
@@ -1,191 +1,1153 @@
 package com.filecluster.ha;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Path;
+import java.util.AbstractSet;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Random;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import com.filecluster.copy.CopyExecutor;
 import com.filecluster.exception.ExceptionMessages;
+import com.filecluster.exception.HostDrainingException;
 import com.filecluster.exception.HostNotFoundException;
 import com.filecluster.exception.InvalidNameException;
 import com.filecluster.exception.TooFewHostsException;
 import com.filecluster.exception.TooManyCopiesException;
 import com.filecluster.exception.TooManyFailedHostException;
-import com.filecluster.graph.Graph;
+import com.filecluster.graph.ClusterGraph;
+import com.filecluster.graph.GraphVersion;
+import com.filecluster.graph.HostLoadIndex;
+import com.filecluster.metrics.ClusterMetrics;
 
-public class HAFileCluster {
-	Graph clusterGraph;
-	Set<String> files, hosts; // To differentiate between files and hosts nodes the cluster graph
+/**
+ * Single-threaded cluster model. Use {@link ConcurrentFileCluster} when files
+ * are added from several threads or while a failover is running.
+ */
+public class HAFileCluster implements FileCluster {
+	ClusterGraph clusterGraph;
+	HostPool hosts; // Live hosts of the cluster graph, by host id
+	HostPool drainingHosts; // Live hosts being decommissioned, left out of placement
+	PlacementStrategy placementStrategy;
+	SourceSelector sourceSelector;
+	MutationListener mutationListener;
+	CopyExecutor copyExecutor;
+	ClusterMetrics metrics;
+
+	int parallelism = 1;
+	ForkJoinPool planningPool;
+	int maxFailedHosts = DEFAULT_MAX_FAILED_HOSTS;
 
 	private static final Logger logger = Logger.getLogger(HAFileCluster.class.getName());
 
-	private static final int MIN_HOSTS_COUNT = 3;
+	public static final int UNLIMITED_FAILED_HOSTS = Integer.MAX_VALUE;
+	public static final int DEFAULT_MAX_FAILED_HOSTS = 2;
+	public static final int DEFAULT_DRAIN_BATCH_SIZE = 1024;
+
 	private static final String[] FILE_EXT_WHITELIST = { "txt", "jpg", "png", "html", "css" };
+	private static final int PARALLEL_PLAN_THRESHOLD = 4096;
+	private static final int PLAN_CHUNK_SIZE = 1024;
+	private static final int PLAN_WINDOW_SIZE = 1 << 16;
+	private static final int BULK_LOAD_BATCH_SIZE = 8192;
+	private static final int REBALANCE_SCAN_LIMIT = 64;
+	private static final int REBALANCE_PAIR_LIMIT = 8; // Most and least loaded hosts tried for a move
 
 	static HAFileCluster haFileCluster = null;
 
-	private HAFileCluster() {
-		clusterGraph = new Graph();
-		files = new HashSet<String>();
-		hosts = new HashSet<String>();
+	HAFileCluster() {
+		clusterGraph = new ClusterGraph();
+		hosts = new HostPool();
+		drainingHosts = new HostPool();
+		placementStrategy = new RandomPlacementStrategy();
+		sourceSelector = new SourceSelector();
 	}
 
-	public static HAFileCluster getCluster() {
+	public static synchronized HAFileCluster getCluster() {
 		if (haFileCluster == null)
 			haFileCluster = new HAFileCluster();
 
 		return haFileCluster;
 	}
 	
+	@Override
 	public List<HAInfoTriplet> performHA(String[] failedHosts) {
 		List<HAInfoTriplet> haTriplets = new ArrayList<HAInfoTriplet>();
+		performHA(failedHosts, haTriplets::add);
+		return haTriplets;
+	}
+
+	@Override
+	public int performHA(String[] failedHosts, Consumer<HAInfoTriplet> tripletConsumer) {
+		return performHA(failedHosts, tripletConsumer, null);
+	}
+
+	/**
+	 * Fails over like {@link #performHA(String[])} and writes the triplets into
+	 * the buffer as ids, replacing its content. No triplet object is made unless
+	 * a mutation listener or copy executor needs one. Returns the number of
+	 * triplets.
+	 */
+	public int performHA(String[] failedHosts, TripletBuffer tripletBuffer) {
+		tripletBuffer.reset(clusterGraph);
+		return performHA(failedHosts, null, tripletBuffer);
+	}
+
+	/**
+	 * Works out what {@link #performHA(String[])} would cost for the given hosts
+	 * without changing the cluster. See {@link FailoverSimulator} for failure
+	 * scenarios and file sizes.
+	 */
+	public SimulationResult simulateHA(String[] failedHosts) {
+		return new FailoverSimulator(this).simulate(failedHosts);
+	}
+
+	private int performHA(String[] failedHosts, Consumer<HAInfoTriplet> tripletConsumer, TripletBuffer tripletBuffer) {
+		long startTime = metrics != null ? System.nanoTime() : 0;
 		HashSet<String> failedHostList =  new HashSet<String>(Arrays.asList(failedHosts));
+		int tripletCount = 0;
 		
-		if (failedHostList.size() > 2) {
+		if (failedHostList.size() > maxFailedHosts) {
 
-			throw new TooManyFailedHostException(ExceptionMessages.TOO_MANY_FAILED_HOST);
+			throw new TooManyFailedHostException(ExceptionMessages.TOO_MANY_FAILED_HOST + " (" + maxFailedHosts + ")");
 
-		} else if (hosts.containsAll(failedHostList)
-				&& (hosts.size() - failedHostList.size()) < MIN_HOSTS_COUNT) {
+		} else if (getHosts().containsAll(failedHostList)
+				&& (hosts.size() - failedHostList.size()) < getMinHostsCount()) {
 
 			// There are not enough left over hosts to copy the file, so exit
-			throw new TooFewHostsException(ExceptionMessages.TOO_FEW_HOSTS);
+			throw new TooFewHostsException(ExceptionMessages.TOO_FEW_HOSTS + " (" + getMinHostsCount() + ")");
 
 		} else {
 
 			// Remove all the failed nodes from hosts list
-			hosts.removeAll(failedHostList);
+			for (String failedHost : failedHostList) {
+				int failedHostId = clusterGraph.getHostId(failedHost);
+				hosts.remove(failedHostId);
+				drainingHosts.remove(failedHostId);
+				placementStrategy.hostRemoved(failedHostId);
+				sourceSelector.hostRemoved(failedHostId);
+			}
 
+			// Remove the failed nodes from cluster graph before planning. This frees their
+			// replica slots and queues every file they held as under-replicated, so each
+			// file is planned once against its surviving copies even when it was held by
+			// several failed hosts
+			int lostFileCount = clusterGraph.getLostFileCount();
 			for (String failedHost : failedHosts) {
-				if (!clusterGraph.hasNode(failedHost)) {
+				if (clusterGraph.removeHost(failedHost) == null) {
 					logger.severe(failedHost + " : " + ExceptionMessages.NO_HOST_FOUND + ". Skipping HA activity.");
 					continue;
 				}
 
-				// Retrieve the list of files present on that host
-				HashSet<String> filesOnFailedHost = clusterGraph.getConnectedNodes(failedHost);
-
-				for (String fileToBeCopied : filesOnFailedHost) {
-					// Get connected nodes of the file from the cluster graph excluding failed host
-					HashSet<String> hostsWithCopies = clusterGraph.getConnectedNodes(fileToBeCopied, failedHost);
-					
-					// For a given file if both the hosts with it's copy fails
-					// we can't copy that file. Hence log it and continue for
-					// rest of the files
-					if(failedHostList.containsAll(hostsWithCopies)) {
-						logger.severe("Both source hosts for file: " + fileToBeCopied + " have failed. Skipping...");
-						continue;
+				if (mutationListener != null)
+					mutationListener.hostRemoved(failedHost);
+			}
+
+			// For a given file if all the hosts with it's copies fail we can't copy
+			// that file. Hence log it and continue for rest of the files
+			for (int i = lostFileCount; i < clusterGraph.getLostFileCount(); i++) {
+				if (metrics != null)
+					metrics.recordLostFile();
+				logger.severe("All source hosts for file: " + clusterGraph.getFileName(clusterGraph.getLostFile(i))
+						+ " have failed. Skipping...");
+			}
+
+			// Failover is a drain of the under-replication queue, fewest copies first.
+			// It also holds files an earlier failover found no destination for, and
+			// files short of copies after the replication factor was raised
+			int[] underReplicated = clusterGraph.getUnderReplicatedFiles();
+			int replicationFactor = clusterGraph.getReplicationFactor();
+
+			// The plan is made and handed out one window at a time, so the first
+			// triplets are out before the last files are planned. Each file gets
+			// replicationFactor plan slots, one per missing copy
+			int window = Math.min(underReplicated.length, PLAN_WINDOW_SIZE);
+			int[] sourceHostIds = new int[window * replicationFactor];
+			int[] destinationHostIds = new int[window * replicationFactor];
+
+			for (int from = 0; from < underReplicated.length; from += window) {
+				int to = Math.min(underReplicated.length, from + window);
+				SourceSelector.Snapshot sources = sourceSelector.snapshot(clusterGraph.getHostIdLimit());
+
+				// Planning only reads the graph, so it can be spread across threads. The
+				// plan is indexed like underReplicated, which keeps the merge below in
+				// the same order as a sequential run
+				if (parallelism > 1 && to - from >= PARALLEL_PLAN_THRESHOLD) {
+					getPlanningPool().invoke(new FailoverPlanTask(underReplicated, sourceHostIds, destinationHostIds,
+							sources, from, from, to));
+				} else {
+					planFailover(underReplicated, sourceHostIds, destinationHostIds, sources, from, from, to);
+				}
+
+				for (int i = from; i < to; i++) {
+					int fileId = underReplicated[i];
+					int replicaCount = clusterGraph.getReplicaCount(fileId);
+
+					for (int copy = 0; copy < replicationFactor - replicaCount; copy++) {
+						int slot = (i - from) * replicationFactor + copy;
+						int sourceHostId = sourceHostIds[slot];
+						int destinationHostId = destinationHostIds[slot];
+
+						// The file stays queued and is retried by the next failover
+						if (destinationHostId < 0) {
+							if (metrics != null)
+								metrics.recordUnplacedCopy();
+							logger.severe("No destination host left for file: " + clusterGraph.getFileName(fileId)
+									+ ". Skipping...");
+							break;
+						}
+
+						// Add the file to the selected host. Both were validated when they
+						// joined the cluster, so the copy is placed by id
+						clusterGraph.addReplica(fileId, destinationHostId);
+
+						// Packed names are decoded only where a name is handed out or logged, a
+						// buffered failover never builds one
+						if (tripletConsumer != null || mutationListener != null || copyExecutor != null) {
+							HAInfoTriplet triplet = new HAInfoTriplet();
+							triplet.setFileToBeCopied(clusterGraph.getFileName(fileId));
+							triplet.setSourceHost(clusterGraph.getHostName(sourceHostId));
+							triplet.setDestinationHost(clusterGraph.getHostName(destinationHostId));
+
+							if (mutationListener != null)
+								mutationListener.failoverPlanned(triplet);
+
+							// The source is read from until the executor is done with the copy
+							CompletableFuture<HAInfoTriplet> future = copy(triplet);
+							if (future != null) {
+								SourceSelector selector = sourceSelector;
+								future.whenComplete((copied, failure) -> selector.readCompleted(sourceHostId));
+							}
+
+							if (tripletConsumer != null)
+								tripletConsumer.accept(triplet);
+						} else if (logger.isLoggable(Level.FINE)) {
+							copy(clusterGraph.getFileName(fileId), clusterGraph.getHostName(destinationHostId));
+						}
+
+						if (tripletBuffer != null)
+							tripletBuffer.add(fileId, sourceHostId, destinationHostId);
+						tripletCount++;
 					}
-					
-					String sourceHost = (String) hostsWithCopies.toArray()[0];			
-
-					/*
-					 * To perform set difference and then random selection we will remove the
-					 * sourceHost from the hosts list (not the cluster graph), then make selection
-					 * and again add it back. This will avoid expensive set filtering, as addition
-					 * and removal in HashSet is O(1) operation
-					 */
-					hosts.remove(sourceHost);
-					String destinationHost = makeRandomSelection(hosts);
-					hosts.add(sourceHost);
-
-					// Add the file to the randomly selected host
-					addFileToHost(fileToBeCopied, destinationHost);
-
-					HAInfoTriplet triplet = new HAInfoTriplet();
-					triplet.setFileToBeCopied(fileToBeCopied);
-					triplet.setSourceHost(sourceHost);
-					triplet.setDestinationHost(destinationHost);
-
-					haTriplets.add(triplet);
 				}
+			}
+		}
+
+		// Without an executor the copies are the caller's to run, and nothing tells
+		// when they are done
+		if (copyExecutor == null)
+			sourceSelector.clearQueues();
+
+		if (metrics != null)
+			metrics.recordFailover(System.nanoTime() - startTime, tripletCount);
 
-				// Finally remove the failed node from cluster graph
-				clusterGraph.removeNode(failedHost);
+		operationCompleted();
+		return tripletCount;
+	}
+
+	/*
+	 * Chooses sources and destinations for the missing copies of files[from..to),
+	 * written to the plan arrays at (index - base) * replicationFactor + copy.
+	 * Sources are spread over the surviving copies against the snapshot of the
+	 * source queues plus this range's own reads, which are queued once the range
+	 * is planned; a destination of -1 means no host was left for that copy
+	 */
+	private void planFailover(int[] files, int[] sourceHostIds, int[] destinationHostIds,
+			SourceSelector.Snapshot sources, int base, int from, int to) {
+		int replicationFactor = clusterGraph.getReplicationFactor();
+		int[] excludedHosts = new int[replicationFactor];
+		int[] reads = new int[sources.getHostLimit()];
+
+		for (int i = from; i < to; i++) {
+			int replicaCount = clusterGraph.getReplicaCount(files[i]);
+			if (replicaCount == 0)
+				continue;
+
+			for (int r = 0; r < replicaCount; r++) {
+				excludedHosts[r] = clusterGraph.getReplica(files[i], r);
+			}
+
+			int slot = (i - base) * replicationFactor;
+			int excludedCount = replicaCount;
+			for (int copy = 0; copy < replicationFactor - replicaCount; copy++) {
+				int destinationHostId = selectHost(excludedHosts, excludedCount);
+
+				destinationHostIds[slot + copy] = destinationHostId;
+				if (destinationHostId < 0)
+					break;
+
+				// Only the surviving copies, not the new ones, can be read from
+				sourceHostIds[slot + copy] = sources.selectSource(excludedHosts, replicaCount, reads);
+
+				// Later copies of the same file must land elsewhere
+				excludedHosts[excludedCount++] = destinationHostId;
 			}
 		}
 
-		return haTriplets;
+		sourceSelector.addQueued(reads);
+	}
+
+	private class FailoverPlanTask extends RecursiveAction {
+		private static final long serialVersionUID = 2043614589178632211L;
+
+		final int[] files, sourceHostIds, destinationHostIds;
+		final SourceSelector.Snapshot sources;
+		final int base, from, to;
+
+		FailoverPlanTask(int[] files, int[] sourceHostIds, int[] destinationHostIds, SourceSelector.Snapshot sources,
+				int base, int from, int to) {
+			this.files = files;
+			this.sourceHostIds = sourceHostIds;
+			this.destinationHostIds = destinationHostIds;
+			this.sources = sources;
+			this.base = base;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= PLAN_CHUNK_SIZE) {
+				planFailover(files, sourceHostIds, destinationHostIds, sources, base, from, to);
+			} else {
+				int middle = (from + to) >>> 1;
+				invokeAll(new FailoverPlanTask(files, sourceHostIds, destinationHostIds, sources, base, from, middle),
+						new FailoverPlanTask(files, sourceHostIds, destinationHostIds, sources, base, middle, to));
+			}
+		}
+	}
+
+	/**
+	 * Sets the number of copies kept of every file, 2 by default. Existing files
+	 * are topped up to a raised factor by the next failover, which may be
+	 * performHA(new String[0]). Lowering it fails while a file has more copies
+	 * than the new factor.
+	 */
+	public void setReplicationFactor(int replicationFactor) {
+		clusterGraph.setReplicationFactor(replicationFactor);
+
+		if (mutationListener != null)
+			mutationListener.replicationFactorChanged(replicationFactor);
+
+		operationCompleted();
+	}
+
+	public int getReplicationFactor() {
+		return clusterGraph.getReplicationFactor();
+	}
+
+	/**
+	 * Sets how many hosts may fail at once, 2 by default. Use
+	 * {@link #UNLIMITED_FAILED_HOSTS} to lift the limit.
+	 */
+	public void setMaxFailedHosts(int maxFailedHosts) {
+		if (maxFailedHosts < 1)
+			throw new IllegalArgumentException("Max failed hosts must be at least 1");
+
+		this.maxFailedHosts = maxFailedHosts;
+	}
+
+	public int getMaxFailedHosts() {
+		return maxFailedHosts;
+	}
+
+	/*
+	 * Every copy needs its own host and one more is kept to fail over to
+	 */
+	int getMinHostsCount() {
+		return clusterGraph.getReplicationFactor() + 1;
+	}
+
+	/**
+	 * Sets the number of threads used to plan a failover. 1 (the default) plans
+	 * sequentially on the calling thread.
+	 */
+	public void setParallelism(int parallelism) {
+		if (parallelism < 1)
+			throw new IllegalArgumentException("Parallelism must be at least 1");
+
+		if (planningPool != null && planningPool.getParallelism() != parallelism) {
+			planningPool.shutdown();
+			planningPool = null;
+		}
+
+		this.parallelism = parallelism;
 	}
 
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	ForkJoinPool getPlanningPool() {
+		if (planningPool == null)
+			planningPool = new ForkJoinPool(parallelism);
+
+		return planningPool;
+	}
+
+	/**
+	 * Sets the strategy used to place re-replicated files and files added
+	 * without a host. The strategy is seeded with the current hosts and loads.
+	 */
+	public void setPlacementStrategy(PlacementStrategy placementStrategy) {
+		placementStrategy.clear();
+		for (int i = 0; i < hosts.size(); i++) {
+			int hostId = hosts.get(i);
+			if (drainingHosts.contains(hostId))
+				continue;
+
+			placementStrategy.hostAdded(hostId, clusterGraph.getFileCount(hostId), clusterGraph.getHostDomain(hostId));
+		}
+
+		this.placementStrategy = placementStrategy;
+	}
+
+	public PlacementStrategy getPlacementStrategy() {
+		return placementStrategy;
+	}
+
+	/**
+	 * Sets the read budget a failover spreads copies by, see
+	 * {@link SourceSelector}. The budget is dropped when the host is removed.
+	 */
+	public void setSourceBandwidth(String host, int bandwidth) {
+		int hostId = clusterGraph.getHostId(host);
+		if (!hosts.contains(hostId))
+			throw new HostNotFoundException(ExceptionMessages.NO_HOST_FOUND);
+
+		sourceSelector.setBandwidth(hostId, bandwidth);
+	}
+
+	public SourceSelector getSourceSelector() {
+		return sourceSelector;
+	}
+
+	@Override
 	public void addHost(String host) {
-		hosts.add(host);
-		clusterGraph.addNode(host);
+		// A known host keeps its failure domain
+		addHost(host, getFailureDomain(host));
+	}
+
+	/**
+	 * Adds the host in the given failure domain, or moves a known host to it. A
+	 * domain-aware placement strategy keeps the copies of a file in different
+	 * domains.
+	 */
+	@Override
+	public void addHost(String host, String failureDomain) {
+		if (applyHostAdded(host, failureDomain) && mutationListener != null)
+			mutationListener.hostAdded(host, failureDomain);
+
+		operationCompleted();
+	}
+
+	/*
+	 * Returns false if the host was already live in that domain
+	 */
+	boolean applyHostAdded(String host, String failureDomain) {
+		int previousDomain = clusterGraph.getHostDomain(clusterGraph.getHostId(host));
+		int hostId = clusterGraph.addHost(host, failureDomain);
+		int domain = clusterGraph.getHostDomain(hostId);
+
+		if (!hosts.add(hostId) && domain == previousDomain)
+			return false;
+
+		if (!drainingHosts.contains(hostId))
+			placementStrategy.hostAdded(hostId, clusterGraph.getFileCount(hostId), domain);
+		return true;
+	}
+
+	/**
+	 * The failure domain of the host, or null if it is unlabelled or unknown.
+	 */
+	public String getFailureDomain(String host) {
+		return clusterGraph.getDomainName(clusterGraph.getHostDomain(clusterGraph.getHostId(host)));
 	}
 
 	private boolean isValidFileExtension(String filename) {
-		if (filename.contains(".")) {
-			String extension = filename.substring(filename.lastIndexOf(".") + 1);
-			return Arrays.asList(FILE_EXT_WHITELIST).contains(extension);
-		} else {
+		int dot = filename.lastIndexOf('.');
+		if (dot < 0)
 			return true; // Assume this could be a hostname or file without extension
+
+		// Compare in place, this runs for every row of a bulk load
+		int extensionLength = filename.length() - dot - 1;
+		for (String extension : FILE_EXT_WHITELIST) {
+			if (extension.length() == extensionLength && filename.regionMatches(dot + 1, extension, 0, extensionLength))
+				return true;
 		}
+
+		return false;
 	}
 
-	private void addFileToHost(String file, String host) {
+	/*
+	 * Returns false, and copies nothing, if the host already held the file
+	 */
+	private boolean addFileToHost(String file, String host) {
 
 		if (file.equals(host) || !isValidFileExtension(file))
 			throw new InvalidNameException(ExceptionMessages.INVALID_NAME);
 
-		if (!hosts.contains(host))
+		if (!hosts.contains(clusterGraph.getHostId(host)))
 			throw new HostNotFoundException(ExceptionMessages.NO_HOST_FOUND);
 
-		if (hosts.size() < MIN_HOSTS_COUNT)
+		if (drainingHosts.contains(clusterGraph.getHostId(host)))
+			throw new HostDrainingException(ExceptionMessages.HOST_DRAINING);
+
+		if (hosts.size() < getMinHostsCount())
 			throw new TooFewHostsException(ExceptionMessages.TOO_FEW_HOSTS);
 
-		files.add(file);
-		clusterGraph.addEdge(file, host);
+		// A second copy is made from the first one, a first copy comes from the client
+		int fileId = clusterGraph.getFileId(file);
+		int sourceHostId = fileId < 0 ? ClusterGraph.NONE : clusterGraph.getReplica(fileId, 0);
+
+		if (!clusterGraph.addReplica(file, host))
+			return false;
 
-		copy(file, host);
+		if (mutationListener != null)
+			mutationListener.fileAdded(file, host);
+
+		if (sourceHostId != ClusterGraph.NONE && sourceHostId != clusterGraph.getHostId(host) && hosts.contains(sourceHostId)) {
+			HAInfoTriplet triplet = new HAInfoTriplet();
+			triplet.setFileToBeCopied(file);
+			triplet.setSourceHost(clusterGraph.getHostName(sourceHostId));
+			triplet.setDestinationHost(host);
+			copy(triplet);
+		} else {
+			copy(file, host);
+		}
+		return true;
 	}
 
+	@Override
 	public void addFile(String file, String host) {
-		if (clusterGraph.hasNode(file) && clusterGraph.getConnectedNodes(file).size() == 2)
+		long startTime = metrics != null ? System.nanoTime() : 0;
+
+		if (clusterGraph.getReplicaCount(file) >= clusterGraph.getReplicationFactor()) {
+			throw new TooManyCopiesException(ExceptionMessages.TOO_MANY_COPIES);
+		} else if (addFileToHost(file, host)) {
+			placementStrategy.replicaAdded(clusterGraph.getHostId(host));
+		}
+
+		if (metrics != null)
+			metrics.recordFileAdded(System.nanoTime() - startTime);
+
+		operationCompleted();
+	}
+
+	/**
+	 * Adds a copy of the file on a host chosen by the placement strategy and
+	 * returns that host.
+	 */
+	@Override
+	public String addFile(String file) {
+		long startTime = metrics != null ? System.nanoTime() : 0;
+		int fileId = clusterGraph.getFileId(file);
+		int replicaCount = fileId < 0 ? 0 : clusterGraph.getReplicaCount(fileId);
+
+		if (replicaCount >= clusterGraph.getReplicationFactor())
 			throw new TooManyCopiesException(ExceptionMessages.TOO_MANY_COPIES);
-		else
-			addFileToHost(file, host);
+
+		// Validate before selecting, the strategy counts the copy as soon as it picks a host
+		if (!isValidFileExtension(file))
+			throw new InvalidNameException(ExceptionMessages.INVALID_NAME);
+
+		if (hosts.size() < getMinHostsCount())
+			throw new TooFewHostsException(ExceptionMessages.TOO_FEW_HOSTS);
+
+		// The host already holding a copy cannot take another one
+		int[] excludedHosts = new int[replicaCount];
+		for (int i = 0; i < replicaCount; i++) {
+			excludedHosts[i] = clusterGraph.getReplica(fileId, i);
+		}
+
+		int hostId = selectHost(excludedHosts, replicaCount);
+		if (hostId < 0)
+			throw new HostNotFoundException(ExceptionMessages.NO_HOST_FOUND);
+
+		String host = clusterGraph.getHostName(hostId);
+		addFileToHost(file, host);
+
+		if (metrics != null)
+			metrics.recordFileAdded(System.nanoTime() - startTime);
+
+		operationCompleted();
+		return host;
+	}
+
+	/**
+	 * Loads (file, host) rows describing copies that already exist in the
+	 * cluster, e.g. a cluster map export. Each row is either {file, host} or just
+	 * {file}, in which case the placement strategy picks the host. Rows are
+	 * validated a batch at a time before any row of that batch is applied, and
+	 * no copy operation is issued. Hosts must have been added beforehand.
+	 *
+	 * @param expectedFiles number of distinct files expected, used to pre-size
+	 *                      the graph; 0 if unknown
+	 * @return number of rows loaded
+	 */
+	public int bulkLoad(Iterator<String[]> rows, int expectedFiles) {
+		if (hosts.size() < getMinHostsCount())
+			throw new TooFewHostsException(ExceptionMessages.TOO_FEW_HOSTS);
+
+		if (expectedFiles > 0)
+			clusterGraph.ensureCapacity(clusterGraph.getFileCount() + expectedFiles, clusterGraph.getHostCount());
+
+		String[] batchFiles = new String[BULK_LOAD_BATCH_SIZE];
+		int[] batchHostIds = new int[BULK_LOAD_BATCH_SIZE];
+		int replicationFactor = clusterGraph.getReplicationFactor();
+		int[] excludedHosts = new int[replicationFactor];
+		int loadedRows = 0;
+
+		while (rows.hasNext()) {
+			// Validate a whole batch first
+			int batchSize = 0;
+			while (batchSize < BULK_LOAD_BATCH_SIZE && rows.hasNext()) {
+				String[] row = rows.next();
+				String file = row[0];
+				String host = row.length > 1 ? row[1] : null;
+
+				int rowNumber = loadedRows + batchSize + 1;
+
+				if (file.isEmpty() || file.equals(host) || !isValidFileExtension(file))
+					throw new InvalidNameException(ExceptionMessages.INVALID_NAME + " (row " + rowNumber + ")");
+
+				int hostId = host == null ? ClusterGraph.NONE : clusterGraph.getHostId(host);
+				if (host != null && !hosts.contains(hostId))
+					throw new HostNotFoundException(ExceptionMessages.NO_HOST_FOUND + " (row " + rowNumber + ")");
+
+				batchFiles[batchSize] = file;
+				batchHostIds[batchSize] = hostId;
+				batchSize++;
+			}
+
+			// Then apply it by id
+			for (int i = 0; i < batchSize; i++) {
+				int fileId = clusterGraph.addFile(batchFiles[i]);
+				int replicaCount = clusterGraph.getReplicaCount(fileId);
+				int hostId = batchHostIds[i];
+
+				if (hostId == ClusterGraph.NONE) {
+					for (int r = 0; r < replicaCount; r++) {
+						excludedHosts[r] = clusterGraph.getReplica(fileId, r);
+					}
+					hostId = replicaCount == replicationFactor ? ClusterGraph.NONE
+							: placementStrategy.selectHost(excludedHosts, replicaCount);
+				}
+
+				// A row repeating an existing copy is a no-op, a copy beyond the replication factor is not allowed
+				if (hostId != ClusterGraph.NONE && clusterGraph.addReplica(fileId, hostId)) {
+					if (mutationListener != null)
+						mutationListener.fileAdded(batchFiles[i], clusterGraph.getHostName(hostId));
+				} else if (hostId == ClusterGraph.NONE || !clusterGraph.hasReplica(fileId, hostId)) {
+					throw new TooManyCopiesException(ExceptionMessages.TOO_MANY_COPIES + " (row " + (loadedRows + i + 1) + ")");
+				}
+			}
+
+			loadedRows += batchSize;
+		}
+
+		// Host loads changed wholesale, re-seed the strategy from the graph in one go
+		setPlacementStrategy(placementStrategy);
+
+		if (metrics != null)
+			metrics.recordFilesAdded(loadedRows);
+
+		operationCompleted();
+		return loadedRows;
+	}
+
+	/**
+	 * Loads comma separated "file,host" or "file" lines, see
+	 * {@link #bulkLoad(Iterator, int)}. Blank lines are skipped.
+	 */
+	public int bulkLoad(Reader csv, int expectedFiles) {
+		return bulkLoad(new CsvRows(csv), expectedFiles);
 	}
 
 	private void copy(String file, String host) {
-		// Dummy function to mimic file copy operation
-		logger.fine("Copying " + file + " to " + host);
+		// Dummy function to mimic a client uploading a new file
+		if (logger.isLoggable(Level.FINE))
+			logger.fine("Copying " + file + " to " + host);
+	}
+
+	private CompletableFuture<HAInfoTriplet> copy(HAInfoTriplet triplet) {
+		if (copyExecutor != null)
+			return copyExecutor.submit(triplet);
+
+		copy(triplet.getFileToBeCopied(), triplet.getDestinationHost());
+		return null;
+	}
+
+	/**
+	 * Sets the executor that runs copies between hosts in the background. The
+	 * cluster only queues them, failures surface through the executor. Pass null
+	 * to go back to the logging stub.
+	 */
+	public void setCopyExecutor(CopyExecutor copyExecutor) {
+		this.copyExecutor = copyExecutor;
+	}
+
+	public CopyExecutor getCopyExecutor() {
+		return copyExecutor;
 	}
 
+	/**
+	 * Starts recording into the given metrics, or stops with null. Host loads
+	 * are read from the cluster without a lock, so they may be slightly off
+	 * while it changes.
+	 */
+	public void setMetrics(ClusterMetrics metrics) {
+		this.metrics = metrics;
+		if (metrics != null)
+			metrics.setHostLoads(this::getHostLoads);
+	}
+
+	public ClusterMetrics getMetrics() {
+		return metrics;
+	}
+
+	long[] getHostLoads() {
+		long[] loads = new long[hosts.size()];
+		for (int i = 0; i < loads.length; i++) {
+			loads[i] = clusterGraph.getFileCount(hosts.get(i));
+		}
+		return loads;
+	}
+
+	// Times the placement when metrics are on
+	private int selectHost(int[] excludedHosts, int excludedCount) {
+		if (metrics == null)
+			return placementStrategy.selectHost(excludedHosts, excludedCount);
+
+		long startTime = System.nanoTime();
+		int hostId = placementStrategy.selectHost(excludedHosts, excludedCount);
+		metrics.recordPlacement(System.nanoTime() - startTime);
+		return hostId;
+	}
+
+	/**
+	 * Removes the host at once; the copies it held are restored by the next
+	 * failover. Use {@link #decommissionHost(String, int)} to move them off
+	 * while the host is still up.
+	 */
+	@Override
 	public void removeHost(String host) {
-		if (clusterGraph.hasNode(host))
-			clusterGraph.removeNode(host);
+		if (applyHostRemoved(host) && mutationListener != null)
+			mutationListener.hostRemoved(host);
+
+		operationCompleted();
 	}
 
-	public void deleteCluster() {
-		clusterGraph.removeAll();
+	/*
+	 * Returns false if there was no such host
+	 */
+	boolean applyHostRemoved(String host) {
+		int hostId = clusterGraph.getHostId(host);
+		hosts.remove(hostId);
+		drainingHosts.remove(hostId);
+		placementStrategy.hostRemoved(hostId);
+		sourceSelector.hostRemoved(hostId);
+
+		return clusterGraph.removeHost(host) != null;
 	}
 
-	public Set<String> getHosts() {
-		return hosts;
+	public DrainPlan decommissionHost(String host) {
+		return decommissionHost(host, DEFAULT_DRAIN_BATCH_SIZE);
 	}
 
-	public Set<String> getHostsForFile(String fileName) {
-		return clusterGraph.getConnectedNodes(fileName);
+	/**
+	 * Starts decommissioning the host. It stays live and readable but takes no
+	 * new copies, and the returned plan moves its files to other hosts in
+	 * batches of the given size. Decommissioning a draining host again returns
+	 * a new plan for the files left.
+	 */
+	public DrainPlan decommissionHost(String host, int batchSize) {
+		if (batchSize < 1)
+			throw new IllegalArgumentException("Batch size must be at least 1");
+
+		int hostId = clusterGraph.getHostId(host);
+		if (!hosts.contains(hostId))
+			throw new HostNotFoundException(ExceptionMessages.NO_HOST_FOUND);
+
+		// The hosts taking new copies must still be enough to fail over
+		if (!drainingHosts.contains(hostId) && hosts.size() - drainingHosts.size() - 1 < getMinHostsCount())
+			throw new TooFewHostsException(ExceptionMessages.TOO_FEW_HOSTS + " (" + getMinHostsCount() + ")");
+
+		if (drainingHosts.add(hostId)) {
+			placementStrategy.hostRemoved(hostId);
+			if (clusterGraph.hasLoadIndex())
+				clusterGraph.getLoadIndex().setHeldOut(hostId, true);
+		}
+
+		return new DrainPlan(this, host, batchSize);
+	}
+
+	/**
+	 * Lets a draining host take new copies again. Files already moved off it
+	 * stay where they are.
+	 */
+	public void cancelDecommission(String host) {
+		int hostId = clusterGraph.getHostId(host);
+		if (drainingHosts.remove(hostId)) {
+			placementStrategy.hostAdded(hostId, clusterGraph.getFileCount(hostId), clusterGraph.getHostDomain(hostId));
+			if (clusterGraph.hasLoadIndex())
+				clusterGraph.getLoadIndex().setHeldOut(hostId, false);
+		}
+	}
+
+	public boolean isDraining(String host) {
+		return drainingHosts.contains(clusterGraph.getHostId(host));
+	}
+
+	/**
+	 * Moves the file's copy from one host to another, copying it from the host
+	 * it leaves. Returns false if the first host holds no copy of the file or
+	 * the second one already does.
+	 */
+	public boolean moveFile(String file, String fromHost, String toHost) {
+		int fileId = clusterGraph.getFileId(file);
+		int fromHostId = clusterGraph.getHostId(fromHost);
+		int toHostId = clusterGraph.getHostId(toHost);
+
+		if (!hosts.contains(toHostId))
+			throw new HostNotFoundException(ExceptionMessages.NO_HOST_FOUND);
+
+		if (drainingHosts.contains(toHostId))
+			throw new HostDrainingException(ExceptionMessages.HOST_DRAINING);
+
+		if (fileId < 0 || !clusterGraph.hasReplica(fileId, fromHostId) || clusterGraph.hasReplica(fileId, toHostId))
+			return false;
+
+		moveReplica(fileId, fromHostId, toHostId);
+		placementStrategy.replicaRemoved(fromHostId);
+		placementStrategy.replicaAdded(toHostId);
+
+		operationCompleted();
+		return true;
 	}
 
-	private String makeRandomSelection(Set<String> list) {
-		Random random = new Random();
-		int selectedIndex = random.nextInt(list.size());
-		int counter = 0;
-		String selectedItem = "";
+	/*
+	 * Moves up to batchSize files off a draining host, each to the host the
+	 * placement strategy picks. Every copy is read from the draining host, it
+	 * is still up and sparing the other hosts is the point of a drain
+	 */
+	int drain(String host, int batchSize, Consumer<HAInfoTriplet> tripletConsumer) {
+		int hostId = clusterGraph.getHostId(host);
+		if (!drainingHosts.contains(hostId))
+			return 0;
 
-		for (String item : list) {
-			if (counter == selectedIndex) {
-				selectedItem = item;
+		int[] excludedHosts = new int[clusterGraph.getReplicationFactor()];
+		int movedCount = 0;
+
+		while (movedCount < batchSize && clusterGraph.getFileCount(hostId) > 0) {
+			// The last file of the host is the cheapest to take off its list
+			int fileId = clusterGraph.getFilesOnHost(hostId)[clusterGraph.getFileCount(hostId) - 1];
+			int replicaCount = clusterGraph.getReplicaCount(fileId);
+			for (int r = 0; r < replicaCount; r++) {
+				excludedHosts[r] = clusterGraph.getReplica(fileId, r);
+			}
+
+			int destinationHostId = selectHost(excludedHosts, replicaCount);
+			if (destinationHostId < 0) {
+				logger.severe("No destination host left for file: " + clusterGraph.getFileName(fileId)
+						+ ". Stopping the drain of " + host);
+				break;
+			}
+
+			tripletConsumer.accept(moveReplica(fileId, hostId, destinationHostId));
+			movedCount++;
+		}
+
+		operationCompleted();
+		return movedCount;
+	}
+
+	/**
+	 * Moves up to maxMoves copies from the most to the least loaded host for as
+	 * long as their loads differ by more than maxSkew files, at least 1. Draining
+	 * hosts are left out. Hosts are picked in O(log hosts) from an index of their
+	 * loads, built on the first call and kept up to date from then on. When no
+	 * copy of the most loaded host may go to the least loaded one, e.g. because
+	 * of failure domains, the next most and least loaded hosts are tried.
+	 * Returns the number of copies moved, fewer than maxMoves once the hosts are
+	 * balanced or no copy can move; {@link #isBalanced(int)} tells which.
+	 */
+	public int rebalance(int maxSkew, int maxMoves, Consumer<HAInfoTriplet> tripletConsumer) {
+		if (maxSkew < 1)
+			throw new IllegalArgumentException("Max skew must be at least 1");
+
+		HostLoadIndex loadIndex = getLoadIndex();
+		int[] move = new int[3];
+		int movedCount = 0;
+
+		while (movedCount < maxMoves && !isBalanced(maxSkew)) {
+			if (!findMove(loadIndex, maxSkew, move)) {
+				logger.fine("No file of the most loaded hosts can move to the least loaded ones. Stopping the rebalance");
 				break;
 			}
-			counter++;
+
+			int fileId = move[0], fromHostId = move[1], toHostId = move[2];
+			tripletConsumer.accept(moveReplica(fileId, fromHostId, toHostId));
+			placementStrategy.replicaRemoved(fromHostId);
+			placementStrategy.replicaAdded(toHostId);
+			movedCount++;
+		}
+
+		operationCompleted();
+		return movedCount;
+	}
+
+	/**
+	 * Whether the most and the least loaded host, draining ones left out,
+	 * differ by at most maxSkew files.
+	 */
+	public boolean isBalanced(int maxSkew) {
+		HostLoadIndex loadIndex = getLoadIndex();
+		int fromHostId = loadIndex.getMostLoadedHost();
+		return fromHostId < 0
+				|| loadIndex.getLoad(fromHostId) - loadIndex.getLoad(loadIndex.getLeastLoadedHost()) <= maxSkew;
+	}
+
+	private HostLoadIndex getLoadIndex() {
+		if (clusterGraph.hasLoadIndex())
+			return clusterGraph.getLoadIndex();
+
+		HostLoadIndex loadIndex = clusterGraph.getLoadIndex();
+		for (int i = 0; i < drainingHosts.size(); i++) {
+			loadIndex.setHeldOut(drainingHosts.get(i), true);
+		}
+		return loadIndex;
+	}
+
+	/*
+	 * Finds a copy to move from one of the most loaded hosts to one of the least
+	 * loaded ones whose load is more than maxSkew below it, most loaded pairs
+	 * first. The last files of every pair are looked at before any host is
+	 * scanned in full. Writes the file, source and destination to move
+	 */
+	private boolean findMove(HostLoadIndex loadIndex, int maxSkew, int[] move) {
+		int[] sources = new int[REBALANCE_PAIR_LIMIT];
+		int[] destinations = new int[REBALANCE_PAIR_LIMIT];
+		int sourceCount = loadIndex.getMostLoadedHosts(sources);
+		int destinationCount = loadIndex.getLeastLoadedHosts(destinations);
+
+		for (int pass = 0; pass < 2; pass++) {
+			for (int s = 0; s < sourceCount; s++) {
+				for (int d = 0; d < destinationCount; d++) {
+					// Later destinations are loaded at least as much
+					if (loadIndex.getLoad(sources[s]) - loadIndex.getLoad(destinations[d]) <= maxSkew)
+						break;
+
+					int fileId = findMovableFile(sources[s], destinations[d], pass == 1);
+					if (fileId >= 0) {
+						move[0] = fileId;
+						move[1] = sources[s];
+						move[2] = destinations[d];
+						return true;
+					}
+				}
+			}
+		}
+
+		return false;
+	}
+
+	/*
+	 * Looks through the last files of a host, or with deep set through the rest
+	 * of them, for one the other host may take: it holds no copy yet and, if
+	 * labelled, shares no failure domain with the file's remaining copies.
+	 * Returns -1 if none of them qualifies
+	 */
+	private int findMovableFile(int fromHostId, int toHostId, boolean deep) {
+		int[] hostFiles = clusterGraph.getFilesOnHost(fromHostId);
+		int count = clusterGraph.getFileCount(fromHostId);
+		int domain = clusterGraph.getHostDomain(toHostId);
+		int end = deep ? count - REBALANCE_SCAN_LIMIT : count;
+		int start = deep ? 0 : Math.max(0, count - REBALANCE_SCAN_LIMIT);
+
+		for (int i = end - 1; i >= start; i--) {
+			int fileId = hostFiles[i];
+			if (clusterGraph.hasReplica(fileId, toHostId))
+				continue;
+
+			boolean sharesDomain = false;
+			for (int r = 0; r < clusterGraph.getReplicaCount(fileId) && domain != ClusterGraph.NONE; r++) {
+				int replica = clusterGraph.getReplica(fileId, r);
+				if (replica != fromHostId && clusterGraph.getHostDomain(replica) == domain)
+					sharesDomain = true;
+			}
+
+			if (!sharesDomain)
+				return fileId;
+		}
+
+		return -1;
+	}
+
+	private HAInfoTriplet moveReplica(int fileId, int fromHostId, int toHostId) {
+		clusterGraph.moveReplica(fileId, fromHostId, toHostId);
+
+		HAInfoTriplet triplet = new HAInfoTriplet();
+		triplet.setFileToBeCopied(clusterGraph.getFileName(fileId));
+		triplet.setSourceHost(clusterGraph.getHostName(fromHostId));
+		triplet.setDestinationHost(clusterGraph.getHostName(toHostId));
+
+		if (mutationListener != null)
+			mutationListener.replicaMoved(triplet);
+
+		copy(triplet);
+		return triplet;
+	}
+
+	/**
+	 * Saves the cluster graph to a binary snapshot, see
+	 * {@link ClusterGraph#writeSnapshot(Path)}.
+	 */
+	public void saveSnapshot(Path path) throws IOException {
+		clusterGraph.writeSnapshot(path);
+	}
+
+	/**
+	 * Replaces the cluster state with a snapshot written by
+	 * {@link #saveSnapshot(Path)}. Every host of the snapshot is live.
+	 */
+	public void loadSnapshot(Path path) throws IOException {
+		ClusterGraph graph = ClusterGraph.readSnapshot(path);
+
+		HostPool pool = new HostPool(graph.getHostIdLimit());
+		for (int hostId = 0; hostId < graph.getHostIdLimit(); hostId++) {
+			if (graph.getHostName(hostId) != null)
+				pool.add(hostId);
+		}
+
+		clusterGraph = graph;
+		hosts = pool;
+		drainingHosts = new HostPool();
+		setPlacementStrategy(placementStrategy);
+		sourceSelector.clear();
+	}
+
+	@Override
+	public void deleteCluster() {
+		applyClusterDeleted();
+
+		if (mutationListener != null)
+			mutationListener.clusterDeleted();
+
+		operationCompleted();
+	}
+
+	void applyClusterDeleted() {
+		clusterGraph.removeAll();
+		hosts.clear();
+		drainingHosts.clear();
+		placementStrategy.clear();
+		sourceSelector.clear();
+	}
+
+	/*
+	 * Adds a copy a replayed log recorded, without validating or copying it
+	 */
+	void applyReplicaAdded(String file, String host) {
+		if (clusterGraph.addReplica(file, host))
+			placementStrategy.replicaAdded(clusterGraph.getHostId(host));
+	}
+
+	void applyReplicaMoved(String file, String fromHost, String toHost) {
+		int fileId = clusterGraph.getFileId(file);
+		int fromHostId = clusterGraph.getHostId(fromHost);
+		int toHostId = clusterGraph.getHostId(toHost);
+
+		if (fileId >= 0 && clusterGraph.moveReplica(fileId, fromHostId, toHostId)) {
+			placementStrategy.replicaRemoved(fromHostId);
+			placementStrategy.replicaAdded(toHostId);
 		}
+	}
+
+	/**
+	 * Applies mutations replayed from a log, e.g. by a recovering mutation log,
+	 * to the cluster state only: no copy is issued, no metrics are recorded and
+	 * the mutation listener is not told.
+	 */
+	public MutationListener getReplayTarget() {
+		return new MutationReplay(this);
+	}
+
+	/**
+	 * Sets the listener told about every change to the cluster, e.g. a
+	 * mutation log. Pass null to stop notifications.
+	 */
+	public void setMutationListener(MutationListener mutationListener) {
+		this.mutationListener = mutationListener;
+	}
+
+	public MutationListener getMutationListener() {
+		return mutationListener;
+	}
+
+	private void operationCompleted() {
+		if (mutationListener != null)
+			mutationListener.operationCompleted();
+	}
+
+	/**
+	 * Read-only view of the live host names
+	 */
+	@Override
+	public Set<String> getHosts() {
+		return new AbstractSet<String>() {
+			@Override
+			public boolean contains(Object host) {
+				return host instanceof String && hosts.contains(clusterGraph.getHostId((String) host));
+			}
+
+			@Override
+			public int size() {
+				return hosts.size();
+			}
+
+			@Override
+			public Iterator<String> iterator() {
+				return new Iterator<String>() {
+					int index = 0;
+
+					@Override
+					public boolean hasNext() {
+						return index < hosts.size();
+					}
+
+					@Override
+					public String next() {
+						if (!hasNext())
+							throw new NoSuchElementException();
+						return clusterGraph.getHostName(hosts.get(index++));
+					}
+				};
+			}
+		};
+	}
+
+	@Override
+	public Set<String> getHostsForFile(String fileName) {
+		return clusterGraph.getHostsForFile(fileName);
+	}
 
-		return selectedItem;
+	/**
+	 * Publishes the changes made so far and returns the resulting immutable
+	 * version of the cluster graph, which other threads may read without locks.
+	 */
+	public GraphVersion getVersion() {
+		return clusterGraph.publish();
 	}
 
 	@Override
@@ -0,0 +1,137 @@
+package com.filecluster.ha;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Set of host ids backed by a dense array plus a position index. Add, remove
+ * (swap with the last entry) and uniform random selection are all O(1), and a
+ * selection can exclude a handful of hosts without touching the pool.
+ */
+public class HostPool {
+	private static final int ABSENT = -1;
+
+	private int[] members;
+	private int[] positions;
+	private int size;
+
+	public HostPool() {
+		this(16);
+	}
+
+	public HostPool(int expectedHosts) {
+		members = new int[Math.max(expectedHosts, 16)];
+		positions = new int[members.length];
+		Arrays.fill(positions, ABSENT);
+	}
+
+	public boolean add(int host) {
+		if (contains(host))
+			return false;
+
+		if (host >= positions.length) {
+			int oldLength = positions.length;
+			positions = Arrays.copyOf(positions, Math.max(host + 1, oldLength * 2));
+			Arrays.fill(positions, oldLength, positions.length, ABSENT);
+		}
+
+		if (size == members.length)
+			members = Arrays.copyOf(members, size * 2);
+
+		members[size] = host;
+		positions[host] = size;
+		size++;
+		return true;
+	}
+
+	public boolean remove(int host) {
+		if (!contains(host))
+			return false;
+
+		// Move the last member into the freed position
+		int position = positions[host];
+		int last = members[--size];
+		members[position] = last;
+		positions[last] = position;
+		positions[host] = ABSENT;
+		return true;
+	}
+
+	public boolean contains(int host) {
+		return host >= 0 && host < positions.length && positions[host] != ABSENT;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int get(int index) {
+		return members[index];
+	}
+
+	/**
+	 * Picks a member uniformly at random, or -1 if the pool is empty.
+	 */
+	public int pick(Random random) {
+		return size == 0 ? -1 : members[random.nextInt(size)];
+	}
+
+	/**
+	 * Picks a member uniformly at random among those not in
+	 * excludedHosts[0..excludedCount). Returns -1 if no member is left. Costs
+	 * O(k log k) in the number of exclusions, independent of the pool size.
+	 */
+	public int pick(Random random, int[] excludedHosts, int excludedCount) {
+		int[] excludedPositions = new int[excludedCount];
+		int excluded = 0;
+
+		for (int i = 0; i < excludedCount; i++) {
+			int host = excludedHosts[i];
+			if (contains(host) && !containsPosition(excludedPositions, excluded, positions[host]))
+				excludedPositions[excluded++] = positions[host];
+		}
+
+		if (size - excluded <= 0)
+			return -1;
+
+		// Draw among the remaining slots, then step over every excluded slot at or below the draw
+		Arrays.sort(excludedPositions, 0, excluded);
+		int index = random.nextInt(size - excluded);
+		for (int i = 0; i < excluded; i++) {
+			if (excludedPositions[i] <= index)
+				index++;
+		}
+
+		return members[index];
+	}
+
+	public int pick(Random random, int excludedHost) {
+		if (!contains(excludedHost))
+			return pick(random);
+
+		if (size <= 1)
+			return -1;
+
+		// Draw among size - 1 slots and map a hit on the excluded slot to the last one
+		int index = random.nextInt(size - 1);
+		if (index == positions[excludedHost])
+			index = size - 1;
+
+		return members[index];
+	}
+
+	public void clear() {
+		for (int i = 0; i < size; i++) {
+			positions[members[i]] = ABSENT;
+		}
+		size = 0;
+	}
+
+	private static boolean containsPosition(int[] list, int count, int value) {
+		for (int i = 0; i < count; i++) {
+			if (list[i] == value)
+				return true;
+		}
+		return false;
+	}
+}
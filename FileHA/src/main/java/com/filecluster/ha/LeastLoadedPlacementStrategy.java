@@ -0,0 +1,180 @@
+package com.filecluster.ha;
+
+import java.util.Arrays;
+
+/**
+ * Places every new copy on the host holding the fewest files. Hosts sit in an
+ * indexed binary min-heap keyed by their load, so a selection or a load change
+ * costs O(log hosts) and excluded hosts are stepped around by lifting them out
+ * of the heap for the duration of the selection.
+ */
+public class LeastLoadedPlacementStrategy implements PlacementStrategy {
+	private static final int ABSENT = -1;
+
+	private int[] heap = new int[16];
+	private int[] heapIndex = new int[16];
+	private int[] loads = new int[16];
+	private int size;
+
+	public LeastLoadedPlacementStrategy() {
+		Arrays.fill(heapIndex, ABSENT);
+	}
+
+	@Override
+	public synchronized void hostAdded(int host, int load) {
+		if (contains(host))
+			return;
+
+		ensureHostCapacity(host + 1);
+		loads[host] = load;
+		insert(host);
+	}
+
+	@Override
+	public synchronized void hostRemoved(int host) {
+		if (contains(host))
+			removeAt(heapIndex[host]);
+	}
+
+	@Override
+	public synchronized void replicaAdded(int host) {
+		if (contains(host)) {
+			loads[host]++;
+			siftDown(heapIndex[host]);
+		}
+	}
+
+	@Override
+	public synchronized void replicaRemoved(int host) {
+		if (contains(host) && loads[host] > 0) {
+			loads[host]--;
+			siftUp(heapIndex[host]);
+		}
+	}
+
+	@Override
+	public synchronized int selectHost(int[] excludedHosts, int excludedCount) {
+		if (size == 0)
+			return -1;
+
+		if (!isExcluded(heap[0], excludedHosts, excludedCount))
+			return placeOnRoot();
+
+		// Lift the excluded hosts out so the root is the least loaded eligible host
+		int[] lifted = new int[excludedCount];
+		int liftedCount = 0;
+		for (int i = 0; i < excludedCount; i++) {
+			if (contains(excludedHosts[i])) {
+				lifted[liftedCount++] = excludedHosts[i];
+				removeAt(heapIndex[excludedHosts[i]]);
+			}
+		}
+
+		int selected = size == 0 ? -1 : placeOnRoot();
+
+		for (int i = 0; i < liftedCount; i++) {
+			insert(lifted[i]);
+		}
+
+		return selected;
+	}
+
+	public synchronized int getLoad(int host) {
+		return contains(host) ? loads[host] : 0;
+	}
+
+	@Override
+	public synchronized void clear() {
+		for (int i = 0; i < size; i++) {
+			heapIndex[heap[i]] = ABSENT;
+		}
+		size = 0;
+	}
+
+	private int placeOnRoot() {
+		int host = heap[0];
+		loads[host]++;
+		siftDown(0);
+		return host;
+	}
+
+	private boolean contains(int host) {
+		return host >= 0 && host < heapIndex.length && heapIndex[host] != ABSENT;
+	}
+
+	private static boolean isExcluded(int host, int[] excludedHosts, int excludedCount) {
+		for (int i = 0; i < excludedCount; i++) {
+			if (excludedHosts[i] == host)
+				return true;
+		}
+		return false;
+	}
+
+	private void insert(int host) {
+		if (size == heap.length)
+			heap = Arrays.copyOf(heap, size * 2);
+
+		heap[size] = host;
+		heapIndex[host] = size;
+		size++;
+		siftUp(size - 1);
+	}
+
+	private void removeAt(int index) {
+		int host = heap[index];
+		int last = heap[--size];
+		heapIndex[host] = ABSENT;
+
+		if (index < size) {
+			heap[index] = last;
+			heapIndex[last] = index;
+			siftDown(index);
+			siftUp(heapIndex[last]);
+		}
+	}
+
+	private void siftUp(int index) {
+		int host = heap[index];
+		while (index > 0) {
+			int parent = (index - 1) >>> 1;
+			if (loads[heap[parent]] <= loads[host])
+				break;
+
+			move(heap[parent], index);
+			index = parent;
+		}
+		move(host, index);
+	}
+
+	private void siftDown(int index) {
+		int host = heap[index];
+		int half = size >>> 1;
+		while (index < half) {
+			int child = 2 * index + 1;
+			if (child + 1 < size && loads[heap[child + 1]] < loads[heap[child]])
+				child++;
+
+			if (loads[host] <= loads[heap[child]])
+				break;
+
+			move(heap[child], index);
+			index = child;
+		}
+		move(host, index);
+	}
+
+	private void move(int host, int index) {
+		heap[index] = host;
+		heapIndex[host] = index;
+	}
+
+	private void ensureHostCapacity(int hostLimit) {
+		if (hostLimit > heapIndex.length) {
+			int oldLength = heapIndex.length;
+			int capacity = Math.max(hostLimit, oldLength * 2);
+			heapIndex = Arrays.copyOf(heapIndex, capacity);
+			loads = Arrays.copyOf(loads, capacity);
+			Arrays.fill(heapIndex, oldLength, capacity, ABSENT);
+		}
+	}
+}
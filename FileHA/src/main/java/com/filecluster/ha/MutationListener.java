@@ -0,0 +1,40 @@
+package com.filecluster.ha;
+
+/**
+ * Receives every change applied to a cluster, after it has been applied and in
+ * the order it was applied, so the changes can be recorded and replayed.
+ */
+public interface MutationListener {
+
+	/**
+	 * A host joined, or moved to another failure domain. The domain is null for
+	 * an unlabelled host.
+	 */
+	void hostAdded(String host, String failureDomain);
+
+	void hostRemoved(String host);
+
+	void fileAdded(String file, String host);
+
+	/**
+	 * A copy of a failed host's file was placed on a new host.
+	 */
+	void failoverPlanned(HAInfoTriplet triplet);
+
+	/**
+	 * A copy was moved from the source host to the destination host, e.g. off a
+	 * host being decommissioned.
+	 */
+	void replicaMoved(HAInfoTriplet triplet);
+
+	void replicationFactorChanged(int replicationFactor);
+
+	void clusterDeleted();
+
+	/**
+	 * Called when a public operation has finished applying all of its changes,
+	 * i.e. at a point where the cluster state is consistent.
+	 */
+	default void operationCompleted() {
+	}
+}
@@ -0,0 +1,50 @@
+package com.filecluster.ha;
+
+/**
+ * Applies mutations read back from a log to the cluster state only. Unlike
+ * the public operations it issues no copies, records no metrics and does not
+ * tell the cluster's mutation listener, so a recovery neither redoes copies
+ * nor logs its own replay.
+ */
+final class MutationReplay implements MutationListener {
+	private final HAFileCluster cluster;
+
+	MutationReplay(HAFileCluster cluster) {
+		this.cluster = cluster;
+	}
+
+	@Override
+	public void hostAdded(String host, String failureDomain) {
+		cluster.applyHostAdded(host, failureDomain);
+	}
+
+	@Override
+	public void hostRemoved(String host) {
+		cluster.applyHostRemoved(host);
+	}
+
+	@Override
+	public void fileAdded(String file, String host) {
+		cluster.applyReplicaAdded(file, host);
+	}
+
+	@Override
+	public void failoverPlanned(HAInfoTriplet triplet) {
+		cluster.applyReplicaAdded(triplet.getFileToBeCopied(), triplet.getDestinationHost());
+	}
+
+	@Override
+	public void replicaMoved(HAInfoTriplet triplet) {
+		cluster.applyReplicaMoved(triplet.getFileToBeCopied(), triplet.getSourceHost(), triplet.getDestinationHost());
+	}
+
+	@Override
+	public void replicationFactorChanged(int replicationFactor) {
+		cluster.clusterGraph.setReplicationFactor(replicationFactor);
+	}
+
+	@Override
+	public void clusterDeleted() {
+		cluster.applyClusterDeleted();
+	}
+}
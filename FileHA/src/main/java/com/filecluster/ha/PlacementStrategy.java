@@ -0,0 +1,41 @@
+package com.filecluster.ha;
+
+/**
+ * Chooses the host that receives a new copy of a file. The cluster keeps the
+ * strategy informed of host membership and of copies placed on named hosts;
+ * copies placed through {@link #selectHost(int[], int)} are accounted for by
+ * the strategy itself, so a batch of selections made before any of them is
+ * applied still spreads out. Hosts are identified by their cluster graph id.
+ */
+public interface PlacementStrategy {
+
+	/**
+	 * A host joined the placement candidates, already holding the given number
+	 * of copies.
+	 */
+	void hostAdded(int host, int load);
+
+	/**
+	 * A host joined in the given failure domain id, or -1 if it is unlabelled.
+	 * Adding a known host again relabels it. Strategies that ignore topology
+	 * keep this default.
+	 */
+	default void hostAdded(int host, int load, int failureDomain) {
+		hostAdded(host, load);
+	}
+
+	void hostRemoved(int host);
+
+	void replicaAdded(int host);
+
+	void replicaRemoved(int host);
+
+	/**
+	 * Picks a host not listed in excludedHosts[0..excludedCount) and counts the
+	 * new copy against it. Returns -1 if every host is excluded. May be called
+	 * from several failover planning threads at once.
+	 */
+	int selectHost(int[] excludedHosts, int excludedCount);
+
+	void clear();
+}
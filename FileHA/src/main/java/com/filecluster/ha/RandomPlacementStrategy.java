@@ -0,0 +1,44 @@
+package com.filecluster.ha;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Uniform random placement over all live hosts. Selection only reads the pool,
+ * so concurrent planning threads need no locking.
+ */
+public class RandomPlacementStrategy implements PlacementStrategy {
+	private final HostPool pool = new HostPool();
+
+	@Override
+	public void hostAdded(int host, int load) {
+		pool.add(host);
+	}
+
+	@Override
+	public void hostRemoved(int host) {
+		pool.remove(host);
+	}
+
+	@Override
+	public void replicaAdded(int host) {
+		// Load does not matter for a random pick
+	}
+
+	@Override
+	public void replicaRemoved(int host) {
+		// Load does not matter for a random pick
+	}
+
+	@Override
+	public int selectHost(int[] excludedHosts, int excludedCount) {
+		if (excludedCount == 1)
+			return pool.pick(ThreadLocalRandom.current(), excludedHosts[0]);
+
+		return pool.pick(ThreadLocalRandom.current(), excludedHosts, excludedCount);
+	}
+
+	@Override
+	public void clear() {
+		pool.clear();
+	}
+}
@@ -0,0 +1,181 @@
+package com.filecluster.ha;
+
+import java.io.Closeable;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.IntPredicate;
+import java.util.logging.Logger;
+
+/**
+ * Moves copies from the most to the least loaded hosts in the background, so
+ * hosts that joined empty or came back after a failure fill up while the
+ * older ones stop accumulating failover copies. Every tick hands at most
+ * movesPerSecond / 10 moves to the cluster's rebalance. A tick that moves
+ * fewer found the cluster balanced, or stuck when the hosts still differ by
+ * more than the max skew but no copy may move, e.g. because of failure
+ * domains; either way the rebalancer then checks again about once a second. A
+ * tick that throws is retried on the next tick.
+ * <p>
+ * Moves run on the rebalancer's own thread, so the cluster must be safe to
+ * use from it, e.g. a {@link ConcurrentFileCluster}, or not be used by anyone
+ * else.
+ */
+public class Rebalancer implements Closeable {
+	private static final Logger logger = Logger.getLogger(Rebalancer.class.getName());
+
+	public static final int DEFAULT_MAX_SKEW = 2;
+
+	private static final long TICK_MILLIS = 100;
+	private static final long IDLE_MILLIS = 1000;
+
+	private final RebalanceStep step;
+	private final IntPredicate balancedCheck;
+	private final int movesPerTick;
+	private final Thread thread;
+
+	private volatile int maxSkew = DEFAULT_MAX_SKEW;
+	private volatile Consumer<HAInfoTriplet> tripletConsumer;
+
+	private boolean closed, balanced, stuck; // Guarded by this
+	private long moveCount; // Guarded by this
+
+	private interface RebalanceStep {
+		int rebalance(int maxSkew, int maxMoves, Consumer<HAInfoTriplet> tripletConsumer);
+	}
+
+	public Rebalancer(HAFileCluster cluster, int movesPerSecond) {
+		this(cluster::rebalance, cluster::isBalanced, movesPerSecond);
+	}
+
+	public Rebalancer(ConcurrentFileCluster cluster, int movesPerSecond) {
+		this(cluster::rebalance, cluster::isBalanced, movesPerSecond);
+	}
+
+	private Rebalancer(RebalanceStep step, IntPredicate balancedCheck, int movesPerSecond) {
+		if (movesPerSecond < 1)
+			throw new IllegalArgumentException("Moves per second must be at least 1");
+
+		this.step = step;
+		this.balancedCheck = balancedCheck;
+		this.movesPerTick = (int) Math.max(1, movesPerSecond * TICK_MILLIS / 1000);
+
+		thread = new Thread(this::run, "rebalancer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Sets how many files the most and least loaded host may differ by before
+	 * copies are moved, at least 1.
+	 */
+	public synchronized void setMaxSkew(int maxSkew) {
+		if (maxSkew < 1)
+			throw new IllegalArgumentException("Max skew must be at least 1");
+
+		// Whatever was found for the old skew no longer holds
+		this.maxSkew = maxSkew;
+		balanced = false;
+		stuck = false;
+	}
+
+	/**
+	 * Receives the copy of every move, e.g. to run it.
+	 */
+	public void setTripletConsumer(Consumer<HAInfoTriplet> tripletConsumer) {
+		this.tripletConsumer = tripletConsumer;
+	}
+
+	public synchronized long getMoveCount() {
+		return moveCount;
+	}
+
+	/**
+	 * Whether the last tick found the hosts out of balance with no copy left
+	 * that may move.
+	 */
+	public synchronized boolean isStuck() {
+		return stuck;
+	}
+
+	/**
+	 * Waits until a tick found the cluster balanced. Returns false if a tick
+	 * found it stuck instead, or neither happened within the timeout.
+	 */
+	public synchronized boolean awaitBalanced(long timeoutMillis) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		while (!balanced) {
+			if (stuck)
+				return false;
+
+			long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+			if (remaining <= 0)
+				return false;
+
+			wait(remaining);
+		}
+		return true;
+	}
+
+	/**
+	 * Stops the rebalancer after the tick under way.
+	 */
+	@Override
+	public void close() {
+		synchronized (this) {
+			if (closed)
+				return;
+
+			closed = true;
+			notifyAll();
+		}
+
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void run() {
+		while (true) {
+			int moved = 0;
+			int skew = maxSkew;
+			boolean failed = false, done = false, even = false;
+			try {
+				Consumer<HAInfoTriplet> consumer = tripletConsumer != null ? tripletConsumer : triplet -> {};
+				moved = step.rebalance(skew, movesPerTick, consumer);
+				done = moved < movesPerTick;
+				even = done && balancedCheck.test(skew);
+			} catch (RuntimeException e) {
+				failed = true;
+				logger.severe("Rebalance failed: " + e);
+			}
+
+			synchronized (this) {
+				// A failed tick, or one run with a skew changed since, tells nothing about
+				// the balance, try again on the next tick
+				done &= !failed && skew == maxSkew;
+				if (done && !even && !stuck)
+					logger.warning("Rebalance stuck: no copy of the most loaded hosts may move to the least loaded ones");
+
+				moveCount += moved;
+				balanced = done && even;
+				stuck = done && !even;
+				notifyAll();
+
+				try {
+					long pause = balanced || stuck ? IDLE_MILLIS : TICK_MILLIS;
+					long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(pause);
+					while (!closed && System.nanoTime() < deadline) {
+						wait(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+
+				if (closed)
+					return;
+			}
+		}
+	}
+}
@@ -0,0 +1,92 @@
+package com.filecluster.ha;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * What a failover of a set of hosts would cost, as worked out by
+ * {@link FailoverSimulator}. Nothing in the cluster is changed to get it.
+ */
+public class SimulationResult {
+	boolean rejected;
+	int failedHostCount;
+	int affectedFileCount, lostFileCount;
+	long copyCount, bytesToMove;
+	int survivingHostCount;
+	long maxHostLoad;
+	double meanHostLoad;
+	List<String> lostFiles = new ArrayList<String>();
+
+	/**
+	 * Whether a failover of these hosts would be refused, because there are
+	 * more than the max failed hosts or too few would be left. The other
+	 * figures are what it would cost if it went ahead.
+	 */
+	public boolean isRejected() {
+		return rejected;
+	}
+
+	/**
+	 * Number of the given hosts that are part of the cluster.
+	 */
+	public int getFailedHostCount() {
+		return failedHostCount;
+	}
+
+	/**
+	 * Number of files that would lose at least one copy, lost ones included.
+	 */
+	public int getAffectedFileCount() {
+		return affectedFileCount;
+	}
+
+	public int getLostFileCount() {
+		return lostFileCount;
+	}
+
+	/**
+	 * Names of the files that would lose every copy.
+	 */
+	public List<String> getLostFiles() {
+		return lostFiles;
+	}
+
+	/**
+	 * Number of copies the failover would make, those still owed to
+	 * under-replicated files included.
+	 */
+	public long getCopyCount() {
+		return copyCount;
+	}
+
+	/**
+	 * Bytes the failover would copy, 0 unless the simulator knows file sizes.
+	 */
+	public long getBytesToMove() {
+		return bytesToMove;
+	}
+
+	public int getSurvivingHostCount() {
+		return survivingHostCount;
+	}
+
+	/**
+	 * Files on the busiest surviving host once the new copies are spread evenly
+	 * over the survivors.
+	 */
+	public long getMaxHostLoad() {
+		return maxHostLoad;
+	}
+
+	public double getMeanHostLoad() {
+		return meanHostLoad;
+	}
+
+	/**
+	 * Max over mean host load after the failover, 1 for a perfectly even
+	 * cluster.
+	 */
+	public double getLoadSkew() {
+		return meanHostLoad == 0 ? 1 : maxHostLoad / meanHostLoad;
+	}
+}
@@ -0,0 +1,182 @@
+package com.filecluster.ha;
+
+import java.util.Arrays;
+
+/**
+ * Chooses which surviving copy a missing copy is read from. Every host has an
+ * outbound queue of reads handed out but not yet done, and a bandwidth budget
+ * in any unit as long as all hosts use the same one, e.g. MB/s. A read goes to
+ * the candidate whose queue would drain first, so the recovery of a large host
+ * is spread over every host holding its files, and a host with twice the
+ * budget serves twice the reads.
+ * <p>
+ * Hosts are identified by their cluster graph id. A failover plans against a
+ * {@link Snapshot} rather than the live queues, so its planning threads share
+ * no lock and a given plan split always picks the same sources.
+ */
+public class SourceSelector {
+	public static final int DEFAULT_BANDWIDTH = 1;
+
+	private int[] queued = new int[16];
+	private int[] bandwidths = new int[16]; // 0 for the default
+
+	/**
+	 * Sets the read budget of a host, kept until the host is removed.
+	 */
+	public synchronized void setBandwidth(int host, int bandwidth) {
+		if (bandwidth < 1)
+			throw new IllegalArgumentException("Bandwidth must be at least 1");
+
+		ensureHostCapacity(host + 1);
+		bandwidths[host] = bandwidth;
+	}
+
+	public synchronized int getBandwidth(int host) {
+		return bandwidth(host);
+	}
+
+	/**
+	 * Number of reads from the host handed out and not yet reported done.
+	 */
+	public synchronized int getQueued(int host) {
+		return host >= 0 && host < queued.length ? queued[host] : 0;
+	}
+
+	/**
+	 * Picks one of candidates[0..candidateCount) and queues a read on it. Returns
+	 * -1 if there is no candidate.
+	 */
+	public synchronized int selectSource(int[] candidates, int candidateCount) {
+		for (int i = 0; i < candidateCount; i++) {
+			ensureHostCapacity(candidates[i] + 1);
+		}
+
+		int best = select(candidates, candidateCount, queued, bandwidths, null);
+		if (best >= 0)
+			queued[best]++;
+		return best;
+	}
+
+	/**
+	 * Copies the queues and budgets of hosts [0..hostLimit) for a failover to
+	 * plan against.
+	 */
+	public synchronized Snapshot snapshot(int hostLimit) {
+		ensureHostCapacity(hostLimit);
+		return new Snapshot(Arrays.copyOf(queued, hostLimit), Arrays.copyOf(bandwidths, hostLimit));
+	}
+
+	/**
+	 * Queues the reads a planning task handed out, reads[host] per host.
+	 */
+	public synchronized void addQueued(int[] reads) {
+		ensureHostCapacity(reads.length);
+		for (int host = 0; host < reads.length; host++) {
+			queued[host] += reads[host];
+		}
+	}
+
+	public synchronized void readCompleted(int host) {
+		if (host >= 0 && host < queued.length && queued[host] > 0)
+			queued[host]--;
+	}
+
+	/**
+	 * Forgets the queue and budget of a host, whose id may be given to a new
+	 * host later.
+	 */
+	public synchronized void hostRemoved(int host) {
+		if (host >= 0 && host < queued.length) {
+			queued[host] = 0;
+			bandwidths[host] = 0;
+		}
+	}
+
+	/**
+	 * Empties every queue, e.g. once reads are no longer tracked. Budgets stay.
+	 */
+	public synchronized void clearQueues() {
+		Arrays.fill(queued, 0);
+	}
+
+	public synchronized void clear() {
+		Arrays.fill(queued, 0);
+		Arrays.fill(bandwidths, 0);
+	}
+
+	private int bandwidth(int host) {
+		return bandwidth(bandwidths, host);
+	}
+
+	private static int bandwidth(int[] bandwidths, int host) {
+		return host < bandwidths.length && bandwidths[host] > 0 ? bandwidths[host] : DEFAULT_BANDWIDTH;
+	}
+
+	/*
+	 * The candidate whose queue, plus the reads counted in planned if given,
+	 * would drain first. Compares (queued + 1) / bandwidth, the time until the
+	 * new read is done; the first candidate wins a tie
+	 */
+	private static int select(int[] candidates, int candidateCount, int[] queued, int[] bandwidths, int[] planned) {
+		if (candidateCount == 0)
+			return -1;
+
+		int best = candidates[0];
+		long bestQueued = queued[best] + (planned == null ? 0 : planned[best]);
+
+		for (int i = 1; i < candidateCount; i++) {
+			int host = candidates[i];
+			long hostQueued = queued[host] + (planned == null ? 0 : planned[host]);
+
+			if ((hostQueued + 1) * bandwidth(bandwidths, best) < (bestQueued + 1) * bandwidth(bandwidths, host)) {
+				best = host;
+				bestQueued = hostQueued;
+			}
+		}
+
+		return best;
+	}
+
+	/**
+	 * The queues and budgets as they were when a failover started planning. It
+	 * is never changed, so planning threads read it without locking. Each one
+	 * counts the reads it hands out in its own array and adds them to the
+	 * selector with {@link SourceSelector#addQueued(int[])} once done.
+	 */
+	public static final class Snapshot {
+		private final int[] queued, bandwidths;
+
+		Snapshot(int[] queued, int[] bandwidths) {
+			this.queued = queued;
+			this.bandwidths = bandwidths;
+		}
+
+		/**
+		 * Upper bound (exclusive) of the host ids covered, and the length of the
+		 * reads arrays.
+		 */
+		public int getHostLimit() {
+			return queued.length;
+		}
+
+		/**
+		 * Picks one of candidates[0..candidateCount) given the reads the task has
+		 * already handed out, and counts the new read in reads. Returns -1 if there
+		 * is no candidate.
+		 */
+		public int selectSource(int[] candidates, int candidateCount, int[] reads) {
+			int best = select(candidates, candidateCount, queued, bandwidths, reads);
+			if (best >= 0)
+				reads[best]++;
+			return best;
+		}
+	}
+
+	private void ensureHostCapacity(int hostLimit) {
+		if (hostLimit > queued.length) {
+			int capacity = Math.max(hostLimit, queued.length * 2);
+			queued = Arrays.copyOf(queued, capacity);
+			bandwidths = Arrays.copyOf(bandwidths, capacity);
+		}
+	}
+}
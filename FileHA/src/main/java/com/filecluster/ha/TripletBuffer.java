@@ -0,0 +1,124 @@
+package com.filecluster.ha;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+import com.filecluster.graph.ClusterGraph;
+
+/**
+ * Columnar failover result: file, source and destination ids in three
+ * parallel int arrays, filled by {@link HAFileCluster#performHA(String[], TripletBuffer)}
+ * without allocating per file. The arrays are kept when the buffer is reused.
+ * <p>
+ * Names are looked up in the cluster on demand, so read them before the
+ * cluster is changed again.
+ */
+public class TripletBuffer {
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private int[] fileIds;
+	private int[] sourceHostIds;
+	private int[] destinationHostIds;
+	private int size;
+	private ClusterGraph clusterGraph;
+
+	public TripletBuffer() {
+		this(INITIAL_CAPACITY);
+	}
+
+	public TripletBuffer(int expectedTriplets) {
+		int capacity = Math.max(expectedTriplets, 16);
+		fileIds = new int[capacity];
+		sourceHostIds = new int[capacity];
+		destinationHostIds = new int[capacity];
+	}
+
+	void reset(ClusterGraph clusterGraph) {
+		this.clusterGraph = clusterGraph;
+		size = 0;
+	}
+
+	void add(int fileId, int sourceHostId, int destinationHostId) {
+		if (size == fileIds.length) {
+			int capacity = size + (size >> 1);
+			fileIds = Arrays.copyOf(fileIds, capacity);
+			sourceHostIds = Arrays.copyOf(sourceHostIds, capacity);
+			destinationHostIds = Arrays.copyOf(destinationHostIds, capacity);
+		}
+
+		fileIds[size] = fileId;
+		sourceHostIds[size] = sourceHostId;
+		destinationHostIds[size] = destinationHostId;
+		size++;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int getFileId(int index) {
+		return fileIds[checkIndex(index)];
+	}
+
+	public int getSourceHostId(int index) {
+		return sourceHostIds[checkIndex(index)];
+	}
+
+	public int getDestinationHostId(int index) {
+		return destinationHostIds[checkIndex(index)];
+	}
+
+	public String getFileToBeCopied(int index) {
+		return clusterGraph.getFileName(getFileId(index));
+	}
+
+	public String getSourceHost(int index) {
+		return clusterGraph.getHostName(getSourceHostId(index));
+	}
+
+	public String getDestinationHost(int index) {
+		return clusterGraph.getHostName(getDestinationHostId(index));
+	}
+
+	/**
+	 * Builds the triplet at the given index.
+	 */
+	public HAInfoTriplet get(int index) {
+		HAInfoTriplet triplet = new HAInfoTriplet();
+		triplet.setFileToBeCopied(getFileToBeCopied(index));
+		triplet.setSourceHost(getSourceHost(index));
+		triplet.setDestinationHost(getDestinationHost(index));
+		return triplet;
+	}
+
+	/**
+	 * List view building each triplet when it is read.
+	 */
+	public List<HAInfoTriplet> asList() {
+		return new TripletList();
+	}
+
+	public void clear() {
+		size = 0;
+	}
+
+	private int checkIndex(int index) {
+		if (index < 0 || index >= size)
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+		return index;
+	}
+
+	private class TripletList extends AbstractList<HAInfoTriplet> implements RandomAccess {
+		@Override
+		public HAInfoTriplet get(int index) {
+			return TripletBuffer.this.get(index);
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+	}
+}
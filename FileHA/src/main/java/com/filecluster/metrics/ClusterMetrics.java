@@ -0,0 +1,215 @@
+package com.filecluster.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms of a cluster, read through the getters or
+ * over JMX once {@link #register(String)} was called. A cluster only records
+ * while metrics are set on it; without them the hot paths skip even the clock
+ * reads.
+ * <p>
+ * Host loads are not recorded but read from the cluster when asked for.
+ */
+public class ClusterMetrics implements ClusterMetricsMXBean {
+	private static final long[] NO_LOADS = new long[0];
+
+	private final LongAdder filesAdded = new LongAdder();
+	private final LongAdder failovers = new LongAdder();
+	private final LongAdder copiesPlanned = new LongAdder();
+	private final LongAdder lostFiles = new LongAdder();
+	private final LongAdder unplacedCopies = new LongAdder();
+
+	private final LatencyHistogram addFileLatency = new LatencyHistogram();
+	private final LatencyHistogram failoverLatency = new LatencyHistogram();
+	private final LatencyHistogram placementLatency = new LatencyHistogram();
+
+	private volatile Supplier<long[]> hostLoads;
+	private ObjectName objectName;
+
+	public void recordFileAdded(long nanos) {
+		filesAdded.increment();
+		addFileLatency.record(nanos);
+	}
+
+	/**
+	 * Counts copies added without a latency, e.g. by a bulk load.
+	 */
+	public void recordFilesAdded(long count) {
+		filesAdded.add(count);
+	}
+
+	public void recordFailover(long nanos, long copies) {
+		failovers.increment();
+		copiesPlanned.add(copies);
+		failoverLatency.record(nanos);
+	}
+
+	/**
+	 * Records the time a placement strategy took to pick one host.
+	 */
+	public void recordPlacement(long nanos) {
+		placementLatency.record(nanos);
+	}
+
+	public void recordLostFile() {
+		lostFiles.increment();
+	}
+
+	/**
+	 * Counts a copy a failover found no host for.
+	 */
+	public void recordUnplacedCopy() {
+		unplacedCopies.increment();
+	}
+
+	/**
+	 * Sets where the loads (files per host) of the live hosts are read from.
+	 * Called by the cluster the metrics are set on.
+	 */
+	public void setHostLoads(Supplier<long[]> hostLoads) {
+		this.hostLoads = hostLoads;
+	}
+
+	public LatencyHistogram getAddFileLatency() {
+		return addFileLatency;
+	}
+
+	public LatencyHistogram getFailoverLatency() {
+		return failoverLatency;
+	}
+
+	public LatencyHistogram getPlacementLatency() {
+		return placementLatency;
+	}
+
+	@Override
+	public long getFilesAdded() {
+		return filesAdded.sum();
+	}
+
+	@Override
+	public long getFailovers() {
+		return failovers.sum();
+	}
+
+	@Override
+	public long getCopiesPlanned() {
+		return copiesPlanned.sum();
+	}
+
+	@Override
+	public long getLostFiles() {
+		return lostFiles.sum();
+	}
+
+	@Override
+	public long getUnplacedCopies() {
+		return unplacedCopies.sum();
+	}
+
+	@Override
+	public double getAddFileMeanMicros() {
+		return addFileLatency.getMean() / 1000;
+	}
+
+	@Override
+	public long getAddFileP99Micros() {
+		return TimeUnit.NANOSECONDS.toMicros(addFileLatency.getPercentile(99));
+	}
+
+	@Override
+	public double getFailoverMeanMicros() {
+		return failoverLatency.getMean() / 1000;
+	}
+
+	@Override
+	public long getFailoverMaxMicros() {
+		return TimeUnit.NANOSECONDS.toMicros(failoverLatency.getMax());
+	}
+
+	@Override
+	public long getPlacementP99Micros() {
+		return TimeUnit.NANOSECONDS.toMicros(placementLatency.getPercentile(99));
+	}
+
+	/**
+	 * Files per live host, in no particular order.
+	 */
+	public long[] getHostLoads() {
+		Supplier<long[]> source = hostLoads;
+		return source == null ? NO_LOADS : source.get();
+	}
+
+	@Override
+	public int getHostCount() {
+		return getHostLoads().length;
+	}
+
+	@Override
+	public long getMinHostLoad() {
+		long[] loads = getHostLoads();
+		long min = loads.length == 0 ? 0 : Long.MAX_VALUE;
+		for (long load : loads) {
+			min = Math.min(min, load);
+		}
+		return min;
+	}
+
+	@Override
+	public long getMaxHostLoad() {
+		long max = 0;
+		for (long load : getHostLoads()) {
+			max = Math.max(max, load);
+		}
+		return max;
+	}
+
+	@Override
+	public double getMeanHostLoad() {
+		long[] loads = getHostLoads();
+		long total = 0;
+		for (long load : loads) {
+			total += load;
+		}
+		return loads.length == 0 ? 0 : (double) total / loads.length;
+	}
+
+	@Override
+	public void reset() {
+		filesAdded.reset();
+		failovers.reset();
+		copiesPlanned.reset();
+		lostFiles.reset();
+		unplacedCopies.reset();
+		addFileLatency.reset();
+		failoverLatency.reset();
+		placementLatency.reset();
+	}
+
+	/**
+	 * Exposes the metrics as the MBean com.filecluster:type=ClusterMetrics,name=
+	 * the given name.
+	 */
+	public synchronized void register(String name) throws JMException {
+		unregister();
+
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName objectName = new ObjectName("com.filecluster:type=ClusterMetrics,name=" + ObjectName.quote(name));
+		server.registerMBean(this, objectName);
+		this.objectName = objectName;
+	}
+
+	public synchronized void unregister() throws JMException {
+		if (objectName != null) {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+			objectName = null;
+		}
+	}
+}
@@ -0,0 +1,36 @@
+package com.filecluster.metrics;
+
+/**
+ * JMX view of {@link ClusterMetrics}. Latencies are in microseconds.
+ */
+public interface ClusterMetricsMXBean {
+	long getFilesAdded();
+
+	long getFailovers();
+
+	long getCopiesPlanned();
+
+	long getLostFiles();
+
+	long getUnplacedCopies();
+
+	double getAddFileMeanMicros();
+
+	long getAddFileP99Micros();
+
+	double getFailoverMeanMicros();
+
+	long getFailoverMaxMicros();
+
+	long getPlacementP99Micros();
+
+	int getHostCount();
+
+	long getMinHostLoad();
+
+	long getMaxHostLoad();
+
+	double getMeanHostLoad();
+
+	void reset();
+}
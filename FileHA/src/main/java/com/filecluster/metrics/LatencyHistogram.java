@@ -0,0 +1,94 @@
+package com.filecluster.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Log-linear histogram of non-negative values such as latencies in
+ * nanoseconds, laid out like an HdrHistogram: every power of two is split into
+ * 32 linear buckets, so a value is kept within about 3% of itself over the
+ * whole long range in under 2000 counters. Recording is a few shifts and one
+ * atomic increment and may be done from any thread.
+ */
+public class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKET_COUNT = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+	public void record(long value) {
+		value = Math.max(0, value);
+		counts.incrementAndGet(indexOf(value));
+		count.increment();
+		sum.add(value);
+		max.accumulate(value);
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	public double getMean() {
+		long n = count.sum();
+		return n == 0 ? 0 : (double) sum.sum() / n;
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * The value below or at which the given percentage of the recorded values
+	 * fall, rounded up to the end of its bucket. 0 if nothing was recorded.
+	 */
+	public long getPercentile(double percentile) {
+		long total = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			total += counts.get(i);
+		}
+		if (total == 0)
+			return 0;
+
+		long rank = Math.max(1, (long) Math.ceil(Math.min(percentile, 100) / 100 * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			seen += counts.get(i);
+			if (seen >= rank)
+				return Math.min(highestValueOf(i), getMax());
+		}
+
+		return getMax();
+	}
+
+	public void reset() {
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			counts.set(i, 0);
+		}
+		count.reset();
+		sum.reset();
+		max.reset();
+	}
+
+	static int indexOf(long value) {
+		if (value < SUB_BUCKET_COUNT)
+			return (int) value;
+
+		// The top SUB_BUCKET_BITS + 1 bits of the value pick the bucket
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return (shift + 1) * SUB_BUCKET_COUNT + (int) ((value >>> shift) - SUB_BUCKET_COUNT);
+	}
+
+	static long highestValueOf(int index) {
+		if (index < SUB_BUCKET_COUNT)
+			return index;
+
+		int shift = index / SUB_BUCKET_COUNT - 1;
+		long lowest = (long) (index % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+}
@@ -0,0 +1,114 @@
+package com.filecluster.shard;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Consistent-hash ring mapping names onto shards. Every shard is placed at a
+ * number of pseudo-random points of a 64-bit ring and owns the names hashing
+ * up to each point, so adding or removing one of N shards only moves about
+ * 1/N of the names and the points even out the slice sizes.
+ * <p>
+ * The ring is kept as a sorted array of points, a lookup is a binary search.
+ * Not thread-safe while shards are added or removed.
+ */
+public class HashRing {
+	public static final int DEFAULT_POINTS_PER_SHARD = 128;
+
+	private final int pointsPerShard;
+	private final List<String> shards = new ArrayList<String>();
+
+	private long[] points = new long[0];
+	private int[] owners = new int[0]; // Index into shards, by point
+
+	public HashRing() {
+		this(DEFAULT_POINTS_PER_SHARD);
+	}
+
+	public HashRing(int pointsPerShard) {
+		if (pointsPerShard < 1)
+			throw new IllegalArgumentException("Points per shard must be at least 1");
+
+		this.pointsPerShard = pointsPerShard;
+	}
+
+	public void addShard(String shard) {
+		if (shards.contains(shard))
+			return;
+
+		shards.add(shard);
+		rebuild();
+	}
+
+	public void removeShard(String shard) {
+		if (shards.remove(shard))
+			rebuild();
+	}
+
+	public List<String> getShards() {
+		return new ArrayList<String>(shards);
+	}
+
+	/**
+	 * Returns the shard owning the name, or null while the ring is empty.
+	 */
+	public String shardOf(String name) {
+		if (points.length == 0)
+			return null;
+
+		// The first point at or after the hash owns it, wrapping around to the first
+		int index = Arrays.binarySearch(points, hash(name));
+		if (index < 0)
+			index = -index - 1;
+		if (index == points.length)
+			index = 0;
+
+		return shards.get(owners[index]);
+	}
+
+	private void rebuild() {
+		int count = shards.size() * pointsPerShard;
+		long[] entries = new long[count];
+		long[][] keyed = new long[count][];
+
+		for (int s = 0; s < shards.size(); s++) {
+			for (int p = 0; p < pointsPerShard; p++) {
+				keyed[s * pointsPerShard + p] = new long[] { hash(shards.get(s) + "#" + p), s };
+			}
+		}
+
+		// Ties are broken by shard name so the ring does not depend on insertion order
+		Arrays.sort(keyed, (a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0])
+				: shards.get((int) a[1]).compareTo(shards.get((int) b[1])));
+
+		int[] pointOwners = new int[count];
+		for (int i = 0; i < count; i++) {
+			entries[i] = keyed[i][0];
+			pointOwners[i] = (int) keyed[i][1];
+		}
+
+		points = entries;
+		owners = pointOwners;
+	}
+
+	/*
+	 * 64-bit FNV-1a over the UTF-8 bytes, finished with the MurmurHash3 mix so
+	 * similar names land far apart
+	 */
+	static long hash(String name) {
+		long hash = 0xcbf29ce484222325L;
+		for (byte b : name.getBytes(StandardCharsets.UTF_8)) {
+			hash ^= b & 0xff;
+			hash *= 0x100000001b3L;
+		}
+
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+}
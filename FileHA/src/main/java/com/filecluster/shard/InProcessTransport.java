@@ -0,0 +1,163 @@
+package com.filecluster.shard;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import com.filecluster.exception.ExceptionMessages;
+import com.filecluster.exception.ShardException;
+import com.filecluster.ha.ConcurrentFileCluster;
+import com.filecluster.ha.HAInfoTriplet;
+
+/**
+ * Runs every shard in this JVM, each as a {@link ConcurrentFileCluster} served
+ * by a thread of its own, the way a node would serve its requests. Meant for
+ * tests and for trying out sharding before shards move to other processes.
+ */
+public class InProcessTransport implements ShardTransport {
+	private final Map<String, Node> nodes = new LinkedHashMap<String, Node>();
+
+	private static class Node {
+		final ConcurrentFileCluster cluster;
+		final ExecutorService executor;
+
+		Node(String shard, int stripeCount) {
+			cluster = new ConcurrentFileCluster(stripeCount);
+			executor = Executors.newSingleThreadExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "shard-" + shard);
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+	}
+
+	/**
+	 * Creates shards named shard0 to shard(shardCount - 1), each with the given
+	 * number of stripes.
+	 */
+	public InProcessTransport(int shardCount, int stripeCount) {
+		if (shardCount < 1)
+			throw new IllegalArgumentException("Shard count must be at least 1");
+
+		for (int i = 0; i < shardCount; i++) {
+			String shard = "shard" + i;
+			nodes.put(shard, new Node(shard, stripeCount));
+		}
+	}
+
+	@Override
+	public List<String> getShards() {
+		return new ArrayList<String>(nodes.keySet());
+	}
+
+	/**
+	 * The cluster behind a shard, for inspection.
+	 */
+	public ConcurrentFileCluster getCluster(String shard) {
+		return node(shard).cluster;
+	}
+
+	@Override
+	public CompletableFuture<Void> addHost(String shard, String host, String failureDomain) {
+		return call(shard, cluster -> {
+			if (failureDomain == null)
+				cluster.addHost(host);
+			else
+				cluster.addHost(host, failureDomain);
+			return null;
+		});
+	}
+
+	@Override
+	public CompletableFuture<Void> removeHost(String shard, String host) {
+		return call(shard, cluster -> {
+			cluster.removeHost(host);
+			return null;
+		});
+	}
+
+	@Override
+	public CompletableFuture<Void> addFile(String shard, String file, String host) {
+		return call(shard, cluster -> {
+			cluster.addFile(file, host);
+			return null;
+		});
+	}
+
+	@Override
+	public CompletableFuture<String> addFile(String shard, String file) {
+		return call(shard, cluster -> cluster.addFile(file));
+	}
+
+	@Override
+	public CompletableFuture<List<HAInfoTriplet>> performHA(String shard, String[] failedHosts) {
+		return call(shard, cluster -> cluster.performHA(failedHosts));
+	}
+
+	@Override
+	public CompletableFuture<Set<String>> getHosts(String shard) {
+		return call(shard, cluster -> cluster.getHosts());
+	}
+
+	@Override
+	public CompletableFuture<Set<String>> getHostsForFile(String shard, String file) {
+		return call(shard, cluster -> cluster.getHostsForFile(file));
+	}
+
+	@Override
+	public CompletableFuture<Void> deleteCluster(String shard) {
+		return call(shard, cluster -> {
+			cluster.deleteCluster();
+			return null;
+		});
+	}
+
+	/**
+	 * Lets every shard finish the requests it already has, then stops them.
+	 */
+	@Override
+	public void close() {
+		for (Node node : nodes.values()) {
+			node.executor.shutdown();
+		}
+
+		boolean interrupted = false;
+		for (Node node : nodes.values()) {
+			try {
+				node.executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	private <T> CompletableFuture<T> call(String shard, Function<ConcurrentFileCluster, T> request) {
+		Node node = node(shard);
+		try {
+			return CompletableFuture.supplyAsync(() -> request.apply(node.cluster), node.executor);
+		} catch (RejectedExecutionException e) {
+			CompletableFuture<T> failed = new CompletableFuture<T>();
+			failed.completeExceptionally(new ShardException(ExceptionMessages.SHARD_FAILED + " (" + shard + ")", e));
+			return failed;
+		}
+	}
+
+	private Node node(String shard) {
+		Node node = nodes.get(shard);
+		if (node == null)
+			throw new IllegalArgumentException("No shard named " + shard);
+
+		return node;
+	}
+}
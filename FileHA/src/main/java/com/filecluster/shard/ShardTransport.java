@@ -0,0 +1,44 @@
+package com.filecluster.shard;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import com.filecluster.ha.HAInfoTriplet;
+
+/**
+ * Carries requests from a {@link ShardedFileCluster} to the nodes holding its
+ * shards. Every request is answered through a future, which completes
+ * exceptionally with the shard's own exception, e.g. a
+ * {@link com.filecluster.exception.TooManyCopiesException}, or with a transport
+ * error when the shard could not be reached.
+ * <p>
+ * A failureDomain of null leaves the host unlabelled.
+ */
+public interface ShardTransport extends Closeable {
+
+	/**
+	 * Names of the shards, fixed for the life of the transport.
+	 */
+	List<String> getShards();
+
+	CompletableFuture<Void> addHost(String shard, String host, String failureDomain);
+
+	CompletableFuture<Void> removeHost(String shard, String host);
+
+	CompletableFuture<Void> addFile(String shard, String file, String host);
+
+	CompletableFuture<String> addFile(String shard, String file);
+
+	CompletableFuture<List<HAInfoTriplet>> performHA(String shard, String[] failedHosts);
+
+	CompletableFuture<Set<String>> getHosts(String shard);
+
+	CompletableFuture<Set<String>> getHostsForFile(String shard, String file);
+
+	CompletableFuture<Void> deleteCluster(String shard);
+
+	@Override
+	void close();
+}
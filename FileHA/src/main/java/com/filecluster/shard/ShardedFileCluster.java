@@ -0,0 +1,169 @@
+package com.filecluster.shard;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import com.filecluster.exception.ExceptionMessages;
+import com.filecluster.exception.ShardException;
+import com.filecluster.ha.FileCluster;
+import com.filecluster.ha.HAInfoTriplet;
+
+/**
+ * Cluster whose files are partitioned over shards by a consistent-hash
+ * {@link HashRing}, each shard holding the graph of its own files and every
+ * host. The coordinator sends a file request to the file's shard only, and a
+ * host change or failover to all shards at once, waiting for every answer.
+ * Failover triplets are merged in shard order.
+ * <p>
+ * Shards are fixed when the cluster is made; moving files when shards are
+ * added or removed is left to the caller.
+ */
+public class ShardedFileCluster implements FileCluster, Closeable {
+	private final ShardTransport transport;
+	private final HashRing ring;
+	private final List<String> shards;
+
+	public ShardedFileCluster(ShardTransport transport) {
+		this(transport, HashRing.DEFAULT_POINTS_PER_SHARD);
+	}
+
+	public ShardedFileCluster(ShardTransport transport, int pointsPerShard) {
+		this.transport = transport;
+		this.shards = transport.getShards();
+		this.ring = new HashRing(pointsPerShard);
+
+		if (shards.isEmpty())
+			throw new IllegalArgumentException("A sharded cluster needs at least one shard");
+
+		for (String shard : shards) {
+			ring.addShard(shard);
+		}
+	}
+
+	public List<String> getShards() {
+		return new ArrayList<String>(shards);
+	}
+
+	public String getShardOf(String file) {
+		return ring.shardOf(file);
+	}
+
+	@Override
+	public void addHost(String host) {
+		addHost(host, null);
+	}
+
+	@Override
+	public void addHost(String host, String failureDomain) {
+		awaitAll(shard -> transport.addHost(shard, host, failureDomain));
+	}
+
+	@Override
+	public void removeHost(String host) {
+		awaitAll(shard -> transport.removeHost(shard, host));
+	}
+
+	@Override
+	public void addFile(String file, String host) {
+		await(transport.addFile(ring.shardOf(file), file, host));
+	}
+
+	@Override
+	public String addFile(String file) {
+		return await(transport.addFile(ring.shardOf(file), file));
+	}
+
+	/**
+	 * Fails the hosts over on all shards in parallel. If a shard fails, e.g.
+	 * because too many hosts failed, its exception is thrown once every shard
+	 * has answered.
+	 */
+	@Override
+	public List<HAInfoTriplet> performHA(String[] failedHosts) {
+		List<HAInfoTriplet> haTriplets = new ArrayList<HAInfoTriplet>();
+		for (List<HAInfoTriplet> shardTriplets : awaitAll(shard -> transport.performHA(shard, failedHosts))) {
+			haTriplets.addAll(shardTriplets);
+		}
+		return haTriplets;
+	}
+
+	/**
+	 * Hands the merged triplets to the consumer on the calling thread, after all
+	 * shards have planned theirs.
+	 */
+	@Override
+	public int performHA(String[] failedHosts, Consumer<HAInfoTriplet> tripletConsumer) {
+		List<HAInfoTriplet> haTriplets = performHA(failedHosts);
+		haTriplets.forEach(tripletConsumer);
+		return haTriplets.size();
+	}
+
+	/**
+	 * Every shard knows all hosts, the first one is asked.
+	 */
+	@Override
+	public Set<String> getHosts() {
+		return await(transport.getHosts(shards.get(0)));
+	}
+
+	@Override
+	public Set<String> getHostsForFile(String fileName) {
+		return await(transport.getHostsForFile(ring.shardOf(fileName), fileName));
+	}
+
+	@Override
+	public void deleteCluster() {
+		awaitAll(shard -> transport.deleteCluster(shard));
+	}
+
+	@Override
+	public void close() {
+		transport.close();
+	}
+
+	/*
+	 * Sends the request to every shard at once and returns the answers in shard
+	 * order. The first failure is thrown after all shards have answered, so no
+	 * shard is still working on the request when the caller sees it
+	 */
+	private <T> List<T> awaitAll(Function<String, CompletableFuture<T>> request) {
+		List<CompletableFuture<T>> futures = new ArrayList<CompletableFuture<T>>(shards.size());
+		for (String shard : shards) {
+			futures.add(request.apply(shard));
+		}
+
+		List<T> results = new ArrayList<T>(futures.size());
+		RuntimeException failure = null;
+		for (CompletableFuture<T> future : futures) {
+			try {
+				results.add(await(future));
+			} catch (RuntimeException e) {
+				if (failure == null)
+					failure = e;
+			}
+		}
+
+		if (failure != null)
+			throw failure;
+
+		return results;
+	}
+
+	private static <T> T await(CompletableFuture<T> future) {
+		try {
+			return future.join();
+		} catch (CompletionException e) {
+			// Shards fail with the cluster's own exceptions, pass those on as they are
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+
+			throw new ShardException(ExceptionMessages.SHARD_FAILED, e.getCause());
+		}
+	}
+}
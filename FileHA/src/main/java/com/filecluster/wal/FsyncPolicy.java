@@ -0,0 +1,24 @@
+package com.filecluster.wal;
+
+/**
+ * When the records of a {@link MutationLog} are forced to disk.
+ */
+public enum FsyncPolicy {
+	/**
+	 * Records are written in the background and left to the OS to flush. A
+	 * process crash loses nothing, a machine crash may lose the tail.
+	 */
+	NONE,
+
+	/**
+	 * Records are written in the background and forced at a fixed interval. A
+	 * machine crash loses at most one interval.
+	 */
+	INTERVAL,
+
+	/**
+	 * Every cluster operation waits until its records are forced. Operations
+	 * completing together share one fsync.
+	 */
+	COMMIT
+}
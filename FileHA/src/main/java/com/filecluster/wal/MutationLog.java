@@ -0,0 +1,586 @@
+package com.filecluster.wal;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import com.filecluster.exception.ExceptionMessages;
+import com.filecluster.exception.MutationLogException;
+import com.filecluster.ha.HAFileCluster;
+import com.filecluster.ha.HAInfoTriplet;
+import com.filecluster.ha.MutationListener;
+
+/**
+ * Append-only log of the mutations of a {@link HAFileCluster}, kept in a
+ * directory next to the snapshot it applies to.
+ * <p>
+ * Records are encoded into an in-memory buffer by the mutating thread and
+ * written by a background flusher, which swaps buffers so appending never
+ * waits on I/O. Each record is [length][type][names][CRC32] and a torn tail is
+ * cut off on replay. When the log outgrows the compaction threshold the
+ * cluster is saved to snapshot-N+1 and log-N+1 is started, after which the
+ * previous generation is deleted.
+ * <p>
+ * The log must only be used from the cluster's own (single) thread, like the
+ * cluster itself.
+ */
+public class MutationLog implements MutationListener, Closeable {
+	private static final Logger logger = Logger.getLogger(MutationLog.class.getName());
+
+	private static final byte HOST_ADDED = 1;
+	private static final byte HOST_REMOVED = 2;
+	private static final byte FILE_ADDED = 3;
+	private static final byte FAILOVER = 4;
+	private static final byte CLUSTER_DELETED = 5;
+	private static final byte HOST_ADDED_IN_DOMAIN = 6;
+	private static final byte REPLICA_MOVED = 7;
+	private static final byte REPLICATION_FACTOR_CHANGED = 8;
+
+	private static final String SNAPSHOT_PREFIX = "snapshot-";
+	private static final String LOG_PREFIX = "log-";
+	private static final String TMP_SUFFIX = ".tmp";
+
+	private static final int INITIAL_BUFFER_SIZE = 1 << 16;
+	private static final int FLUSH_THRESHOLD = 1 << 18; // Wake the flusher early once this much is buffered
+	private static final int MAX_BUFFERED_BYTES = 1 << 22; // Appenders wait for the flusher beyond this
+	private static final int MAX_RECORD_LENGTH = 1 << 24;
+
+	public static final long DEFAULT_COMPACTION_THRESHOLD = 64L << 20;
+	public static final long DEFAULT_FSYNC_INTERVAL_MILLIS = 100;
+
+	private final Path directory;
+	private final HAFileCluster cluster;
+	private final FsyncPolicy fsyncPolicy;
+	private volatile long fsyncIntervalMillis = DEFAULT_FSYNC_INTERVAL_MILLIS;
+	private volatile long compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+
+	private long generation;
+	private List<HAInfoTriplet> pendingFailovers = new ArrayList<HAInfoTriplet>();
+	private final CRC32 crc = new CRC32();
+	private final Thread flusher;
+
+	// Guarded by this. Positions count bytes appended since open and never go back.
+	private FileChannel channel;
+	private long logStart;
+	private byte[] active = new byte[INITIAL_BUFFER_SIZE];
+	private byte[] flushing = new byte[INITIAL_BUFFER_SIZE];
+	private int activeSize;
+	private long appendedPosition;
+	private long writtenPosition;
+	private long durablePosition;
+	private boolean flushRequested;
+	private boolean forceRequested;
+	private boolean closed;
+	private IOException failure;
+
+	private MutationLog(Path directory, HAFileCluster cluster, FsyncPolicy fsyncPolicy) {
+		this.directory = directory;
+		this.cluster = cluster;
+		this.fsyncPolicy = fsyncPolicy;
+
+		flusher = new Thread(this::flushLoop, "mutation-log-flusher");
+		flusher.setDaemon(true);
+	}
+
+	/**
+	 * Recovers the cluster from the latest snapshot and log in the directory,
+	 * then records every further mutation of the cluster. An empty directory
+	 * starts an empty cluster.
+	 */
+	public static MutationLog open(Path directory, HAFileCluster cluster, FsyncPolicy fsyncPolicy) throws IOException {
+		Files.createDirectories(directory);
+
+		MutationLog log = new MutationLog(directory, cluster, fsyncPolicy);
+		log.recover();
+		log.flusher.start();
+		cluster.setMutationListener(log);
+		return log;
+	}
+
+	/**
+	 * Failovers and moves replayed from the log on open, i.e. copies that were
+	 * planned after the last compaction and may not have completed before a
+	 * crash.
+	 */
+	public List<HAInfoTriplet> getPendingFailovers() {
+		return pendingFailovers;
+	}
+
+	public long getGeneration() {
+		return generation;
+	}
+
+	public FsyncPolicy getFsyncPolicy() {
+		return fsyncPolicy;
+	}
+
+	/**
+	 * Log size in bytes beyond which the log is compacted into a snapshot at the
+	 * end of the next cluster operation. Zero or less disables compaction.
+	 */
+	public void setCompactionThreshold(long compactionThreshold) {
+		this.compactionThreshold = compactionThreshold;
+	}
+
+	public void setFsyncInterval(long fsyncIntervalMillis) {
+		this.fsyncIntervalMillis = Math.max(1, fsyncIntervalMillis);
+	}
+
+	@Override
+	public void hostAdded(String host, String failureDomain) {
+		if (failureDomain == null)
+			append(HOST_ADDED, host, null, null);
+		else
+			append(HOST_ADDED_IN_DOMAIN, host, failureDomain, null);
+	}
+
+	@Override
+	public void hostRemoved(String host) {
+		append(HOST_REMOVED, host, null, null);
+	}
+
+	@Override
+	public void fileAdded(String file, String host) {
+		append(FILE_ADDED, file, host, null);
+	}
+
+	@Override
+	public void failoverPlanned(HAInfoTriplet triplet) {
+		append(FAILOVER, triplet.getFileToBeCopied(), triplet.getSourceHost(), triplet.getDestinationHost());
+	}
+
+	@Override
+	public void replicaMoved(HAInfoTriplet triplet) {
+		append(REPLICA_MOVED, triplet.getFileToBeCopied(), triplet.getSourceHost(), triplet.getDestinationHost());
+	}
+
+	@Override
+	public void replicationFactorChanged(int replicationFactor) {
+		append(REPLICATION_FACTOR_CHANGED, Integer.toString(replicationFactor), null, null);
+	}
+
+	@Override
+	public void clusterDeleted() {
+		append(CLUSTER_DELETED, null, null, null);
+	}
+
+	/**
+	 * Commits the records of the finished operation, waiting for the fsync
+	 * under {@link FsyncPolicy#COMMIT}, and compacts the log when it has grown
+	 * past the threshold.
+	 */
+	@Override
+	public void operationCompleted() {
+		long position;
+		synchronized (this) {
+			throwIfFailed();
+			position = appendedPosition;
+			flushRequested = true;
+			notifyAll();
+
+			if (fsyncPolicy == FsyncPolicy.COMMIT)
+				awaitDurable(position);
+		}
+
+		long threshold = compactionThreshold;
+		if (threshold > 0 && position - logStart >= threshold) {
+			try {
+				compact();
+			} catch (IOException e) {
+				throw new MutationLogException(ExceptionMessages.MUTATION_LOG_FAILED, e);
+			}
+		}
+	}
+
+	/**
+	 * Writes and forces every record appended so far.
+	 */
+	public synchronized void sync() {
+		throwIfFailed();
+		flushRequested = true;
+		forceRequested = true;
+		notifyAll();
+		awaitDurable(appendedPosition);
+	}
+
+	/**
+	 * Saves the cluster to the next snapshot generation and starts an empty log
+	 * for it. A crash at any point leaves either the old or the new generation
+	 * complete.
+	 */
+	public void compact() throws IOException {
+		sync();
+
+		long next = generation + 1;
+		Path temporary = directory.resolve(SNAPSHOT_PREFIX + next + TMP_SUFFIX);
+		cluster.saveSnapshot(temporary);
+		Files.move(temporary, snapshotPath(next), StandardCopyOption.ATOMIC_MOVE);
+
+		FileChannel nextChannel = FileChannel.open(logPath(next), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		syncDirectory();
+
+		FileChannel previousChannel;
+		synchronized (this) {
+			previousChannel = channel;
+			channel = nextChannel;
+			logStart = appendedPosition;
+		}
+
+		previousChannel.close();
+		generation = next;
+		deleteGenerationsBefore(next);
+	}
+
+	/**
+	 * Forces the remaining records, stops the flusher and detaches the log
+	 * from the cluster.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (cluster.getMutationListener() == this)
+			cluster.setMutationListener(null);
+
+		try {
+			synchronized (this) {
+				if (closed)
+					return;
+				if (failure == null)
+					sync();
+			}
+		} finally {
+			synchronized (this) {
+				closed = true;
+				notifyAll();
+			}
+
+			try {
+				flusher.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			channel.close();
+		}
+	}
+
+	private void append(byte type, String first, String second, String third) {
+		byte[] firstBytes = encode(first);
+		byte[] secondBytes = encode(second);
+		byte[] thirdBytes = encode(third);
+		int payloadLength = 1 + encodedLength(firstBytes) + encodedLength(secondBytes) + encodedLength(thirdBytes);
+		int recordLength = payloadLength + 8;
+
+		synchronized (this) {
+			throwIfFailed();
+
+			// Back pressure, the flusher has fallen far behind
+			while (activeSize >= MAX_BUFFERED_BYTES && failure == null) {
+				flushRequested = true;
+				notifyAll();
+				awaitFlusher();
+			}
+
+			if (activeSize + recordLength > active.length)
+				active = Arrays.copyOf(active, Math.max(active.length * 2, activeSize + recordLength));
+
+			int offset = putInt(active, activeSize, payloadLength);
+			int payloadOffset = offset;
+			active[offset++] = type;
+			offset = putString(active, offset, firstBytes);
+			offset = putString(active, offset, secondBytes);
+			offset = putString(active, offset, thirdBytes);
+
+			crc.reset();
+			crc.update(active, payloadOffset, payloadLength);
+			putInt(active, offset, (int) crc.getValue());
+
+			activeSize += recordLength;
+			appendedPosition += recordLength;
+
+			if (activeSize >= FLUSH_THRESHOLD)
+				notifyAll();
+		}
+	}
+
+	private void flushLoop() {
+		long lastForce = System.nanoTime();
+
+		while (true) {
+			byte[] buffer;
+			int size;
+			long position;
+			boolean force;
+			FileChannel target;
+
+			synchronized (this) {
+				if (activeSize == 0 && !flushRequested && !closed)
+					awaitFlusher(fsyncIntervalMillis);
+
+				if (closed && activeSize == 0)
+					return;
+
+				// Swap buffers, appenders keep filling the other one while this one is written
+				buffer = active;
+				size = activeSize;
+				active = flushing;
+				flushing = buffer;
+				activeSize = 0;
+
+				position = appendedPosition;
+				force = forceRequested || fsyncPolicy == FsyncPolicy.COMMIT
+						|| (fsyncPolicy == FsyncPolicy.INTERVAL && System.nanoTime() - lastForce >= fsyncIntervalMillis * 1000000L);
+				force &= position > durablePosition;
+				flushRequested = false;
+				forceRequested = false;
+				target = channel;
+				notifyAll();
+			}
+
+			try {
+				ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, size);
+				while (bytes.hasRemaining())
+					target.write(bytes);
+
+				if (force) {
+					target.force(false);
+					lastForce = System.nanoTime();
+				}
+			} catch (IOException e) {
+				synchronized (this) {
+					failure = e;
+					notifyAll();
+				}
+				logger.severe(ExceptionMessages.MUTATION_LOG_FAILED + ": " + e);
+				return;
+			}
+
+			synchronized (this) {
+				writtenPosition = position;
+				if (force)
+					durablePosition = position;
+				notifyAll();
+			}
+		}
+	}
+
+	private void recover() throws IOException {
+		generation = -1;
+		try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory, SNAPSHOT_PREFIX + "*")) {
+			for (Path entry : entries) {
+				String name = entry.getFileName().toString();
+				if (name.endsWith(TMP_SUFFIX))
+					Files.delete(entry); // An unfinished compaction
+				else
+					generation = Math.max(generation, Long.parseLong(name.substring(SNAPSHOT_PREFIX.length())));
+			}
+		}
+
+		// Rebuild without recording the replayed mutations again
+		cluster.setMutationListener(null);
+		if (generation < 0) {
+			generation = 0;
+			cluster.deleteCluster();
+		} else {
+			cluster.loadSnapshot(snapshotPath(generation));
+		}
+		deleteGenerationsBefore(generation);
+
+		Path logPath = logPath(generation);
+		long validLength = Files.exists(logPath) ? replay(logPath) : 0;
+
+		channel = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		if (channel.size() > validLength) {
+			logger.warning("Truncating torn mutation log " + logPath + " from " + channel.size() + " to " + validLength + " bytes");
+			channel.truncate(validLength);
+			channel.force(false);
+		}
+		channel.position(validLength);
+
+		logStart = -validLength;
+	}
+
+	/**
+	 * Applies every intact record of the log to the cluster and returns the
+	 * length of the intact prefix. Records change the cluster state only, the
+	 * copies they planned are handed out as pending failovers instead.
+	 */
+	private long replay(Path logPath) throws IOException {
+		MutationListener target = cluster.getReplayTarget();
+		long validLength = 0;
+		CRC32 checksum = new CRC32();
+		byte[] payload = new byte[INITIAL_BUFFER_SIZE];
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(logPath), 1 << 16))) {
+			while (true) {
+				int payloadLength = in.readInt();
+				if (payloadLength <= 0 || payloadLength > MAX_RECORD_LENGTH)
+					break;
+
+				if (payload.length < payloadLength)
+					payload = new byte[Math.max(payloadLength, payload.length * 2)];
+				in.readFully(payload, 0, payloadLength);
+				int expected = in.readInt();
+
+				checksum.reset();
+				checksum.update(payload, 0, payloadLength);
+				if ((int) checksum.getValue() != expected)
+					break;
+
+				apply(target, ByteBuffer.wrap(payload, 0, payloadLength));
+				validLength += payloadLength + 8;
+			}
+		} catch (EOFException e) {
+			// Torn tail, everything before it is intact
+		}
+
+		if (pendingFailovers.size() > 0)
+			logger.info("Replayed " + pendingFailovers.size() + " failovers from " + logPath);
+
+		return validLength;
+	}
+
+	private void apply(MutationListener target, ByteBuffer record) {
+		byte type = record.get();
+
+		switch (type) {
+		case HOST_ADDED:
+			target.hostAdded(readString(record), null);
+			break;
+		case HOST_ADDED_IN_DOMAIN:
+			target.hostAdded(readString(record), readString(record));
+			break;
+		case HOST_REMOVED:
+			target.hostRemoved(readString(record));
+			break;
+		case FILE_ADDED:
+			target.fileAdded(readString(record), readString(record));
+			break;
+		case FAILOVER:
+			HAInfoTriplet triplet = new HAInfoTriplet();
+			triplet.setFileToBeCopied(readString(record));
+			triplet.setSourceHost(readString(record));
+			triplet.setDestinationHost(readString(record));
+			target.failoverPlanned(triplet);
+			pendingFailovers.add(triplet);
+			break;
+		case REPLICA_MOVED:
+			HAInfoTriplet move = new HAInfoTriplet();
+			move.setFileToBeCopied(readString(record));
+			move.setSourceHost(readString(record));
+			move.setDestinationHost(readString(record));
+			target.replicaMoved(move);
+			pendingFailovers.add(move);
+			break;
+		case REPLICATION_FACTOR_CHANGED:
+			target.replicationFactorChanged(Integer.parseInt(readString(record)));
+			break;
+		case CLUSTER_DELETED:
+			target.clusterDeleted();
+			pendingFailovers.clear();
+			break;
+		default:
+			logger.warning("Skipping unknown mutation log record type " + type);
+		}
+	}
+
+	private void deleteGenerationsBefore(long first) throws IOException {
+		try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+			for (Path entry : entries) {
+				String name = entry.getFileName().toString();
+				String number = name.startsWith(SNAPSHOT_PREFIX) ? name.substring(SNAPSHOT_PREFIX.length())
+						: name.startsWith(LOG_PREFIX) ? name.substring(LOG_PREFIX.length()) : null;
+
+				if (number != null && !number.endsWith(TMP_SUFFIX) && Long.parseLong(number) < first)
+					Files.delete(entry);
+			}
+		}
+	}
+
+	private void syncDirectory() {
+		// Makes the rename durable, not supported on every platform
+		try (FileChannel directoryChannel = FileChannel.open(directory, StandardOpenOption.READ)) {
+			directoryChannel.force(true);
+		} catch (IOException e) {
+			logger.fine("Could not sync " + directory + ": " + e);
+		}
+	}
+
+	private Path snapshotPath(long generation) {
+		return directory.resolve(SNAPSHOT_PREFIX + generation);
+	}
+
+	private Path logPath(long generation) {
+		return directory.resolve(LOG_PREFIX + generation);
+	}
+
+	private void awaitDurable(long position) {
+		while (durablePosition < position && failure == null)
+			awaitFlusher();
+		throwIfFailed();
+	}
+
+	private void awaitFlusher() {
+		awaitFlusher(0);
+	}
+
+	private void awaitFlusher(long millis) {
+		try {
+			wait(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new MutationLogException(ExceptionMessages.MUTATION_LOG_FAILED, e);
+		}
+	}
+
+	private void throwIfFailed() {
+		if (failure != null)
+			throw new MutationLogException(ExceptionMessages.MUTATION_LOG_FAILED, failure);
+	}
+
+	private static byte[] encode(String value) {
+		return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static int encodedLength(byte[] value) {
+		return value == null ? 0 : 4 + value.length;
+	}
+
+	private static int putString(byte[] buffer, int offset, byte[] value) {
+		if (value == null)
+			return offset;
+
+		offset = putInt(buffer, offset, value.length);
+		System.arraycopy(value, 0, buffer, offset, value.length);
+		return offset + value.length;
+	}
+
+	private static int putInt(byte[] buffer, int offset, int value) {
+		buffer[offset] = (byte) (value >>> 24);
+		buffer[offset + 1] = (byte) (value >>> 16);
+		buffer[offset + 2] = (byte) (value >>> 8);
+		buffer[offset + 3] = (byte) value;
+		return offset + 4;
+	}
+
+	private static String readString(ByteBuffer record) {
+		int length = record.getInt();
+		String value = new String(record.array(), record.arrayOffset() + record.position(), length, StandardCharsets.UTF_8);
+		record.position(record.position() + length);
+		return value;
+	}
+}
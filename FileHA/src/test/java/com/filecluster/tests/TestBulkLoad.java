@@ -0,0 +1,131 @@
+package com.filecluster.tests;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.logging.Logger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import com.filecluster.exception.HostNotFoundException;
+import com.filecluster.exception.InvalidNameException;
+import com.filecluster.exception.TooManyCopiesException;
+import com.filecluster.ha.HAFileCluster;
+
+@ExtendWith(TimingExtension.class)
+class TestBulkLoad {
+	HAFileCluster cluster;
+
+	private static final Logger logger = Logger.getLogger(TestBulkLoad.class.getName());
+
+	@BeforeEach
+	void setupCluster() {
+		cluster = HAFileCluster.getCluster();
+
+		for (int i = 1; i <= 10; i++) {
+			cluster.addHost("host" + i);
+		}
+	}
+
+	@AfterEach
+	void clearCluster() {
+		cluster.deleteCluster();
+	}
+
+	/**
+	 * Check file-only rows are placed by the cluster, twice gives two copies
+	 */
+	@Test
+	void testLoadMockData() throws Exception {
+		int rows = 0;
+		for (int round = 0; round < 2; round++) {
+			try (Reader csv = new InputStreamReader(getClass().getResourceAsStream("/MOCK_DATA.csv"),
+					StandardCharsets.UTF_8)) {
+				rows += cluster.bulkLoad(csv, 300);
+			}
+		}
+
+		assertEquals(600, rows);
+		assertEquals(2, cluster.getHostsForFile("C747800F-8337-4BAE-BC02-0F5EF1FC09F5.txt").size());
+	}
+
+	/**
+	 * Check file,host rows and idempotent repeats
+	 */
+	@Test
+	void testLoadPairs() {
+		String csv = "file1.txt,host1\nfile1.txt,host2\n\nfile2.txt, host3\nfile1.txt,host2\n";
+
+		assertEquals(4, cluster.bulkLoad(new StringReader(csv), 0));
+		assertEquals(true, cluster.getHostsForFile("file1.txt").contains("host2")
+				&& cluster.getHostsForFile("file2.txt").contains("host3"));
+	}
+
+	@Test
+	void testInvalidRow() {
+		assertThrows(InvalidNameException.class, () -> {
+			cluster.bulkLoad(new StringReader("file1.txt,host1\nfile2.exe,host2\n"), 0);
+		});
+		assertNull(cluster.getHostsForFile("file1.txt")); // Nothing of the failing batch is applied
+	}
+
+	@Test
+	void testUnknownHost() {
+		assertThrows(HostNotFoundException.class, () -> {
+			cluster.bulkLoad(new StringReader("file1.txt,host11\n"), 0);
+		});
+	}
+
+	@Test
+	void testThirdCopy() {
+		assertThrows(TooManyCopiesException.class, () -> {
+			cluster.bulkLoad(new StringReader("file1.txt,host1\nfile1.txt,host2\nfile1.txt,host3\n"), 0);
+		});
+	}
+
+	/**
+	 * Load a few million rows from an iterator and log the rate
+	 */
+	@Test
+	void testLoadThroughput() {
+		final int files = 1000000;
+		final String[] hosts = new String[10];
+		for (int i = 0; i < hosts.length; i++) {
+			hosts[i] = "host" + (i + 1);
+		}
+
+		Iterator<String[]> rows = new Iterator<String[]>() {
+			int row = 0;
+
+			@Override
+			public boolean hasNext() {
+				return row < files * 2;
+			}
+
+			@Override
+			public String[] next() {
+				int file = row >> 1;
+				String host = hosts[(file + (row & 1) * (1 + file % 9)) % hosts.length];
+				row++;
+				return new String[] { "file" + file + ".txt", host };
+			}
+		};
+
+		long startTime = System.nanoTime();
+		int loaded = cluster.bulkLoad(rows, files);
+		long duration = System.nanoTime() - startTime;
+
+		logger.info(String.format("Bulk loaded %,d rows in %d ms (%,d rows/s)", loaded, duration / 1000000,
+				loaded * 1000000000L / duration));
+
+		assertEquals(files * 2, loaded);
+		assertEquals(2, cluster.getHostsForFile("file999999.txt").size());
+	}
+}
@@ -0,0 +1,148 @@
+package com.filecluster.tests;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Arrays;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import com.filecluster.graph.ClusterGraph;
+import com.filecluster.graph.GraphVersion;
+
+@ExtendWith(TimingExtension.class)
+class TestClusterGraph {
+	ClusterGraph graph;
+
+	@BeforeEach
+	void initGraph() {
+		graph = new ClusterGraph();
+
+		graph.addHost("host1");
+		graph.addHost("host2");
+		graph.addHost("host3");
+
+		graph.addReplica("file1", "host1");
+		graph.addReplica("file1", "host2");
+		graph.addReplica("file2", "host2");
+		graph.addReplica("file2", "host3");
+	}
+
+	@AfterEach
+	void cleanupGraph() {
+		graph.removeAll();
+		graph = null;
+	}
+
+	/**
+	 * Check replicas are visible from both the file and the host side
+	 */
+	@Test
+	void testReplicaLookup() {
+		assertEquals(true, (graph.getHostsForFile("file1").containsAll(Arrays.asList("host1", "host2"))
+				&& graph.getFilesOnHost("host2").containsAll(Arrays.asList("file1", "file2"))
+				&& graph.getReplicaCount("file2") == 2));
+	}
+
+	/**
+	 * Check a file cannot hold more than two copies
+	 */
+	@Test
+	void testThirdReplicaRejected() {
+		assertEquals(false, graph.addReplica("file1", "host3"));
+		assertEquals(2, graph.getReplicaCount("file1"));
+	}
+
+	/**
+	 * Check host removal frees the replica slot of its files
+	 */
+	@Test
+	void testHostRemoval() {
+		int[] removedFiles = graph.removeHost("host2");
+
+		assertEquals(2, removedFiles.length);
+		assertEquals(false, graph.hasHost("host2"));
+		assertEquals(1, graph.getReplicaCount("file1"));
+		assertEquals(graph.getHostId("host1"), graph.getReplica(graph.getFileId("file1"), 0));
+		assertEquals(true, graph.addReplica("file1", "host3"));
+	}
+
+	/**
+	 * Check removal of a host that does not exist
+	 */
+	@Test
+	void testNonExistingHostRemoval() {
+		assertNull(graph.removeHost("host10"));
+	}
+
+	/**
+	 * Check files losing copies are queued, fewest copies first, and leave the
+	 * queue once they are whole again
+	 */
+	@Test
+	void testUnderReplicationQueue() {
+		assertEquals(0, graph.getUnderReplicatedCount());
+
+		graph.removeHost("host2");
+		assertEquals(2, graph.getUnderReplicatedCount());
+		assertEquals(0, graph.getLostFileCount());
+
+		graph.removeHost("host3");
+		assertEquals(1, graph.getUnderReplicatedCount());
+		assertEquals(1, graph.getLostFileCount());
+		assertEquals("file2", graph.getFileName(graph.getLostFile(0)));
+		assertEquals("file1", graph.getFileName(graph.getUnderReplicatedFiles()[0]));
+
+		graph.addHost("host4");
+		graph.addReplica("file1", "host4");
+		assertEquals(0, graph.getUnderReplicatedCount());
+		assertEquals(0, graph.getUnderReplicatedFiles().length);
+	}
+
+	/**
+	 * Check a published version keeps its content while the graph changes and
+	 * the next one picks the changes up
+	 */
+	@Test
+	void testPublishedVersions() {
+		GraphVersion first = graph.publish();
+		assertSame(first, graph.publish());
+
+		graph.removeHost("host2");
+		graph.addHost("host4"); // Reuses the id of host2
+		graph.addReplica("file3", "host4");
+
+		assertEquals(2, first.getHostsForFile("file1").size());
+		assertEquals(true, first.hasHost("host2"));
+		assertEquals(null, first.getHostsForFile("file3"));
+
+		GraphVersion second = graph.publish();
+		assertEquals(true, second.getNumber() > first.getNumber());
+		assertEquals(false, second.hasHost("host2"));
+		assertEquals(true, second.getHostsForFile("file3").contains("host4"));
+		assertEquals(1, second.getHostsForFile("file1").size());
+		assertEquals(1, second.getHostLoad("host4"));
+		assertEquals(3, second.getHosts().size());
+	}
+
+	/**
+	 * Check versions published along a large load match the graph
+	 */
+	@Test
+	void testVersionsOfLargeGraph() {
+		int fileCount = 20000;
+		for (int i = 0; i < fileCount; i++) {
+			graph.addReplica("f" + i, "host" + (i % 3 + 1));
+			if (i % 1000 == 0)
+				graph.publish();
+		}
+
+		GraphVersion version = graph.publish();
+		assertEquals(graph.getFileCount(), version.getFileCount());
+		for (int i = 0; i < fileCount; i += 7) {
+			assertEquals(graph.getHostsForFile("f" + i), version.getHostsForFile("f" + i));
+		}
+	}
+}
@@ -0,0 +1,187 @@
+package com.filecluster.tests;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import com.filecluster.ha.ConcurrentFileCluster;
+import com.filecluster.ha.HAFileCluster;
+
+@ExtendWith(TimingExtension.class)
+class TestConcurrentCluster {
+	private static final Logger logger = Logger.getLogger(TestConcurrentCluster.class.getName());
+
+	private static final int HOST_COUNT = 50;
+	private static final int FILES_PER_THREAD = 50000;
+
+	/**
+	 * Check getCluster hands out a single instance to racing callers
+	 */
+	@Test
+	void testSingletonUnderContention() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		List<Future<HAFileCluster>> clusters = new ArrayList<Future<HAFileCluster>>();
+
+		for (int i = 0; i < 64; i++) {
+			clusters.add(executor.submit(HAFileCluster::getCluster));
+		}
+
+		for (Future<HAFileCluster> cluster : clusters) {
+			assertSame(HAFileCluster.getCluster(), cluster.get());
+		}
+		executor.shutdown();
+	}
+
+	/**
+	 * Stress test: writers ingest files while a host fails over. Logs the
+	 * ingestion throughput for each thread count and checks no copy is lost.
+	 */
+	@ParameterizedTest
+	@ValueSource(ints = { 1, 2, 4, 8 })
+	void testIngestionDuringFailover(int threadCount) throws Exception {
+		ConcurrentFileCluster cluster = new ConcurrentFileCluster(64);
+		for (int i = 1; i <= HOST_COUNT; i++) {
+			cluster.addHost("host" + i);
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(threadCount + 1);
+		CountDownLatch start = new CountDownLatch(1);
+		List<Future<?>> writers = new ArrayList<Future<?>>();
+
+		for (int t = 0; t < threadCount; t++) {
+			final int thread = t;
+			writers.add(executor.submit(() -> {
+				start.await();
+				for (int i = 0; i < FILES_PER_THREAD; i++) {
+					String file = "file" + thread + "_" + i;
+					cluster.addFile(file);
+					cluster.addFile(file);
+				}
+				return null;
+			}));
+		}
+
+		Future<?> failover = executor.submit(() -> {
+			start.await();
+			Thread.sleep(5);
+			cluster.performHA(new String[] { "host1" });
+			return null;
+		});
+
+		long startTime = System.nanoTime();
+		start.countDown();
+		for (Future<?> writer : writers) {
+			writer.get();
+		}
+		long duration = System.nanoTime() - startTime;
+		failover.get();
+		executor.shutdown();
+		executor.awaitTermination(1, TimeUnit.MINUTES);
+
+		long files = (long) threadCount * FILES_PER_THREAD;
+		logger.info(String.format("%d writer thread(s): %,d files in %d ms (%,d files/s)", threadCount, files,
+				TimeUnit.NANOSECONDS.toMillis(duration), files * TimeUnit.SECONDS.toNanos(1) / duration));
+
+		assertEquals(false, cluster.getHosts().contains("host1"));
+		for (int t = 0; t < threadCount; t++) {
+			for (int i = 0; i < FILES_PER_THREAD; i += 97) {
+				Set<String> hosts = cluster.getHostsForFile("file" + t + "_" + i);
+				assertEquals(2, hosts.size());
+				assertEquals(false, hosts.contains("host1"));
+			}
+		}
+	}
+
+	/**
+	 * Check lookups running alongside a failover always see a consistent graph
+	 */
+	@Test
+	void testReadsDuringFailover() throws Exception {
+		ConcurrentFileCluster cluster = new ConcurrentFileCluster(16);
+		for (int i = 1; i <= HOST_COUNT; i++) {
+			cluster.addHost("host" + i);
+		}
+		for (int i = 0; i < FILES_PER_THREAD; i++) {
+			cluster.addFile("file" + i);
+			cluster.addFile("file" + i);
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		AtomicBoolean failoverDone = new AtomicBoolean();
+		List<Future<Integer>> readers = new ArrayList<Future<Integer>>();
+
+		for (int t = 0; t < 3; t++) {
+			readers.add(executor.submit(() -> {
+				int reads = 0;
+				while (!failoverDone.get()) {
+					// A file has two copies before and after the failover, never in between
+					Set<String> hosts = cluster.getHostsForFile("file" + (reads++ % FILES_PER_THREAD));
+					if (hosts.size() != 2)
+						return -1;
+				}
+				return reads;
+			}));
+		}
+
+		cluster.performHA(new String[] { "host1" });
+		failoverDone.set(true);
+
+		for (Future<Integer> reader : readers) {
+			assertEquals(true, reader.get() >= 0);
+		}
+		executor.shutdown();
+	}
+
+	/**
+	 * Check a host added while a failover runs lands on every stripe, not only
+	 * on those the failover already passed
+	 */
+	@Test
+	void testHostAddedDuringFailover() throws Exception {
+		ConcurrentFileCluster cluster = new ConcurrentFileCluster(8);
+		for (int i = 1; i <= 10; i++) {
+			cluster.addHost("host" + i);
+		}
+		for (int i = 0; i < 4000; i++) {
+			cluster.addFile("file" + i);
+			cluster.addFile("file" + i);
+		}
+
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		List<Future<?>> adders = new ArrayList<Future<?>>();
+
+		// Re-add the failed host while the failover is still in its first stripe
+		cluster.performHA(new String[] { "host1" }, triplet -> {
+			if (adders.isEmpty()) {
+				adders.add(executor.submit(() -> cluster.addHost("host1")));
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		adders.get(0).get(10, TimeUnit.SECONDS);
+		executor.shutdown();
+
+		assertEquals(true, cluster.getHosts().contains("host1"));
+		for (int i = 0; i < 400; i++) {
+			cluster.addFile("added" + i, "host1"); // Throws on a stripe that lost the host
+		}
+		assertEquals(true, cluster.getHostsForFile("added0").contains("host1"));
+	}
+}
@@ -0,0 +1,182 @@
+package com.filecluster.tests;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.filecluster.copy.CopyExecutor;
+import com.filecluster.copy.LocalFileSystemCopier;
+import com.filecluster.ha.HAFileCluster;
+import com.filecluster.ha.HAInfoTriplet;
+
+@ExtendWith(TimingExtension.class)
+class TestCopyExecutor {
+	@TempDir
+	Path tempDir;
+
+	HAFileCluster cluster = HAFileCluster.getCluster();
+
+	@AfterEach
+	void clearCluster() {
+		cluster.setCopyExecutor(null);
+		cluster.deleteCluster();
+	}
+
+	/**
+	 * Check a failover copies every file of the failed host on disk
+	 */
+	@Test
+	void testFailoverCopies() throws Exception {
+		LocalFileSystemCopier copier = new LocalFileSystemCopier(tempDir);
+		for (int i = 1; i <= 5; i++) {
+			cluster.addHost("host" + i);
+		}
+		for (int i = 1; i <= 200; i++) {
+			String file = "file" + i + ".txt";
+			for (String host : new String[] { "host" + (i % 5 + 1), "host" + ((i + 1) % 5 + 1) }) {
+				cluster.addFile(file, host);
+				Path path = copier.getPath(host, file);
+				Files.createDirectories(path.getParent());
+				Files.write(path, file.getBytes(StandardCharsets.UTF_8));
+			}
+		}
+
+		try (CopyExecutor executor = new CopyExecutor(copier, 4)) {
+			cluster.setCopyExecutor(executor);
+			List<HAInfoTriplet> triplets = cluster.performHA(new String[] { "host1" });
+			executor.awaitCompletion();
+
+			assertEquals(80, triplets.size());
+			assertEquals(80, executor.getCompletedCount());
+			for (HAInfoTriplet triplet : triplets) {
+				Path copy = copier.getPath(triplet.getDestinationHost(), triplet.getFileToBeCopied());
+				assertEquals(triplet.getFileToBeCopied(), new String(Files.readAllBytes(copy), StandardCharsets.UTF_8));
+			}
+		}
+	}
+
+	/**
+	 * Check failed copies are retried and give up after the last attempt
+	 */
+	@Test
+	void testRetries() throws Exception {
+		ConcurrentHashMap<String, AtomicInteger> attempts = new ConcurrentHashMap<String, AtomicInteger>();
+
+		try (CopyExecutor executor = new CopyExecutor((file, source, destination) -> {
+			int attempt = attempts.computeIfAbsent(file, f -> new AtomicInteger()).incrementAndGet();
+			if (file.startsWith("broken") || attempt < 3)
+				throw new IOException("Transfer of " + file + " interrupted");
+		}, 2)) {
+			executor.setRetryDelay(1);
+			CompletableFuture<HAInfoTriplet> flaky = executor.submit("flaky.txt", "host1", "host2");
+			CompletableFuture<HAInfoTriplet> broken = executor.submit("broken.txt", "host1", "host2");
+
+			assertEquals("flaky.txt", flaky.get().getFileToBeCopied());
+			assertThrows(ExecutionException.class, () -> broken.get());
+			assertEquals(3, attempts.get("broken.txt").get());
+			assertEquals(1, executor.getFailedCount());
+			assertEquals(4, executor.getRetryCount());
+		}
+	}
+
+	/**
+	 * Check a copy waiting for its retry does not keep the only worker from
+	 * other copies, and still runs before the executor closes
+	 */
+	@Test
+	void testRetryDoesNotHoldWorker() throws Exception {
+		AtomicInteger attempts = new AtomicInteger();
+		CompletableFuture<HAInfoTriplet> flaky;
+
+		try (CopyExecutor executor = new CopyExecutor((file, source, destination) -> {
+			if (file.startsWith("flaky") && attempts.incrementAndGet() == 1)
+				throw new IOException("Transfer of " + file + " interrupted");
+		}, 1)) {
+			executor.setRetryDelay(1000);
+			flaky = executor.submit("flaky.txt", "host1", "host2");
+			CompletableFuture<HAInfoTriplet> other = executor.submit("other.txt", "host3", "host4");
+
+			assertEquals("other.txt", other.get(500, TimeUnit.MILLISECONDS).getFileToBeCopied());
+			assertEquals(false, flaky.isDone());
+		}
+
+		assertEquals("flaky.txt", flaky.getNow(null).getFileToBeCopied());
+		assertEquals(2, attempts.get());
+	}
+
+	/**
+	 * Check no host is the source or destination of more copies than its limit
+	 */
+	@Test
+	void testHostLimits() throws Exception {
+		ConcurrentHashMap<String, AtomicInteger> running = new ConcurrentHashMap<String, AtomicInteger>();
+		AtomicInteger maxRunning = new AtomicInteger();
+
+		try (CopyExecutor executor = new CopyExecutor((file, source, destination) -> {
+			int count = running.computeIfAbsent(source, h -> new AtomicInteger()).incrementAndGet();
+			maxRunning.accumulateAndGet(count, Math::max);
+			try {
+				Thread.sleep(2);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			running.get(source).decrementAndGet();
+		}, 8, 16, 2, 8)) {
+			for (int i = 0; i < 200; i++) {
+				executor.submit("file" + i + ".txt", "host" + (i % 2), "host" + (i % 10 + 2));
+			}
+			executor.awaitCompletion();
+
+			assertEquals(200, executor.getCompletedCount());
+			assertEquals(true, maxRunning.get() <= 2);
+		}
+	}
+
+	/**
+	 * Check copies between idle hosts run while the jobs ahead of them wait for
+	 * a busy host, and the waiting jobs run once it is free again
+	 */
+	@Test
+	void testBusyHostDoesNotStallWorkers() throws Exception {
+		CountDownLatch hotHostFree = new CountDownLatch(1);
+
+		try (CopyExecutor executor = new CopyExecutor((file, source, destination) -> {
+			if (source.equals("hot")) {
+				try {
+					hotHostFree.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}, 2, 16, 1, 1)) {
+			List<CompletableFuture<HAInfoTriplet>> hotCopies = new ArrayList<CompletableFuture<HAInfoTriplet>>();
+			for (int i = 0; i < 4; i++) {
+				hotCopies.add(executor.submit("hot" + i + ".txt", "hot", "host" + i));
+			}
+			CompletableFuture<HAInfoTriplet> idleCopy = executor.submit("idle.txt", "host10", "host11");
+
+			assertEquals("idle.txt", idleCopy.get(5, TimeUnit.SECONDS).getFileToBeCopied());
+			assertEquals(false, hotCopies.get(3).isDone());
+
+			hotHostFree.countDown();
+			executor.awaitCompletion();
+			assertEquals(5, executor.getCompletedCount());
+		}
+	}
+}
@@ -0,0 +1,95 @@
+package com.filecluster.tests;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import com.filecluster.exception.HostDrainingException;
+import com.filecluster.exception.TooFewHostsException;
+import com.filecluster.ha.DrainPlan;
+import com.filecluster.ha.HAFileCluster;
+import com.filecluster.ha.HAInfoTriplet;
+
+@ExtendWith(TimingExtension.class)
+class TestDecommission {
+	HAFileCluster cluster = HAFileCluster.getCluster();
+
+	@BeforeEach
+	void setupCluster() {
+		for (int i = 1; i <= 5; i++) {
+			cluster.addHost("host" + i);
+		}
+		for (int i = 1; i <= 200; i++) {
+			cluster.addFile("file" + i);
+			cluster.addFile("file" + i);
+		}
+	}
+
+	@AfterEach
+	void clearCluster() {
+		cluster.deleteCluster();
+	}
+
+	/**
+	 * Check a host is drained batch by batch, reading every copy from itself
+	 */
+	@Test
+	void testDrainInBatches() {
+		int filesOnHost1 = TestHelper.countFilesOnHost(cluster, "host1", 200);
+		DrainPlan plan = cluster.decommissionHost("host1", 10);
+
+		int batches = 0;
+		while (!plan.isDrained()) {
+			List<HAInfoTriplet> batch = plan.nextBatch();
+			assertEquals(true, batch.size() > 0 && batch.size() <= 10);
+			for (HAInfoTriplet triplet : batch) {
+				assertEquals("host1", triplet.getSourceHost());
+				assertEquals(false, triplet.getDestinationHost().equals("host1"));
+			}
+			batches++;
+		}
+
+		assertEquals((filesOnHost1 + 9) / 10, batches);
+		assertEquals(filesOnHost1, plan.getMovedCount());
+		assertEquals(true, cluster.getHosts().contains("host1"));
+
+		plan.complete();
+		assertEquals(false, cluster.getHosts().contains("host1"));
+		for (int i = 1; i <= 200; i++) {
+			assertEquals(2, cluster.getHostsForFile("file" + i).size());
+		}
+	}
+
+	/**
+	 * Check a draining host takes no new copies until the drain is cancelled
+	 */
+	@Test
+	void testNoPlacementWhileDraining() {
+		cluster.decommissionHost("host1");
+
+		for (int i = 1; i <= 50; i++) {
+			assertEquals(false, cluster.addFile("newFile" + i).equals("host1"));
+		}
+		assertThrows(HostDrainingException.class, () -> cluster.addFile("newFile51", "host1"));
+		assertThrows(IllegalStateException.class, () -> cluster.decommissionHost("host1").complete());
+
+		cluster.cancelDecommission("host1");
+		assertEquals(false, cluster.isDraining("host1"));
+		cluster.addFile("newFile51", "host1");
+	}
+
+	/**
+	 * Check enough hosts are kept to take the copies of a failover
+	 */
+	@Test
+	void testTooFewHostsLeft() {
+		cluster.decommissionHost("host1");
+		cluster.decommissionHost("host2");
+		assertThrows(TooFewHostsException.class, () -> cluster.decommissionHost("host3"));
+	}
+}
@@ -0,0 +1,188 @@
+package com.filecluster.tests;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import com.filecluster.copy.CopyExecutor;
+import com.filecluster.exception.TooManyFailedHostException;
+import com.filecluster.ha.ConcurrentFileCluster;
+import com.filecluster.ha.FailoverScheduler;
+import com.filecluster.ha.HAInfoTriplet;
+
+@ExtendWith(TimingExtension.class)
+class TestFailoverScheduler {
+	ConcurrentFileCluster cluster;
+
+	@BeforeEach
+	void setupCluster() {
+		cluster = new ConcurrentFileCluster(4);
+		for (int i = 1; i <= 6; i++) {
+			cluster.addHost("host" + i);
+		}
+		for (int i = 1; i <= 100; i++) {
+			cluster.addFile("file" + i);
+			cluster.addFile("file" + i);
+		}
+	}
+
+	/**
+	 * Check hosts failing a moment apart are failed over together, and never
+	 * receive each other's copies
+	 */
+	@Test
+	void testFailuresCoalesced() throws Exception {
+		List<HAInfoTriplet> triplets = new CopyOnWriteArrayList<HAInfoTriplet>();
+
+		try (FailoverScheduler scheduler = new FailoverScheduler(cluster, 500)) {
+			scheduler.setTripletConsumer(triplets::add);
+			scheduler.hostDown("host1");
+			Thread.sleep(50);
+			scheduler.hostDown("host2");
+			scheduler.awaitIdle();
+
+			assertEquals(1, scheduler.getBatchCount());
+		}
+
+		assertEquals(4, cluster.getHosts().size());
+		assertEquals(false, triplets.isEmpty());
+		assertEquals(false, triplets.stream().anyMatch(t -> t.getDestinationHost().equals("host1")));
+		assertEquals(false, triplets.stream().anyMatch(t -> t.getDestinationHost().equals("host2")));
+	}
+
+	/**
+	 * Check a host back within the window is left alone and a new host joins
+	 */
+	@Test
+	void testFlappingHost() throws Exception {
+		List<HAInfoTriplet> triplets = new CopyOnWriteArrayList<HAInfoTriplet>();
+
+		try (FailoverScheduler scheduler = new FailoverScheduler(cluster, 100)) {
+			scheduler.setTripletConsumer(triplets::add);
+			scheduler.hostDown("host1");
+			scheduler.hostUp("host1");
+			scheduler.hostUp("host7", "rack2");
+			scheduler.awaitIdle();
+		}
+
+		assertEquals(0, triplets.size());
+		assertEquals(true, cluster.getHosts().contains("host1"));
+		assertEquals(true, cluster.getHosts().contains("host7"));
+	}
+
+	/**
+	 * Check copies still queued to a host are cancelled once it fails
+	 */
+	@Test
+	void testPendingCopiesCancelled() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+
+		try (CopyExecutor executor = new CopyExecutor((file, source, destination) -> {
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}, 1); FailoverScheduler scheduler = new FailoverScheduler(cluster, 0, executor)) {
+			CompletableFuture<HAInfoTriplet> running = executor.submit("file1", "host2", "host3");
+			CompletableFuture<HAInfoTriplet> queued = executor.submit("file2", "host2", "host1");
+
+			scheduler.hostDown("host1");
+			scheduler.awaitIdle();
+			release.countDown();
+			executor.awaitCompletion();
+
+			assertEquals(true, queued.isCancelled());
+			assertEquals(false, running.isCompletedExceptionally());
+			assertEquals(1, executor.getCancelledCount());
+			assertEquals(1, executor.getCompletedCount());
+		}
+	}
+
+	/**
+	 * Check a failover refused for too many failed hosts is reported, cancels
+	 * nothing and runs once one of the hosts is back
+	 */
+	@Test
+	void testRefusedBatchKept() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		List<List<String>> refusedHosts = new CopyOnWriteArrayList<List<String>>();
+		List<RuntimeException> failures = new CopyOnWriteArrayList<RuntimeException>();
+
+		try (CopyExecutor executor = new CopyExecutor((file, source, destination) -> {
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}, 1); FailoverScheduler scheduler = new FailoverScheduler(cluster, 200, executor)) {
+			scheduler.setFailureHandler((hosts, e) -> {
+				refusedHosts.add(hosts);
+				failures.add(e);
+			});
+			executor.submit("file1", "host4", "host5");
+			CompletableFuture<HAInfoTriplet> queued = executor.submit("file2", "host4", "host1");
+
+			scheduler.hostDown("host1");
+			scheduler.hostDown("host2");
+			scheduler.hostDown("host3");
+			scheduler.awaitIdle();
+
+			assertEquals(1, refusedHosts.size());
+			assertEquals(Arrays.asList("host1", "host2", "host3"), refusedHosts.get(0));
+			assertEquals(true, failures.get(0) instanceof TooManyFailedHostException);
+			assertEquals(6, cluster.getHosts().size());
+			assertEquals(false, queued.isCancelled());
+
+			// The carried failures of host1 and host2 run with the next batch
+			scheduler.hostUp("host3");
+			scheduler.awaitIdle();
+
+			assertEquals(1, refusedHosts.size());
+			assertEquals(4, cluster.getHosts().size());
+			assertEquals(true, cluster.getHosts().contains("host3"));
+			assertEquals(true, queued.isCancelled());
+
+			release.countDown();
+			executor.awaitCompletion();
+		}
+	}
+
+	/**
+	 * Check a refused batch is tried again once the cause is gone, without a
+	 * new event to start it
+	 */
+	@Test
+	void testRefusedBatchRetried() throws Exception {
+		List<List<String>> refusedHosts = new CopyOnWriteArrayList<List<String>>();
+
+		try (FailoverScheduler scheduler = new FailoverScheduler(cluster, 50)) {
+			scheduler.setRetryDelay(100);
+			scheduler.setFailureHandler((hosts, e) -> refusedHosts.add(hosts));
+
+			scheduler.hostDown("host1");
+			scheduler.hostDown("host2");
+			scheduler.hostDown("host3");
+			scheduler.awaitIdle();
+			assertEquals(6, cluster.getHosts().size());
+
+			cluster.setMaxFailedHosts(3);
+			long deadline = System.currentTimeMillis() + 5000;
+			while (cluster.getHosts().size() > 3 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+
+			assertEquals(3, cluster.getHosts().size());
+			assertEquals(true, refusedHosts.size() >= 1);
+			assertEquals(Arrays.asList("host1", "host2", "host3"), refusedHosts.get(0));
+		}
+	}
+}
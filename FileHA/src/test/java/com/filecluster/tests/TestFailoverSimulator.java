@@ -0,0 +1,141 @@
+package com.filecluster.tests;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import com.filecluster.exception.TooManyFailedHostException;
+import com.filecluster.ha.FailoverSimulator;
+import com.filecluster.ha.FailoverSimulator.HostRisk;
+import com.filecluster.ha.HAFileCluster;
+import com.filecluster.ha.HAInfoTriplet;
+import com.filecluster.ha.SimulationResult;
+
+@ExtendWith(TimingExtension.class)
+class TestFailoverSimulator {
+	HAFileCluster cluster = HAFileCluster.getCluster();
+
+	@BeforeEach
+	void setupCluster() {
+		for (int i = 1; i <= 10; i++) {
+			cluster.addHost("host" + i);
+		}
+
+		// host1 and host2 share 50 files, the others are spread around the ring
+		for (int i = 1; i <= 50; i++) {
+			cluster.addFile("pair" + i, "host1");
+			cluster.addFile("pair" + i, "host2");
+		}
+		for (int i = 1; i <= 500; i++) {
+			cluster.addFile("file" + i, "host" + (i % 10 + 1));
+			cluster.addFile("file" + i, "host" + ((i + 3) % 10 + 1));
+		}
+	}
+
+	@AfterEach
+	void clearCluster() {
+		cluster.deleteCluster();
+		cluster.setParallelism(1);
+		cluster.setReplicationFactor(2);
+		cluster.setMaxFailedHosts(HAFileCluster.DEFAULT_MAX_FAILED_HOSTS);
+	}
+
+	/**
+	 * Check a simulation leaves the cluster alone and predicts the real failover
+	 */
+	@Test
+	void testSimulationMatchesFailover() {
+		FailoverSimulator simulator = new FailoverSimulator(cluster);
+		simulator.setFileSizes(file -> file.startsWith("pair") ? 1000 : 10);
+
+		SimulationResult result = simulator.simulate("host1", "host3", "unknown");
+
+		assertEquals(2, result.getFailedHostCount());
+		assertEquals(10, cluster.getHosts().size());
+		assertEquals(2, cluster.getHostsForFile("pair1").size());
+
+		List<HAInfoTriplet> triplets = cluster.performHA(new String[] { "host1", "host3" });
+
+		assertEquals(triplets.size(), result.getCopyCount());
+		assertEquals(0, result.getLostFileCount());
+		assertEquals(50 * 1000 + (triplets.size() - 50) * 10, result.getBytesToMove());
+		assertEquals(8, result.getSurvivingHostCount());
+		assertEquals(true, result.getLoadSkew() >= 1);
+	}
+
+	/**
+	 * Check lost files are reported by name
+	 */
+	@Test
+	void testLostFiles() {
+		SimulationResult result = cluster.simulateHA(new String[] { "host1", "host2" });
+
+		assertEquals(50, result.getLostFileCount());
+		assertEquals(true, result.getLostFiles().contains("pair7"));
+		assertEquals(50 + 200, result.getAffectedFileCount());
+	}
+
+	/**
+	 * Check the hosts sharing many files rank riskiest, whatever the parallelism
+	 */
+	@Test
+	void testRankHosts() {
+		FailoverSimulator simulator = new FailoverSimulator(cluster);
+		List<HostRisk> sequential = simulator.rankHosts(2000, 2, 42);
+
+		assertEquals(10, sequential.size());
+		assertEquals(true, sequential.get(0).getHost().matches("host[12]"));
+		assertEquals(true, sequential.get(1).getHost().matches("host[12]"));
+
+		cluster.setParallelism(4);
+		List<HostRisk> parallel = simulator.rankHosts(2000, 2, 42);
+
+		for (int i = 0; i < sequential.size(); i++) {
+			assertEquals(sequential.get(i).getHost(), parallel.get(i).getHost());
+			assertEquals(sequential.get(i).getMeanLostFiles(), parallel.get(i).getMeanLostFiles());
+		}
+	}
+
+	/**
+	 * Check copies owed to under-replicated files are costed, like the failover
+	 * makes them
+	 */
+	@Test
+	void testUnderReplicatedFiles() {
+		FailoverSimulator simulator = new FailoverSimulator(cluster);
+		simulator.setFileSizes(file -> 10);
+		cluster.setReplicationFactor(3);
+
+		SimulationResult result = simulator.simulate("host5");
+		List<HAInfoTriplet> triplets = cluster.performHA(new String[] { "host5" });
+
+		assertEquals(false, result.isRejected());
+		assertEquals(true, triplets.size() > 550);
+		assertEquals(triplets.size(), result.getCopyCount());
+		assertEquals(triplets.size() * 10, result.getBytesToMove());
+	}
+
+	/**
+	 * Check scenarios over the max failed hosts are marked as rejected
+	 */
+	@Test
+	void testRejectedScenarios() {
+		String[] failedHosts = { "host1", "host2", "host3" };
+		assertEquals(true, cluster.simulateHA(failedHosts).isRejected());
+		assertThrows(TooManyFailedHostException.class, () -> cluster.performHA(failedHosts));
+
+		List<HostRisk> risks = new FailoverSimulator(cluster).rankHosts(100, 3, 7);
+		for (HostRisk risk : risks) {
+			assertEquals(risk.getScenarioCount(), risk.getRejectedScenarioCount());
+		}
+
+		cluster.setMaxFailedHosts(3);
+		assertEquals(false, cluster.simulateHA(failedHosts).isRejected());
+		assertEquals(0, new FailoverSimulator(cluster).rankHosts(100, 3, 7).get(0).getRejectedScenarioCount());
+	}
+}
@@ -0,0 +1,140 @@
+package com.filecluster.tests;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.filecluster.ha.FailureDomainPlacementStrategy;
+import com.filecluster.ha.HAFileCluster;
+import com.filecluster.ha.HAInfoTriplet;
+import com.filecluster.ha.RandomPlacementStrategy;
+
+@ExtendWith(TimingExtension.class)
+class TestFailureDomains {
+	@TempDir
+	Path tempDir;
+
+	HAFileCluster cluster = HAFileCluster.getCluster();
+
+	@BeforeEach
+	void setupCluster() {
+		cluster.setPlacementStrategy(new FailureDomainPlacementStrategy());
+	}
+
+	@AfterEach
+	void clearCluster() {
+		cluster.deleteCluster();
+		cluster.setPlacementStrategy(new RandomPlacementStrategy());
+		cluster.setMaxFailedHosts(HAFileCluster.DEFAULT_MAX_FAILED_HOSTS);
+	}
+
+	/**
+	 * Check a copy no domain could take is made once a new domain joins
+	 */
+	@Test
+	void testMissingCopyRetried() {
+		cluster.addHost("host1", "rack1");
+		cluster.addHost("host2", "rack2");
+		cluster.addHost("host3", "rack2");
+		cluster.addHost("host4", "rack2");
+		cluster.addFile("file1", "host1");
+		cluster.addFile("file1", "host2");
+
+		// Every survivor is in the rack of the remaining copy
+		assertEquals(0, cluster.performHA(new String[] { "host1" }).size());
+		assertEquals(1, cluster.getHostsForFile("file1").size());
+
+		cluster.addHost("host5", "rack3");
+		List<HAInfoTriplet> triplets = cluster.performHA(new String[0]);
+
+		assertEquals(1, triplets.size());
+		assertEquals("host5", triplets.get(0).getDestinationHost());
+		assertEquals(2, cluster.getHostsForFile("file1").size());
+	}
+
+	/**
+	 * Check no two copies share a rack, before and after losing a whole rack
+	 */
+	@Test
+	void testRackFailure() {
+		for (int rack = 1; rack <= 4; rack++) {
+			for (int i = 1; i <= 5; i++) {
+				cluster.addHost("host" + rack + "-" + i, "rack" + rack);
+			}
+		}
+		for (int i = 1; i <= 2000; i++) {
+			cluster.addFile("file" + i + ".txt");
+			cluster.addFile("file" + i + ".txt");
+		}
+		assertEquals(true, copiesInDistinctDomains(2000));
+
+		cluster.setMaxFailedHosts(5);
+		String[] rack1 = { "host1-1", "host1-2", "host1-3", "host1-4", "host1-5" };
+		List<HAInfoTriplet> triplets = cluster.performHA(rack1);
+
+		assertEquals(false, triplets.isEmpty());
+		assertEquals(true, copiesInDistinctDomains(2000));
+		for (HAInfoTriplet triplet : triplets) {
+			assertEquals(false, "rack1".equals(cluster.getFailureDomain(triplet.getDestinationHost())));
+		}
+	}
+
+	/**
+	 * Check a crowded rack is stepped around when it holds nearly every host
+	 */
+	@Test
+	void testCrowdedDomain() {
+		for (int i = 1; i <= 100; i++) {
+			cluster.addHost("host" + i, "rack1");
+		}
+		cluster.addHost("loner"); // Unlabelled, a domain of its own
+
+		for (int i = 1; i <= 200; i++) {
+			cluster.addFile("file" + i + ".txt", "host" + (i % 100 + 1));
+			assertEquals("loner", cluster.addFile("file" + i + ".txt"));
+		}
+	}
+
+	/**
+	 * Check labels survive a snapshot and a host can be moved to another rack
+	 */
+	@Test
+	void testDomainLabels() throws IOException {
+		cluster.addHost("host1", "rack1");
+		cluster.addHost("host2", "rack2");
+		cluster.addHost("host3");
+		cluster.addHost("host1"); // Keeps its rack
+		cluster.addHost("host2", "rack1");
+
+		Path snapshot = tempDir.resolve("cluster.snapshot");
+		cluster.saveSnapshot(snapshot);
+		cluster.deleteCluster();
+		cluster.loadSnapshot(snapshot);
+
+		assertEquals("rack1", cluster.getFailureDomain("host1"));
+		assertEquals("rack1", cluster.getFailureDomain("host2"));
+		assertEquals(null, cluster.getFailureDomain("host3"));
+		assertEquals(2, ((FailureDomainPlacementStrategy) cluster.getPlacementStrategy()).getDomainCount());
+	}
+
+	private boolean copiesInDistinctDomains(int fileCount) {
+		for (int i = 1; i <= fileCount; i++) {
+			HashSet<String> domains = new HashSet<String>();
+			for (String host : cluster.getHostsForFile("file" + i + ".txt")) {
+				domains.add(cluster.getFailureDomain(host));
+			}
+			if (domains.size() != 2)
+				return false;
+		}
+		return true;
+	}
+}
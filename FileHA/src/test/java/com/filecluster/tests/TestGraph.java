@@ -105,6 +105,20 @@ class TestGraph {
 		assertEquals(false, (graph.hasEdge("node1", "node2") && graph.hasEdge("node1", "node5")));
 	}
 
+	/**
+	 * Check a removed node can be added back without its old edges
+	 */
+	@Test
+	void testNodeReAddAfterRemoval() {
+		graph.removeNode("node2");
+		graph.addNode("node6");
+		graph.addNode("node2");
+
+		assertEquals(true, (graph.hasNode("node2") && graph.getConnectedNodes("node2").isEmpty()
+				&& graph.getConnectedNodes("node6").isEmpty() && !graph.hasEdge("node1", "node2")
+				&& graph.hasEdge("node1", "node5") && graph.getNodeCount() == 6));
+	}
+
 	/**
 	 * Check connected nodes
 	 */
@@ -2,6 +2,7 @@ package com.filecluster.tests;
 
 import java.util.List;
 
+import com.filecluster.ha.HAFileCluster;
 import com.filecluster.ha.HAInfoTriplet;
 
 public class TestHelper {
@@ -44,4 +45,15 @@ public class TestHelper {
 
 		return result;
 	}
+
+	public static int countFilesOnHost(HAFileCluster cluster, String host, int fileCount) {
+		int count = 0;
+
+		for (int i = 1; i <= fileCount; i++) {
+			if (cluster.getHostsForFile("file" + i).contains(host))
+				count++;
+		}
+
+		return count;
+	}
 }
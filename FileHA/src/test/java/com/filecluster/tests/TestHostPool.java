@@ -0,0 +1,76 @@
+package com.filecluster.tests;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import com.filecluster.ha.HostPool;
+
+@ExtendWith(TimingExtension.class)
+class TestHostPool {
+	HostPool pool;
+	Random random = new Random(42);
+
+	@BeforeEach
+	void initPool() {
+		pool = new HostPool();
+
+		for (int host = 0; host < 5; host++) {
+			pool.add(host);
+		}
+	}
+
+	/**
+	 * Check swap-remove keeps the remaining members reachable
+	 */
+	@Test
+	void testRemove() {
+		pool.remove(1);
+
+		assertEquals(4, pool.size());
+		assertEquals(false, pool.contains(1));
+		assertEquals(true, pool.contains(0) && pool.contains(2) && pool.contains(3) && pool.contains(4));
+	}
+
+	/**
+	 * Check a single excluded host is never picked and every other host is
+	 */
+	@Test
+	void testPickExcludingHost() {
+		int[] hits = new int[5];
+
+		for (int i = 0; i < 5000; i++) {
+			hits[pool.pick(random, 2)]++;
+		}
+
+		assertEquals(0, hits[2]);
+		assertEquals(true, hits[0] > 0 && hits[1] > 0 && hits[3] > 0 && hits[4] > 0);
+	}
+
+	/**
+	 * Check several excluded hosts, including one outside the pool
+	 */
+	@Test
+	void testPickExcludingHosts() {
+		int[] excluded = { 0, 4, 9 };
+
+		for (int i = 0; i < 1000; i++) {
+			int host = pool.pick(random, excluded, excluded.length);
+			assertEquals(true, host >= 1 && host <= 3);
+		}
+	}
+
+	/**
+	 * Check nothing is picked when every member is excluded
+	 */
+	@Test
+	void testPickFromExhaustedPool() {
+		int[] excluded = { 0, 1, 2, 3, 4 };
+
+		assertEquals(-1, pool.pick(random, excluded, excluded.length));
+	}
+}
@@ -11,6 +11,7 @@ import org.junit.jupiter.api.extension.ExtendWith;
 
 import com.filecluster.ha.HAFileCluster;
 import com.filecluster.ha.HAInfoTriplet;
+import com.filecluster.ha.TripletBuffer;
 
 @ExtendWith(TimingExtension.class)
 class TestHugeCluster {
@@ -36,6 +37,7 @@ class TestHugeCluster {
 	@AfterEach
 	void clearCluster() {
 		cluster.deleteCluster();
+		cluster.setParallelism(1);
 	}	
 
 	@Test
@@ -50,4 +52,75 @@ class TestHugeCluster {
 								!TestHelper.hasDestinationHost(triplets, "file20", "host23") // host23 must not be file20's destination
 							));
 	}
+
+	@Test
+	void testParallelHAInHugeCluster() {
+		// Put enough files on a single host for the plan to be split across threads
+		for (int i = 1; i <= 20000; i++) {
+			cluster.addFile("bulk" + i, "host15000");
+			cluster.addFile("bulk" + i, "host" + (i % 14000 + 1));
+		}
+
+		cluster.setParallelism(4);
+		String[] failedHosts = { "host15000" };
+
+		List<HAInfoTriplet> triplets = cluster.performHA(failedHosts);
+
+		assertEquals(20000, triplets.size());
+		for (HAInfoTriplet triplet : triplets) {
+			assertNotEquals(triplet.getSourceHost(), triplet.getDestinationHost());
+			assertNotEquals("host15000", triplet.getDestinationHost());
+			assertEquals(2, cluster.getHostsForFile(triplet.getFileToBeCopied()).size());
+		}
+		assertEquals("bulk1", triplets.get(0).getFileToBeCopied()); // Merged in the host's file order
+	}
+
+	@Test
+	void testStreamingHAInHugeCluster() {
+		int files = 150000;
+		for (int i = 1; i <= files; i++) {
+			cluster.addFile("bulk" + i, "host15000");
+			cluster.addFile("bulk" + i, "host" + (i % 14000 + 1));
+		}
+
+		cluster.setParallelism(4);
+		String[] failedHosts = { "host15000" };
+		int[] consumed = new int[1];
+		int[] lastFileCopies = new int[1];
+
+		int tripletCount = cluster.performHA(failedHosts, triplet -> {
+			// The first triplet is out before the last file of the host is planned
+			if (consumed[0] == 0)
+				lastFileCopies[0] = cluster.getHostsForFile("bulk" + files).size();
+
+			consumed[0]++;
+			assertEquals("bulk" + consumed[0], triplet.getFileToBeCopied());
+		});
+
+		assertEquals(files, tripletCount);
+		assertEquals(files, consumed[0]);
+		assertEquals(1, lastFileCopies[0]);
+		assertEquals(2, cluster.getHostsForFile("bulk" + files).size());
+	}
+
+	@Test
+	void testBufferedHAInHugeCluster() {
+		TripletBuffer buffer = new TripletBuffer(16);
+
+		int tripletCount = cluster.performHA(new String[] { "host20" }, buffer);
+
+		assertEquals(2, tripletCount); // file20 and file17
+		assertEquals(tripletCount, buffer.size());
+		for (HAInfoTriplet triplet : buffer.asList()) {
+			assertEquals(true, triplet.getFileToBeCopied().equals("file20") || triplet.getFileToBeCopied().equals("file17"));
+			assertNotEquals("host20", triplet.getDestinationHost());
+			assertEquals(true, cluster.getHostsForFile(triplet.getFileToBeCopied()).contains(triplet.getDestinationHost()));
+		}
+
+		// Reusing the buffer replaces its content
+		cluster.performHA(new String[] { "host1" }, buffer);
+		assertEquals(1, buffer.size());
+		assertEquals("file1", buffer.getFileToBeCopied(0));
+		assertEquals("host4", buffer.getSourceHost(0));
+	}
 }
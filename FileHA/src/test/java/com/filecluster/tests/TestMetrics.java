@@ -0,0 +1,123 @@
+package com.filecluster.tests;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import com.filecluster.ha.ConcurrentFileCluster;
+import com.filecluster.ha.HAFileCluster;
+import com.filecluster.metrics.ClusterMetrics;
+import com.filecluster.metrics.LatencyHistogram;
+
+@ExtendWith(TimingExtension.class)
+class TestMetrics {
+	/**
+	 * Check percentiles stay within a bucket of the recorded values
+	 */
+	@Test
+	void testHistogramPercentiles() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (long i = 1; i <= 100000; i++) {
+			histogram.record(i * 1000);
+		}
+
+		assertEquals(100000, histogram.getCount());
+		assertEquals(100000000, histogram.getMax());
+		assertEquals(true, Math.abs(histogram.getPercentile(50) - 50000000) <= 50000000 / 32);
+		assertEquals(true, Math.abs(histogram.getPercentile(99) - 99000000) <= 99000000 / 32);
+		assertEquals(100000000, histogram.getPercentile(100));
+
+		histogram.reset();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getPercentile(99));
+	}
+
+	/**
+	 * Check adds, failovers and lost files are counted, and host loads read
+	 */
+	@Test
+	void testClusterCounters() {
+		HAFileCluster cluster = HAFileCluster.getCluster();
+		try {
+			ClusterMetrics metrics = new ClusterMetrics();
+			cluster.setMetrics(metrics);
+
+			cluster.addHost("host1");
+			cluster.addHost("host2");
+			cluster.addHost("host3");
+			cluster.addHost("host4");
+			cluster.addFile("file1", "host1");
+			cluster.addFile("file1", "host2");
+			String placedHost = cluster.addFile("file3");
+
+			// The failed host holds file2 only
+			String failedHost = placedHost.equals("host3") ? "host4" : "host3";
+			cluster.addFile("file2", failedHost);
+
+			assertEquals(4, metrics.getFilesAdded());
+			assertEquals(4, metrics.getAddFileLatency().getCount());
+			assertEquals(1, metrics.getPlacementLatency().getCount());
+			assertEquals(4, metrics.getHostCount());
+			assertEquals(4, metrics.getMeanHostLoad() * metrics.getHostCount(), 0.001);
+
+			cluster.performHA(new String[] { failedHost });
+
+			assertEquals(1, metrics.getFailovers());
+			assertEquals(1, metrics.getLostFiles());
+			assertEquals(3, metrics.getHostCount());
+
+			metrics.reset();
+			assertEquals(0, metrics.getFilesAdded());
+		} finally {
+			cluster.setMetrics(null);
+			cluster.deleteCluster();
+		}
+	}
+
+	/**
+	 * Check a concurrent cluster sums the loads of a host over its stripes
+	 */
+	@Test
+	void testConcurrentHostLoads() {
+		ConcurrentFileCluster cluster = new ConcurrentFileCluster(4);
+		ClusterMetrics metrics = new ClusterMetrics();
+		cluster.setMetrics(metrics);
+
+		cluster.addHost("host1");
+		cluster.addHost("host2");
+		cluster.addHost("host3");
+		for (int i = 1; i <= 100; i++) {
+			cluster.addFile("file" + i, "host1");
+		}
+
+		assertEquals(3, metrics.getHostCount());
+		assertEquals(100, metrics.getMaxHostLoad());
+		assertEquals(0, metrics.getMinHostLoad());
+		assertEquals(100, metrics.getFilesAdded());
+	}
+
+	/**
+	 * Check the metrics can be read over JMX
+	 */
+	@Test
+	void testJmx() throws Exception {
+		ClusterMetrics metrics = new ClusterMetrics();
+		metrics.recordFileAdded(1000);
+		metrics.register("test");
+
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName("com.filecluster:type=ClusterMetrics,name=\"test\"");
+		try {
+			assertEquals(1L, server.getAttribute(name, "FilesAdded"));
+		} finally {
+			metrics.unregister();
+		}
+		assertEquals(false, server.isRegistered(name));
+	}
+}
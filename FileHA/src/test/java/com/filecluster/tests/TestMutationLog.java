@@ -0,0 +1,244 @@
+package com.filecluster.tests;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.filecluster.copy.CopyExecutor;
+import com.filecluster.ha.HAFileCluster;
+import com.filecluster.ha.HAInfoTriplet;
+import com.filecluster.wal.FsyncPolicy;
+import com.filecluster.wal.MutationLog;
+
+@ExtendWith(TimingExtension.class)
+class TestMutationLog {
+	private static final Logger logger = Logger.getLogger(TestMutationLog.class.getName());
+
+	@TempDir
+	Path tempDir;
+
+	HAFileCluster cluster = HAFileCluster.getCluster();
+
+	@AfterEach
+	void clearCluster() {
+		cluster.setMutationListener(null);
+		cluster.deleteCluster();
+		cluster.setReplicationFactor(2);
+	}
+
+	/**
+	 * Check a restarted cluster gets back its hosts, files and pending failovers
+	 */
+	@Test
+	void testReplay() throws IOException {
+		MutationLog log = MutationLog.open(tempDir, cluster, FsyncPolicy.COMMIT);
+		populate(10, 1000);
+		List<HAInfoTriplet> triplets = cluster.performHA(new String[] { "host1" });
+		log.close();
+
+		restart();
+		MutationLog restored = MutationLog.open(tempDir, cluster, FsyncPolicy.COMMIT);
+
+		assertEquals(9, cluster.getHosts().size());
+		assertEquals(false, cluster.getHosts().contains("host1"));
+		assertEquals(triplets.size(), restored.getPendingFailovers().size());
+		for (HAInfoTriplet triplet : restored.getPendingFailovers()) {
+			assertEquals(true, TestHelper.hasDestinationHost(triplets, triplet.getFileToBeCopied(), triplet.getDestinationHost()));
+			assertEquals(true, cluster.getHostsForFile(triplet.getFileToBeCopied()).contains(triplet.getDestinationHost()));
+		}
+		assertEquals(0, TestHelper.countFilesOnHost(cluster, "host1", 1000));
+
+		restored.close();
+	}
+
+	/**
+	 * Check files moved off a draining host stay moved after a restart
+	 */
+	@Test
+	void testMovesReplayed() throws IOException {
+		MutationLog log = MutationLog.open(tempDir, cluster, FsyncPolicy.COMMIT);
+		populate(5, 100);
+		List<HAInfoTriplet> moves = cluster.decommissionHost("host1").nextBatch();
+		log.close();
+
+		restart();
+		MutationLog restored = MutationLog.open(tempDir, cluster, FsyncPolicy.COMMIT);
+
+		assertEquals(40, moves.size());
+		assertEquals(moves.size(), restored.getPendingFailovers().size());
+		assertEquals(0, TestHelper.countFilesOnHost(cluster, "host1", 100));
+		assertEquals(100, countFiles(100));
+
+		restored.close();
+	}
+
+	/**
+	 * Check a raised replication factor is replayed before the copies it allowed
+	 */
+	@Test
+	void testReplicationFactorReplayed() throws IOException {
+		MutationLog log = MutationLog.open(tempDir, cluster, FsyncPolicy.COMMIT);
+		populate(5, 100);
+		cluster.setReplicationFactor(3);
+		List<HAInfoTriplet> triplets = cluster.performHA(new String[0]);
+		log.close();
+
+		restart();
+		cluster.setReplicationFactor(2);
+		MutationLog restored = MutationLog.open(tempDir, cluster, FsyncPolicy.COMMIT);
+
+		assertEquals(100, triplets.size());
+		assertEquals(3, cluster.getReplicationFactor());
+		assertEquals(3, cluster.getHostsForFile("file1").size());
+		assertEquals(100, restored.getPendingFailovers().size());
+
+		restored.close();
+	}
+
+	/**
+	 * Check recovery hands out the pending copies instead of issuing them again
+	 */
+	@Test
+	void testReplayIssuesNoCopies() throws IOException {
+		MutationLog log = MutationLog.open(tempDir, cluster, FsyncPolicy.COMMIT);
+		populate(5, 100);
+		cluster.performHA(new String[] { "host1" });
+		log.close();
+
+		restart();
+		AtomicInteger copies = new AtomicInteger();
+		try (CopyExecutor executor = new CopyExecutor((file, source, destination) -> copies.incrementAndGet(), 2)) {
+			cluster.setCopyExecutor(executor);
+			MutationLog restored = MutationLog.open(tempDir, cluster, FsyncPolicy.COMMIT);
+
+			assertEquals(true, restored.getPendingFailovers().size() > 0);
+			assertEquals(100, countFiles(100));
+			assertEquals(0, executor.getPendingCount() + executor.getCompletedCount());
+			assertEquals(0, copies.get());
+			restored.close();
+		} finally {
+			cluster.setCopyExecutor(null);
+		}
+	}
+
+	/**
+	 * Check a record torn by a crash is dropped and the log stays appendable
+	 */
+	@Test
+	void testTornTail() throws IOException {
+		MutationLog log = MutationLog.open(tempDir, cluster, FsyncPolicy.COMMIT);
+		populate(5, 10);
+		cluster.addFile("lastFile.txt", "host1");
+		log.close();
+
+		Path logFile = tempDir.resolve("log-0");
+		try (FileChannel channel = FileChannel.open(logFile, StandardOpenOption.WRITE)) {
+			channel.truncate(channel.size() - 3);
+		}
+
+		restart();
+		log = MutationLog.open(tempDir, cluster, FsyncPolicy.COMMIT);
+		assertEquals(null, cluster.getHostsForFile("lastFile.txt"));
+		assertEquals(2, cluster.getHostsForFile("file10").size());
+
+		cluster.addFile("lastFile.txt", "host2");
+		log.close();
+
+		restart();
+		log = MutationLog.open(tempDir, cluster, FsyncPolicy.NONE);
+		assertEquals(true, cluster.getHostsForFile("lastFile.txt").contains("host2"));
+		log.close();
+	}
+
+	/**
+	 * Check compaction moves the state into a snapshot and recovery reads it back
+	 */
+	@Test
+	void testCompaction() throws IOException {
+		MutationLog log = MutationLog.open(tempDir, cluster, FsyncPolicy.INTERVAL);
+		log.setCompactionThreshold(4096);
+		populate(10, 1000);
+		long generation = log.getGeneration();
+		cluster.removeHost("host10");
+		log.close();
+
+		assertEquals(true, generation > 0);
+		assertEquals(true, Files.exists(tempDir.resolve("snapshot-" + generation)));
+		assertEquals(false, Files.exists(tempDir.resolve("log-0")));
+
+		restart();
+		log = MutationLog.open(tempDir, cluster, FsyncPolicy.INTERVAL);
+		assertEquals(9, cluster.getHosts().size());
+		assertEquals(800, countFiles(1000)); // 200 files lost their copy on host10
+		assertEquals(0, log.getPendingFailovers().size());
+		log.close();
+	}
+
+	/**
+	 * Measure the cost of logging per mutation with group commit
+	 */
+	@Test
+	void testLoggingOverhead() throws IOException {
+		int files = 200000;
+		MutationLog log = MutationLog.open(tempDir, cluster, FsyncPolicy.COMMIT);
+		log.setCompactionThreshold(0);
+		for (int i = 1; i <= 10; i++) {
+			cluster.addHost("host" + i);
+		}
+
+		// One operation with many mutations shares a single fsync
+		StringBuilder csv = new StringBuilder();
+		for (int i = 1; i <= files; i++) {
+			csv.append("file" + i + ".txt,host" + (i % 10 + 1) + "\n");
+		}
+		long startTime = System.nanoTime();
+		cluster.bulkLoad(new java.io.StringReader(csv.toString()), files);
+		long elapsed = System.nanoTime() - startTime;
+		log.close();
+
+		logger.info(String.format("Logged %,d mutations in %d ms (%.2f us per mutation)", files, elapsed / 1000000,
+				elapsed / 1000.0 / files));
+
+		restart();
+		log = MutationLog.open(tempDir, cluster, FsyncPolicy.COMMIT);
+		assertEquals(1, cluster.getHostsForFile("file" + files + ".txt").size());
+		log.close();
+	}
+
+	private void populate(int hosts, int files) {
+		for (int i = 1; i <= hosts; i++) {
+			cluster.addHost("host" + i);
+		}
+		for (int i = 1; i <= files; i++) {
+			cluster.addFile("file" + i, "host" + (i % hosts + 1));
+			cluster.addFile("file" + i, "host" + ((i + 3) % hosts + 1));
+		}
+	}
+
+	private int countFiles(int files) {
+		int count = 0;
+		for (int i = 1; i <= files; i++) {
+			if (cluster.getHostsForFile("file" + i).size() == 2)
+				count++;
+		}
+		return count;
+	}
+
+	private void restart() {
+		// Drop the in-memory state as a crash would
+		cluster.setMutationListener(null);
+		cluster.deleteCluster();
+	}
+}
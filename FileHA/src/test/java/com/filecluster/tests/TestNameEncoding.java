@@ -0,0 +1,164 @@
+package com.filecluster.tests;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.filecluster.graph.ClusterGraph;
+import com.filecluster.graph.Graph;
+import com.filecluster.graph.GraphVersion;
+import com.filecluster.graph.NodeDictionary;
+
+@ExtendWith(TimingExtension.class)
+class TestNameEncoding {
+	@TempDir
+	Path tempDir;
+
+	/**
+	 * Check packed and plain names come back as they went in and are told apart
+	 */
+	@Test
+	void testRoundTrip() {
+		String uuid = "0f1e2d3c-4b5a-6978-8796-a5b4c3d2e1f0";
+		String[] names = { uuid, uuid + ".txt", uuid + ".jpg", uuid + ".png", uuid + ".html", uuid + ".css",
+				uuid + ".csv", "ffffffff-ffff-ffff-ffff-ffffffffffff.txt", "00000000-0000-0000-0000-000000000000",
+				uuid.toUpperCase() + ".txt", uuid.toUpperCase() + ".csv", "FFFFFFFF-FFFF-FFFF-FFFF-FFFFFFFFFFFF",
+				uuid + ".pdf", uuid + ".TXT", uuid.replace('-', '_'), uuid.substring(1),
+				"0f1e2d3c-4b5a-6978-8796-a5b4c3d2e1fg", "0F1E2D3C-4b5a-6978-8796-a5b4c3d2e1f0.txt", "host1", "" };
+		int packedCount = 12; // The names before the .pdf one
+
+		NodeDictionary dictionary = new NodeDictionary();
+		for (int i = 0; i < names.length; i++) {
+			assertEquals(i, dictionary.intern(names[i]));
+		}
+		for (int i = 0; i < names.length; i++) {
+			assertEquals(names[i], dictionary.getName(i));
+			assertEquals(i, dictionary.intern(names[i]));
+			assertEquals(i, dictionary.getId(new String(names[i])));
+			assertEquals(i < packedCount, dictionary.isPacked(i), names[i]);
+		}
+		assertEquals(names.length, dictionary.size());
+
+		assertEquals(1, dictionary.remove(uuid + ".txt"));
+		assertEquals(false, dictionary.contains(uuid + ".txt") || dictionary.contains(1));
+		assertEquals(true, dictionary.contains(uuid) && dictionary.contains(uuid.toUpperCase() + ".txt"));
+		assertEquals(false, dictionary.contains(uuid.toUpperCase()));
+		assertEquals(1, dictionary.intern("host2")); // A plain name in the id of a packed one
+		assertEquals("host2", dictionary.getName(1));
+	}
+
+	/**
+	 * Check the uppercase UUID names of the mock cluster data are all packed and
+	 * come back exactly
+	 */
+	@Test
+	void testMockDataNames() throws IOException {
+		List<String> names = new ArrayList<String>();
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+				getClass().getResourceAsStream("/MOCK_DATA.csv"), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (!line.isEmpty())
+					names.add(line.split(",")[0]);
+			}
+		}
+
+		NodeDictionary dictionary = new NodeDictionary();
+		for (String name : names) {
+			int id = dictionary.intern(name);
+			assertEquals(true, dictionary.isPacked(id), name);
+			assertEquals(name, dictionary.getName(id));
+		}
+		for (String name : names) {
+			assertEquals(name, dictionary.getName(dictionary.getId(name)));
+			assertEquals(-1, dictionary.getId(name.toLowerCase()));
+		}
+		assertEquals(true, names.size() >= 299);
+	}
+
+	/**
+	 * Check random UUID file names stay distinct through growth and removals
+	 */
+	@Test
+	void testManyNames() {
+		String[] names = new String[50000];
+		NodeDictionary dictionary = new NodeDictionary();
+		for (int i = 0; i < names.length; i++) {
+			String uuid = UUID.randomUUID().toString();
+			names[i] = (i % 3 == 1 ? uuid.toUpperCase() : uuid) + (i % 2 == 0 ? ".txt" : "");
+			assertEquals(i, dictionary.intern(names[i]));
+		}
+		for (int i = 0; i < names.length; i += 3) {
+			dictionary.remove(names[i]);
+		}
+		for (int i = 0; i < names.length; i++) {
+			assertEquals(i % 3 == 0 ? -1 : i, dictionary.getId(names[i]));
+			assertEquals(i % 3 == 0 ? null : names[i], dictionary.getName(i));
+		}
+	}
+
+	/**
+	 * Check packed names survive a graph snapshot
+	 */
+	@Test
+	void testSnapshot() throws IOException {
+		Graph graph = new Graph();
+		String file = UUID.randomUUID().toString().toUpperCase() + ".png";
+		graph.addEdge(file, "host1");
+		graph.addEdge(UUID.randomUUID().toString(), "host1");
+
+		Path snapshot = tempDir.resolve("graph.snapshot");
+		graph.writeSnapshot(snapshot);
+		Graph restored = Graph.readSnapshot(snapshot);
+
+		assertEquals(3, restored.getNodeCount());
+		assertEquals(true, restored.hasEdge("host1", file));
+		assertEquals(2, restored.getConnectedNodes("host1").size());
+	}
+
+	/**
+	 * Check published versions find packed names, also after an id is reused
+	 */
+	@Test
+	void testPublishedVersions() {
+		ClusterGraph graph = new ClusterGraph();
+		String[] hosts = { UUID.randomUUID().toString(), UUID.randomUUID().toString(), "host3" };
+		for (String host : hosts) {
+			graph.addHost(host);
+		}
+
+		String[] files = new String[1000];
+		for (int i = 0; i < files.length; i++) {
+			files[i] = UUID.randomUUID() + ".csv";
+			graph.addReplica(files[i], hosts[i % 3]);
+		}
+		GraphVersion first = graph.publish();
+
+		graph.removeHost(hosts[0]);
+		String replacement = UUID.randomUUID().toString(); // Reuses the id of the first host
+		graph.addHost(replacement);
+		graph.addReplica(files[0], replacement);
+		graph.addReplica("plain-file", "host3");
+		GraphVersion second = graph.publish();
+
+		assertEquals(true, first.hasHost(hosts[0]) && !first.hasHost(replacement) && !first.hasFile("plain-file"));
+		assertEquals(true, !second.hasHost(hosts[0]) && second.hasHost(replacement) && second.hasFile("plain-file"));
+		assertEquals(true, second.getHostsForFile(files[0]).contains(replacement));
+		for (int i = 0; i < files.length; i++) {
+			assertEquals(graph.getHostsForFile(files[i]), second.getHostsForFile(files[i]));
+		}
+		assertEquals(files.length + 1, second.getFileCount());
+		assertEquals(3, second.getHostCount());
+	}
+}
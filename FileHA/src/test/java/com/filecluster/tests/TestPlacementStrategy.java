@@ -0,0 +1,113 @@
+package com.filecluster.tests;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Arrays;
+import java.util.Set;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import com.filecluster.ha.HAFileCluster;
+import com.filecluster.ha.LeastLoadedPlacementStrategy;
+import com.filecluster.ha.RandomPlacementStrategy;
+
+@ExtendWith(TimingExtension.class)
+class TestPlacementStrategy {
+	HAFileCluster cluster;
+
+	@BeforeEach
+	void setupCluster() {
+		cluster = HAFileCluster.getCluster();
+
+		for (int i = 1; i <= 10; i++) {
+			cluster.addHost("host" + i);
+		}
+	}
+
+	@AfterEach
+	void clearCluster() {
+		cluster.deleteCluster();
+		cluster.setPlacementStrategy(new RandomPlacementStrategy());
+	}
+
+	/**
+	 * Check the least loaded strategy avoids the busiest hosts
+	 */
+	@Test
+	void testLeastLoadedPlacement() {
+		cluster.addFile("file1", "host1");
+		cluster.addFile("file2", "host1");
+		cluster.addFile("file2", "host2");
+		cluster.setPlacementStrategy(new LeastLoadedPlacementStrategy());
+
+		for (int i = 3; i <= 10; i++) {
+			String host = cluster.addFile("file" + i);
+			assertEquals(false, host.equals("host1") || host.equals("host2"));
+		}
+	}
+
+	/**
+	 * Check the two copies of a file never land on the same host
+	 */
+	@Test
+	void testNoDuplicatePlacement() {
+		cluster.setPlacementStrategy(new LeastLoadedPlacementStrategy());
+
+		for (int i = 1; i <= 100; i++) {
+			cluster.addFile("file" + i);
+			cluster.addFile("file" + i);
+			assertEquals(2, cluster.getHostsForFile("file" + i).size());
+		}
+	}
+
+	/**
+	 * Check the cluster stays balanced under repeated failovers
+	 */
+	@Test
+	void testBalanceAfterRepeatedFailovers() {
+		cluster.setPlacementStrategy(new LeastLoadedPlacementStrategy());
+
+		for (int i = 1; i <= 1000; i++) {
+			cluster.addFile("file" + i);
+			cluster.addFile("file" + i);
+		}
+
+		for (int i = 1; i <= 5; i++) {
+			cluster.performHA(new String[] { "host" + i });
+		}
+
+		int minLoad = Integer.MAX_VALUE, maxLoad = 0;
+		Set<String> hosts = cluster.getHosts();
+		for (String host : hosts) {
+			int load = TestHelper.countFilesOnHost(cluster, host, 1000);
+			minLoad = Math.min(minLoad, load);
+			maxLoad = Math.max(maxLoad, load);
+		}
+
+		assertEquals(true, hosts.containsAll(Arrays.asList("host6", "host10")) && hosts.size() == 5);
+		assertEquals(true, maxLoad - minLoad <= 1);
+	}
+
+	/**
+	 * Check a repeated row for a host that already holds the file is not
+	 * counted as another copy on it
+	 */
+	@Test
+	void testRepeatedRowNotCounted() {
+		cluster.setPlacementStrategy(new LeastLoadedPlacementStrategy());
+
+		for (int i = 0; i < 3; i++) {
+			cluster.addFile("file1", "host1");
+		}
+		assertEquals(1, cluster.getHostsForFile("file1").size());
+
+		// Nine files fill the other hosts, the next ten go one to every host
+		for (int i = 2; i <= 20; i++) {
+			cluster.addFile("file" + i);
+		}
+		assertEquals(2, TestHelper.countFilesOnHost(cluster, "host1", 20));
+	}
+}
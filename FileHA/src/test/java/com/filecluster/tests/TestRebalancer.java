@@ -0,0 +1,159 @@
+package com.filecluster.tests;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import com.filecluster.ha.ConcurrentFileCluster;
+import com.filecluster.ha.HAFileCluster;
+import com.filecluster.ha.HAInfoTriplet;
+import com.filecluster.ha.Rebalancer;
+
+@ExtendWith(TimingExtension.class)
+class TestRebalancer {
+	HAFileCluster cluster = HAFileCluster.getCluster();
+
+	@AfterEach
+	void clearCluster() {
+		cluster.deleteCluster();
+	}
+
+	/*
+	 * Four hosts with 200 copies each and an empty fifth one
+	 */
+	private void populate() {
+		for (int i = 1; i <= 4; i++) {
+			cluster.addHost("host" + i);
+		}
+		for (int i = 1; i <= 400; i++) {
+			cluster.addFile("file" + i, "host" + (i % 4 + 1));
+			cluster.addFile("file" + i, "host" + ((i + 1) % 4 + 1));
+		}
+		cluster.addHost("host5");
+	}
+
+	/**
+	 * Check a new host is filled until loads differ by at most the skew
+	 */
+	@Test
+	void testNewHostFilled() {
+		populate();
+		List<HAInfoTriplet> moves = new ArrayList<HAInfoTriplet>();
+
+		assertEquals(160, cluster.rebalance(1, Integer.MAX_VALUE, moves::add));
+		for (int i = 1; i <= 5; i++) {
+			assertEquals(160, TestHelper.countFilesOnHost(cluster, "host" + i, 400));
+		}
+		for (HAInfoTriplet move : moves) {
+			assertEquals("host5", move.getDestinationHost());
+		}
+		for (int i = 1; i <= 400; i++) {
+			assertEquals(2, cluster.getHostsForFile("file" + i).size());
+		}
+
+		assertEquals(0, cluster.rebalance(1, Integer.MAX_VALUE, moves::add));
+	}
+
+	/**
+	 * Check a step moves no more than asked and skips draining hosts
+	 */
+	@Test
+	void testBoundedAndDrainingSkipped() {
+		populate();
+
+		assertEquals(10, cluster.rebalance(1, 10, move -> {}));
+		assertEquals(10, TestHelper.countFilesOnHost(cluster, "host5", 400));
+
+		cluster.decommissionHost("host5");
+		assertEquals(0, cluster.rebalance(1, Integer.MAX_VALUE, move -> {}));
+		assertEquals(10, TestHelper.countFilesOnHost(cluster, "host5", 400));
+	}
+
+	/**
+	 * Check the background rebalancer fills a new host of a concurrent cluster
+	 */
+	@Test
+	void testBackgroundRebalance() throws Exception {
+		ConcurrentFileCluster concurrentCluster = new ConcurrentFileCluster(4);
+		for (int i = 1; i <= 4; i++) {
+			concurrentCluster.addHost("host" + i);
+		}
+		for (int i = 1; i <= 400; i++) {
+			concurrentCluster.addFile("file" + i);
+			concurrentCluster.addFile("file" + i);
+		}
+		concurrentCluster.addHost("host5");
+
+		try (Rebalancer rebalancer = new Rebalancer(concurrentCluster, 10000)) {
+			rebalancer.setMaxSkew(1);
+			assertEquals(true, rebalancer.awaitBalanced(5000));
+			assertEquals(true, rebalancer.getMoveCount() > 0);
+		}
+
+		int onHost5 = 0;
+		for (int i = 1; i <= 400; i++) {
+			if (concurrentCluster.getHostsForFile("file" + i).contains("host5"))
+				onHost5++;
+		}
+		assertEquals(true, Math.abs(onHost5 - 160) <= 4, onHost5 + " files on host5");
+	}
+
+	/**
+	 * Check a failing rebalance is not reported as balanced and is retried
+	 */
+	@Test
+	void testFailingStepRetried() throws Exception {
+		populate();
+
+		try (Rebalancer rebalancer = new Rebalancer(cluster, 100)) {
+			rebalancer.setMaxSkew(1);
+			rebalancer.setTripletConsumer(move -> {
+				throw new IllegalStateException("Copy refused");
+			});
+			assertEquals(false, rebalancer.awaitBalanced(500));
+
+			rebalancer.setTripletConsumer(null);
+			assertEquals(true, rebalancer.awaitBalanced(10000));
+		}
+
+		assertEquals(160, TestHelper.countFilesOnHost(cluster, "host5", 400));
+	}
+
+	/**
+	 * Check copies the failure domains keep on the most loaded host do not stop
+	 * the other hosts from balancing, and the rest is reported as stuck
+	 */
+	@Test
+	void testFailureDomainsStuck() throws Exception {
+		// Every file has one copy in each domain, and rackB has a single host
+		cluster.addHost("a1", "rackA");
+		cluster.addHost("a2", "rackA");
+		cluster.addHost("b1", "rackB");
+		for (int i = 1; i <= 200; i++) {
+			cluster.addFile("file" + i, "a" + (i % 2 + 1));
+			cluster.addFile("file" + i, "b1");
+		}
+		cluster.addHost("a3", "rackA");
+
+		List<HAInfoTriplet> moves = new ArrayList<HAInfoTriplet>();
+		assertEquals(66, cluster.rebalance(1, Integer.MAX_VALUE, moves::add));
+		for (HAInfoTriplet move : moves) {
+			assertEquals(true, move.getSourceHost().startsWith("a"));
+			assertEquals("a3", move.getDestinationHost());
+		}
+		assertEquals(200, TestHelper.countFilesOnHost(cluster, "b1", 200));
+		assertEquals(false, cluster.isBalanced(1));
+
+		try (Rebalancer rebalancer = new Rebalancer(cluster, 100)) {
+			rebalancer.setMaxSkew(1);
+			assertEquals(false, rebalancer.awaitBalanced(5000));
+			assertEquals(true, rebalancer.isStuck());
+			assertEquals(0, rebalancer.getMoveCount());
+		}
+	}
+}
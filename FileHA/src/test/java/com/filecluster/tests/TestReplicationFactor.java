@@ -0,0 +1,131 @@
+package com.filecluster.tests;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import com.filecluster.exception.TooManyCopiesException;
+import com.filecluster.ha.HAFileCluster;
+import com.filecluster.ha.HAInfoTriplet;
+
+@ExtendWith(TimingExtension.class)
+class TestReplicationFactor {
+	private static final Logger logger = Logger.getLogger(TestReplicationFactor.class.getName());
+
+	HAFileCluster cluster = HAFileCluster.getCluster();
+
+	@AfterEach
+	void clearCluster() {
+		cluster.deleteCluster();
+		cluster.setReplicationFactor(2);
+		cluster.setMaxFailedHosts(HAFileCluster.DEFAULT_MAX_FAILED_HOSTS);
+	}
+
+	/**
+	 * Check every file gets as many copies as the factor allows and no more
+	 */
+	@Test
+	void testThreeCopies() {
+		cluster.setReplicationFactor(3);
+		for (int i = 1; i <= 4; i++) {
+			cluster.addHost("host" + i);
+		}
+
+		cluster.addFile("file1.txt");
+		cluster.addFile("file1.txt");
+		cluster.addFile("file1.txt");
+
+		assertEquals(3, cluster.getHostsForFile("file1.txt").size());
+		assertThrows(TooManyCopiesException.class, () -> cluster.addFile("file1.txt"));
+	}
+
+	/**
+	 * Check a file losing two of its three copies gets both back from the survivor
+	 */
+	@Test
+	void testSeveralMissingCopies() {
+		cluster.setReplicationFactor(3);
+		for (int i = 1; i <= 6; i++) {
+			cluster.addHost("host" + i);
+		}
+		cluster.addFile("file1", "host1");
+		cluster.addFile("file1", "host2");
+		cluster.addFile("file1", "host3");
+
+		List<HAInfoTriplet> triplets = cluster.performHA(new String[] { "host1", "host2" });
+
+		assertEquals(2, triplets.size());
+		assertEquals(true, TestHelper.hasSourceHost(triplets, "file1", "host3"));
+		assertEquals(3, cluster.getHostsForFile("file1").size());
+		assertEquals(true, cluster.getHostsForFile("file1").contains("host3"));
+		assertNotEquals(triplets.get(0).getDestinationHost(), triplets.get(1).getDestinationHost());
+	}
+
+	/**
+	 * Check hundreds of simultaneous failures restore every file that kept a copy
+	 */
+	@Test
+	void testManyFailedHosts() {
+		int hostCount = 1000, fileCount = 100000;
+		cluster.setReplicationFactor(3);
+		cluster.setMaxFailedHosts(HAFileCluster.UNLIMITED_FAILED_HOSTS);
+
+		for (int i = 1; i <= hostCount; i++) {
+			cluster.addHost("host" + i);
+		}
+		for (int i = 1; i <= fileCount; i++) {
+			cluster.addFile("file" + i, "host" + (i % hostCount + 1));
+			cluster.addFile("file" + i, "host" + ((i + 7) % hostCount + 1));
+			cluster.addFile("file" + i, "host" + ((i + 500) % hostCount + 1));
+		}
+
+		// Every tenth host fails, no file loses all three copies
+		List<String> failedHosts = new ArrayList<String>();
+		for (int i = 10; i <= hostCount; i += 10) {
+			failedHosts.add("host" + i);
+		}
+
+		long startTime = System.nanoTime();
+		List<HAInfoTriplet> triplets = cluster.performHA(failedHosts.toArray(new String[0]));
+		long elapsed = System.nanoTime() - startTime;
+
+		logger.info(String.format("%d hosts failed, %,d copies planned in %d ms", failedHosts.size(), triplets.size(),
+				elapsed / 1000000));
+
+		assertEquals(hostCount - failedHosts.size(), cluster.getHosts().size());
+		HashSet<String> failed = new HashSet<String>(failedHosts);
+		for (int i = 1; i <= fileCount; i++) {
+			HashSet<String> hosts = new HashSet<String>(cluster.getHostsForFile("file" + i));
+			assertEquals(3, hosts.size());
+			hosts.retainAll(failed);
+			assertEquals(0, hosts.size());
+		}
+	}
+
+	/**
+	 * Check a raised factor is applied by the next failover, even one without
+	 * failed hosts
+	 */
+	@Test
+	void testRaisedFactorToppedUp() {
+		for (int i = 1; i <= 4; i++) {
+			cluster.addHost("host" + i);
+		}
+		cluster.addFile("file1", "host1");
+		cluster.addFile("file1", "host2");
+
+		cluster.setReplicationFactor(3);
+		List<HAInfoTriplet> triplets = cluster.performHA(new String[0]);
+
+		assertEquals(1, triplets.size());
+		assertEquals(3, cluster.getHostsForFile("file1").size());
+		assertEquals(0, cluster.performHA(new String[0]).size());
+	}
+}
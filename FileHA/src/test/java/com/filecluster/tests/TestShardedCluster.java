@@ -0,0 +1,126 @@
+package com.filecluster.tests;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import com.filecluster.exception.TooManyCopiesException;
+import com.filecluster.exception.TooManyFailedHostException;
+import com.filecluster.ha.HAInfoTriplet;
+import com.filecluster.shard.HashRing;
+import com.filecluster.shard.InProcessTransport;
+import com.filecluster.shard.ShardedFileCluster;
+
+@ExtendWith(TimingExtension.class)
+class TestShardedCluster {
+	InProcessTransport transport;
+	ShardedFileCluster cluster;
+
+	@BeforeEach
+	void setupCluster() {
+		transport = new InProcessTransport(4, 2);
+		cluster = new ShardedFileCluster(transport);
+
+		for (int i = 1; i <= 5; i++) {
+			cluster.addHost("host" + i);
+		}
+		for (int i = 1; i <= 400; i++) {
+			cluster.addFile("file" + i);
+			cluster.addFile("file" + i);
+		}
+	}
+
+	@AfterEach
+	void closeCluster() {
+		cluster.close();
+	}
+
+	/**
+	 * Check shards get similar slices and a new shard only takes names over
+	 */
+	@Test
+	void testRingBalance() {
+		HashRing ring = new HashRing();
+		for (int i = 0; i < 4; i++) {
+			ring.addShard("shard" + i);
+		}
+
+		Map<String, String> owners = new HashMap<String, String>();
+		Map<String, Integer> counts = new HashMap<String, Integer>();
+		for (int i = 0; i < 20000; i++) {
+			String shard = ring.shardOf("file" + i);
+			owners.put("file" + i, shard);
+			counts.merge(shard, 1, Integer::sum);
+		}
+		for (int count : counts.values()) {
+			assertEquals(true, count > 3500 && count < 6500, "Slice of " + count + " names");
+		}
+
+		ring.addShard("shard4");
+		int moved = 0;
+		for (Map.Entry<String, String> owner : owners.entrySet()) {
+			String shard = ring.shardOf(owner.getKey());
+			if (!shard.equals(owner.getValue())) {
+				assertEquals("shard4", shard);
+				moved++;
+			}
+		}
+		assertEquals(true, moved > 2000 && moved < 6000, moved + " names moved");
+	}
+
+	/**
+	 * Check a file lives on its own shard only
+	 */
+	@Test
+	void testFilesPartitioned() {
+		for (int i = 1; i <= 400; i++) {
+			String file = "file" + i;
+			String owner = cluster.getShardOf(file);
+
+			assertEquals(2, cluster.getHostsForFile(file).size());
+			for (String shard : cluster.getShards()) {
+				if (!shard.equals(owner))
+					assertEquals(null, transport.getCluster(shard).getHostsForFile(file));
+			}
+		}
+		assertEquals(5, cluster.getHosts().size());
+	}
+
+	/**
+	 * Check a failover runs on every shard and restores all copies
+	 */
+	@Test
+	void testFailoverMerged() {
+		int filesOnHost1 = 0;
+		for (int i = 1; i <= 400; i++) {
+			if (cluster.getHostsForFile("file" + i).contains("host1"))
+				filesOnHost1++;
+		}
+
+		List<HAInfoTriplet> triplets = cluster.performHA(new String[] { "host1" });
+
+		assertEquals(filesOnHost1, triplets.size());
+		assertEquals(false, triplets.stream().anyMatch(t -> t.getDestinationHost().equals("host1")));
+		for (int i = 1; i <= 400; i++) {
+			assertEquals(2, cluster.getHostsForFile("file" + i).size());
+		}
+		assertEquals(4, cluster.getHosts().size());
+	}
+
+	/**
+	 * Check shard exceptions reach the caller unchanged
+	 */
+	@Test
+	void testShardErrors() {
+		assertThrows(TooManyCopiesException.class, () -> cluster.addFile("file1"));
+		assertThrows(TooManyFailedHostException.class,
+				() -> cluster.performHA(new String[] { "host1", "host2", "host3" }));
+	}
+}
@@ -0,0 +1,94 @@
+package com.filecluster.tests;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.filecluster.graph.Graph;
+import com.filecluster.ha.HAFileCluster;
+import com.filecluster.ha.HAInfoTriplet;
+
+@ExtendWith(TimingExtension.class)
+class TestSnapshot {
+	private static final Logger logger = Logger.getLogger(TestSnapshot.class.getName());
+
+	@TempDir
+	Path tempDir;
+
+	@AfterEach
+	void clearCluster() {
+		HAFileCluster.getCluster().deleteCluster();
+	}
+
+	/**
+	 * Check a graph survives a snapshot round trip, including removed nodes
+	 */
+	@Test
+	void testGraphSnapshot() throws IOException {
+		Graph graph = new Graph();
+		graph.addEdge("node1", "node2");
+		graph.addEdge("node1", "அΨ台北.txt");
+		graph.addEdge("node3", "node2");
+		graph.removeNode("node3");
+
+		Path snapshot = tempDir.resolve("graph.snapshot");
+		graph.writeSnapshot(snapshot);
+		Graph restored = Graph.readSnapshot(snapshot);
+
+		assertEquals(3, restored.getNodeCount());
+		assertEquals(true, restored.hasEdge("node1", "அΨ台北.txt") && restored.hasEdge("node2", "node1")
+				&& !restored.hasNode("node3"));
+
+		restored.addEdge("node4", "node1"); // Recycles the id freed by node3
+		assertEquals(true, restored.hasEdge("node1", "node4") && restored.getDegree("node1") == 3);
+	}
+
+	/**
+	 * Check a restarted cluster answers lookups and fails over from a snapshot
+	 */
+	@Test
+	void testClusterSnapshot() throws IOException {
+		HAFileCluster cluster = HAFileCluster.getCluster();
+		for (int i = 1; i <= 100; i++) {
+			cluster.addHost("host" + i);
+		}
+		for (int i = 1; i <= 100000; i++) {
+			cluster.addFile("file" + i, "host" + (i % 100 + 1));
+			cluster.addFile("file" + i, "host" + ((i + 7) % 100 + 1));
+		}
+		cluster.removeHost("host100");
+
+		Path snapshot = tempDir.resolve("cluster.snapshot");
+		long startTime = System.nanoTime();
+		cluster.saveSnapshot(snapshot);
+		long saveTime = System.nanoTime() - startTime;
+
+		cluster.deleteCluster();
+
+		startTime = System.nanoTime();
+		cluster.loadSnapshot(snapshot);
+		long loadTime = System.nanoTime() - startTime;
+
+		logger.info(String.format("Snapshot of %,d bytes saved in %d ms, loaded in %d ms", Files.size(snapshot),
+				saveTime / 1000000, loadTime / 1000000));
+
+		assertEquals(99, cluster.getHosts().size());
+		assertEquals(true, cluster.getHostsForFile("file1").containsAll(Arrays.asList("host2", "host9")));
+		assertEquals(1, cluster.getHostsForFile("file99").size()); // Copy on host100 was removed
+
+		List<HAInfoTriplet> triplets = cluster.performHA(new String[] { "host2" });
+		assertEquals(false, triplets.isEmpty());
+		assertEquals(2, cluster.getHostsForFile("file1").size());
+		assertEquals(false, cluster.getHostsForFile("file1").contains("host2"));
+	}
+}
@@ -0,0 +1,136 @@
+package com.filecluster.tests;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import com.filecluster.copy.CopyExecutor;
+import com.filecluster.ha.HAFileCluster;
+import com.filecluster.ha.HAInfoTriplet;
+import com.filecluster.ha.SourceSelector;
+
+@ExtendWith(TimingExtension.class)
+class TestSourceSelection {
+	HAFileCluster cluster = HAFileCluster.getCluster();
+
+	/*
+	 * Every file has copies on host1, host2 and host3, so failing host1 leaves
+	 * two sources for each
+	 */
+	@BeforeEach
+	void setupCluster() {
+		cluster.setReplicationFactor(3);
+		for (int i = 1; i <= 6; i++) {
+			cluster.addHost("host" + i);
+		}
+		for (int i = 1; i <= 120; i++) {
+			cluster.addFile("file" + i, "host1");
+			cluster.addFile("file" + i, "host2");
+			cluster.addFile("file" + i, "host3");
+		}
+	}
+
+	@AfterEach
+	void clearCluster() {
+		cluster.setCopyExecutor(null);
+		cluster.deleteCluster();
+		cluster.setReplicationFactor(2);
+		cluster.setParallelism(1);
+	}
+
+	/**
+	 * Check reads are spread evenly over the surviving copies
+	 */
+	@Test
+	void testReadsSpread() {
+		Map<String, Integer> reads = countReads(cluster.performHA(new String[] { "host1" }));
+
+		assertEquals(60, (int) reads.get("host2"));
+		assertEquals(60, (int) reads.get("host3"));
+	}
+
+	/**
+	 * Check a host with a larger budget serves more reads
+	 */
+	@Test
+	void testBandwidthBudget() {
+		cluster.setSourceBandwidth("host3", 3);
+		Map<String, Integer> reads = countReads(cluster.performHA(new String[] { "host1" }));
+
+		assertEquals(30, (int) reads.get("host2"));
+		assertEquals(90, (int) reads.get("host3"));
+	}
+
+	/**
+	 * Check queued reads are released once the executor has run the copies
+	 */
+	@Test
+	void testQueuesDrained() throws Exception {
+		try (CopyExecutor executor = new CopyExecutor((file, source, destination) -> {}, 2)) {
+			cluster.setCopyExecutor(executor);
+			cluster.performHA(new String[] { "host1" });
+			executor.awaitCompletion();
+		}
+
+		SourceSelector selector = cluster.getSourceSelector();
+		int[] candidates = new int[2];
+		for (int host = 0; host < 6; host++) {
+			assertEquals(0, selector.getQueued(host));
+		}
+
+		// With empty queues the first candidate wins a tie
+		candidates[0] = 4;
+		candidates[1] = 2;
+		assertEquals(4, selector.selectSource(candidates, 2));
+		assertEquals(2, selector.selectSource(candidates, 2));
+	}
+
+	/**
+	 * Check parallel planning spreads reads like a sequential run and picks the
+	 * same sources every time
+	 */
+	@Test
+	void testParallelPlanning() {
+		cluster.setParallelism(4);
+		List<String> firstSources = new ArrayList<String>();
+		List<String> secondSources = new ArrayList<String>();
+
+		for (List<String> sources : Arrays.asList(firstSources, secondSources)) {
+			cluster.deleteCluster();
+			setupCluster();
+			for (int i = 1; i <= 8000; i++) {
+				cluster.addFile("bulk" + i, "host1");
+				cluster.addFile("bulk" + i, "host2");
+				cluster.addFile("bulk" + i, "host3");
+			}
+
+			for (HAInfoTriplet triplet : cluster.performHA(new String[] { "host1" })) {
+				sources.add(triplet.getSourceHost());
+			}
+		}
+
+		// Every planning task starts from the same queues, so they may differ by a read each
+		int host2Reads = Collections.frequency(firstSources, "host2");
+		assertEquals(8120, firstSources.size());
+		assertEquals(firstSources, secondSources);
+		assertEquals(true, Math.abs(2 * host2Reads - firstSources.size()) <= 16);
+	}
+
+	private static Map<String, Integer> countReads(List<HAInfoTriplet> triplets) {
+		Map<String, Integer> reads = new HashMap<String, Integer>();
+		for (HAInfoTriplet triplet : triplets) {
+			reads.merge(triplet.getSourceHost(), 1, Integer::sum);
+		}
+		return reads;
+	}
+}
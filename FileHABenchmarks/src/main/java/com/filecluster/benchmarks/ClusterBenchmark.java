@@ -0,0 +1,141 @@
+package com.filecluster.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.filecluster.ha.HAFileCluster;
+import com.filecluster.ha.HAInfoTriplet;
+import com.filecluster.ha.TripletBuffer;
+
+/**
+ * Cluster ingestion and failover across cluster sizes. The default parameters
+ * cover 1k to 1M hosts and 10k to 50M files; the largest combinations need a
+ * heap well beyond the default fork settings, override with -jvmArgs and pick
+ * a subset with -p hosts=... -p files=...
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = { "-Xms8g", "-Xmx8g" })
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class ClusterBenchmark {
+
+	@Param({ "1000", "10000", "100000", "1000000" })
+	int hosts;
+
+	@Param({ "10000", "1000000", "50000000" })
+	int files;
+
+	String[] fileNames, hostNames;
+	HAFileCluster cluster;
+
+	@Setup(Level.Trial)
+	public void generateNames() {
+		fileNames = new String[files];
+		hostNames = new String[hosts];
+
+		for (int i = 0; i < files; i++) {
+			fileNames[i] = "file" + i + ".txt";
+		}
+		for (int i = 0; i < hosts; i++) {
+			hostNames[i] = "host" + i;
+		}
+
+		cluster = HAFileCluster.getCluster();
+	}
+
+	HAFileCluster load() {
+		cluster.deleteCluster();
+
+		for (String host : hostNames) {
+			cluster.addHost(host);
+		}
+
+		// Two distinct hosts per file, the second one walks through every offset
+		for (int i = 0; i < files; i++) {
+			cluster.addFile(fileNames[i], hostNames[i % hosts]);
+			cluster.addFile(fileNames[i], hostNames[(i + 1 + (i / hosts) % (hosts - 1)) % hosts]);
+		}
+
+		return cluster;
+	}
+
+	/**
+	 * Loads the whole cluster, i.e. hosts x addHost and 2 x files x addFile
+	 */
+	@Benchmark
+	public HAFileCluster addFile() {
+		return load();
+	}
+
+	@State(Scope.Benchmark)
+	public static class LoadedCluster {
+		HAFileCluster cluster;
+		TripletBuffer tripletBuffer = new TripletBuffer();
+
+		@Setup(Level.Iteration)
+		public void load(ClusterBenchmark benchmark) {
+			cluster = benchmark.load();
+		}
+	}
+
+	/*
+	 * Kept apart from the cluster sizes so only the failover benchmarks run once
+	 * per number of failed hosts
+	 */
+	@State(Scope.Benchmark)
+	public static class FailedHosts {
+		@Param({ "1", "2" })
+		int failedHosts;
+
+		String[] names;
+
+		@Setup(Level.Trial)
+		public void pick(ClusterBenchmark benchmark) {
+			// Spread the failed hosts over the cluster
+			names = new String[failedHosts];
+			for (int i = 0; i < failedHosts; i++) {
+				names[i] = benchmark.hostNames[(int) ((long) i * benchmark.hosts / failedHosts)];
+			}
+		}
+	}
+
+	/*
+	 * Planning threads for the failover benchmarks. Sources are picked by the
+	 * cluster's source selector either way
+	 */
+	@State(Scope.Benchmark)
+	public static class Planning {
+		@Param({ "1", "4" })
+		int parallelism;
+
+		@Setup(Level.Trial)
+		public void apply(ClusterBenchmark benchmark) {
+			benchmark.cluster.setParallelism(parallelism);
+		}
+	}
+
+	@Benchmark
+	public List<HAInfoTriplet> performHA(LoadedCluster loaded, FailedHosts failed, Planning planning) {
+		return loaded.cluster.performHA(failed.names);
+	}
+
+	@Benchmark
+	public int performHABuffered(LoadedCluster loaded, FailedHosts failed, Planning planning) {
+		return loaded.cluster.performHA(failed.names, loaded.tripletBuffer);
+	}
+}
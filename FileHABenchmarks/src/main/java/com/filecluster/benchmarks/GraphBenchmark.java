@@ -0,0 +1,156 @@
+package com.filecluster.benchmarks;
+
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.filecluster.graph.ClusterGraph;
+import com.filecluster.graph.Graph;
+
+/**
+ * Graph operations on the general {@link Graph} and on the bipartite
+ * {@link ClusterGraph} used by the cluster. Every file gets two edges to hosts;
+ * there is one host for every ten files.
+ */
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx4g" })
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class GraphBenchmark {
+
+	interface Backend {
+		void addEdge(String file, String host);
+
+		void removeNode(String host);
+
+		Set<String> getConnectedNodes(String file);
+	}
+
+	static Backend newBackend(String backend, int files, int hosts) {
+		if ("ClusterGraph".equals(backend)) {
+			final ClusterGraph graph = new ClusterGraph(files, hosts);
+			return new Backend() {
+				public void addEdge(String file, String host) {
+					graph.addReplica(file, host);
+				}
+
+				public void removeNode(String host) {
+					graph.removeHost(host);
+				}
+
+				public Set<String> getConnectedNodes(String file) {
+					return graph.getHostsForFile(file);
+				}
+			};
+		} else {
+			final Graph graph = new Graph(files + hosts);
+			return new Backend() {
+				public void addEdge(String file, String host) {
+					graph.addEdge(file, host);
+				}
+
+				public void removeNode(String host) {
+					graph.removeNode(host);
+				}
+
+				public Set<String> getConnectedNodes(String file) {
+					return graph.getConnectedNodes(file);
+				}
+			};
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class Names {
+		@Param({ "Graph", "ClusterGraph" })
+		String backend;
+
+		@Param({ "10000", "1000000" })
+		int files;
+
+		String[] fileNames, hostNames;
+
+		@Setup(Level.Trial)
+		public void generateNames() {
+			fileNames = new String[files];
+			hostNames = new String[Math.max(files / 10, 3)];
+
+			for (int i = 0; i < fileNames.length; i++) {
+				fileNames[i] = "file" + i + ".txt";
+			}
+			for (int i = 0; i < hostNames.length; i++) {
+				hostNames[i] = "host" + i;
+			}
+		}
+
+		Backend build() {
+			Backend graph = newBackend(backend, fileNames.length, hostNames.length);
+			int hosts = hostNames.length;
+
+			for (int i = 0; i < fileNames.length; i++) {
+				graph.addEdge(fileNames[i], hostNames[i % hosts]);
+				graph.addEdge(fileNames[i], hostNames[(i + 1 + (i / hosts) % (hosts - 1)) % hosts]);
+			}
+
+			return graph;
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class BuiltGraph {
+		Backend graph;
+
+		@Setup(Level.Trial)
+		public void build(Names names) {
+			graph = names.build();
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class FreshGraph {
+		Backend graph;
+
+		@Setup(Level.Iteration)
+		public void build(Names names) {
+			graph = names.build();
+		}
+	}
+
+	/**
+	 * Builds the whole graph, i.e. 2 x files calls to addEdge
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public Backend addEdge(Names names) {
+		return names.build();
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public Backend removeNode(Names names, FreshGraph fresh) {
+		fresh.graph.removeNode(names.hostNames[0]);
+		return fresh.graph;
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public Set<String> getConnectedNodes(Names names, BuiltGraph built) {
+		int file = ThreadLocalRandom.current().nextInt(names.fileNames.length);
+		return built.graph.getConnectedNodes(names.fileNames[file]);
+	}
+}